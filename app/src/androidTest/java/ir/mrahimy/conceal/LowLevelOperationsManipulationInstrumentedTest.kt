@@ -5,7 +5,9 @@ import android.graphics.Bitmap
 import android.graphics.Color
 import androidx.core.graphics.set
 import androidx.test.platform.app.InstrumentationRegistry
+import ir.mrahimy.conceal.data.PixelBuffer
 import ir.mrahimy.conceal.data.Rgb
+import ir.mrahimy.conceal.data.toPixelBuffer
 import ir.mrahimy.conceal.util.remove3Lsb
 import ir.mrahimy.conceal.util.ktx.toRgb
 import ir.mrahimy.conceal.util.writeBitmap
@@ -17,7 +19,7 @@ import java.util.*
 
 class LowLevelOperationsManipulationInstrumentedTest {
     private val rgbList = mutableListOf<Rgb>()
-    private val removedLsb = mutableListOf<Rgb>()
+    private lateinit var removedLsb: PixelBuffer
 
     private val image_width = 8
     private val image_height = 5
@@ -75,8 +77,7 @@ class LowLevelOperationsManipulationInstrumentedTest {
             add(Rgb(100, 90, 101))
         }//40
 
-        removedLsb.clear()
-        removedLsb.addAll(rgbList.remove3Lsb())
+        removedLsb = rgbList.toPixelBuffer(image_width).remove3Lsb()
     }
 
     @Test
@@ -0,0 +1,12 @@
+package ir.mrahimy.conceal.data
+
+/**
+ * @param lsbDepth how many lsb of each layer are used
+ * @param sampleDepth how many bits of magnitude each sample keeps
+ * @param samples how many samples fit inside the image with these depths
+ */
+data class CapacityPlan(
+    val lsbDepth: Int,
+    val sampleDepth: Int,
+    val samples: Int
+)
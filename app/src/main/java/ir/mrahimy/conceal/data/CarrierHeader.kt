@@ -0,0 +1,133 @@
+package ir.mrahimy.conceal.data
+
+import ir.mrahimy.conceal.data.enums.PayloadCodec
+import ir.mrahimy.conceal.util.lowlevel.LowLevelCodecOperations
+import ir.mrahimy.conceal.util.lowlevel.LowLevelPackedOperations
+
+/**
+ * What reveal needs to know about the audio concealed inside an image
+ *
+ * @param version [LEGACY_VERSION] for the decimal header, [BINARY_VERSION] for the binary one and
+ * [FIRST_BINARY_VERSION] for the binary one before it had [tableWords]
+ * @param lsbDepth how many lsb of each layer hold the packed samples, [GROUPED_LSB_DEPTH] for the
+ * legacy layout of a sample every 4 pixels
+ * @param sampleDepth how many bits of magnitude each sample keeps, besides its sign
+ * @param lossless whether the samples are kept as they are, every one of them fitting in
+ * [sampleDepth] bits, rather than scaled against [maxValue]
+ * @param codec how the samples are coded, [sampleDepth] only matters to [PayloadCodec.PCM]
+ * @param maxValue the number of codes instead for a [PayloadCodec.variableLength] codec, which
+ * never scales
+ * @param tableWords how many words of [PayloadTables] the payload starts with, before the samples
+ * @param position the position right after the header, the payload starts there
+ */
+data class CarrierHeader(
+    val version: Int,
+    val lsbDepth: Int,
+    val sampleDepth: Int,
+    val lossless: Boolean,
+    val codec: PayloadCodec,
+    val sampleRate: Int,
+    val channelCount: Int,
+    val frameCount: Int,
+    val validBits: Int,
+    val maxValue: Int,
+    val tableWords: Int,
+    val position: Int
+) {
+    val sampleCount: Long
+        get() = frameCount.toLong() * channelCount
+
+    /**
+     * How many samples the payload tables take
+     */
+    val tableCount: Int
+        get() = LowLevelPackedOperations.samplesHoldingWords(tableWords, sampleBits)
+
+    /**
+     * Codes heading every chunk before its samples, the state an IMA ADPCM chunk starts from
+     */
+    val chunkStateCodes: Int
+        get() =
+            if (codec != PayloadCodec.IMA_ADPCM) 0
+            else channelCount.coerceAtLeast(1) * LowLevelCodecOperations.IMA_ADPCM_STATE_CODES
+
+    /**
+     * How many samples, or codes of the codec, the payload holds after its tables
+     */
+    val sampleCodeCount: Long
+        get() = when {
+            codec.variableLength -> maxValue.toLong() and 0xffffffffL
+            chunkStateCodes == 0 -> sampleCount
+            else -> sampleCount + chunkStateCodes.toLong() *
+                    ChunkIndex.countOf(frameCount.toLong(), ChunkIndex.framesOf(sampleRate))
+        }
+
+    /**
+     * How many samples the whole payload takes, its tables and its samples
+     */
+    val payloadCount: Long
+        get() = tableCount + sampleCodeCount
+
+    /**
+     * sign and magnitude of a sample in two's complement, or a code of the codec
+     */
+    val sampleBits: Int
+        get() = codec.sampleBitsOf(sampleDepth)
+
+    val levels: Long
+        get() = levelsOf(sampleDepth)
+
+    companion object {
+        const val LEGACY_VERSION = 1
+        const val FIRST_BINARY_VERSION = 2
+        const val BINARY_VERSION = 3
+
+        const val GROUPED_LSB_DEPTH = 0
+
+        /**
+         * The only depth of the legacy versions, always scaled
+         */
+        const val DEFAULT_SAMPLE_DEPTH = 8
+        val SAMPLE_DEPTHS = intArrayOf(8, 12, 16)
+
+        fun levelsOf(sampleDepth: Int) = (1L shl sampleDepth) - 1
+    }
+}
+
+/**
+ * Keeps the samples bit exact whenever they all fit in sampleDepth bits, as the samples of a wave
+ * file with up to sampleDepth valid bits do, or always with [PayloadCodec.RICE]. Once the samples
+ * are coded, see [withPayloadOf].
+ */
+fun Waver.toCarrierHeader(lsbDepth: Int, sampleDepth: Int, codec: PayloadCodec = PayloadCodec.PCM) = CarrierHeader(
+    CarrierHeader.BINARY_VERSION,
+    lsbDepth,
+    sampleDepth,
+    when (codec) {
+        PayloadCodec.PCM -> maxValue <= CarrierHeader.levelsOf(sampleDepth)
+        PayloadCodec.RICE -> true
+        else -> false
+    },
+    codec,
+    sampleRate.toInt(),
+    channelCount,
+    frameCount.toInt(),
+    validBits,
+    maxValue.toInt(),
+    tableWords,
+    0
+)
+
+/**
+ * @param codes the payload as [Waver.quantize] returns it for this header
+ * @return the header telling how many codes there are after the tables, if the codec makes that
+ * differ from the number of samples
+ */
+fun CarrierHeader.withPayloadOf(codes: IntArray) = withCodeCount(codes.size.toLong() - tableCount)
+
+/**
+ * @param count how many codes there are after the tables
+ * @return the header telling so, if the codec makes that differ from the number of samples
+ */
+fun CarrierHeader.withCodeCount(count: Long) =
+    if (codec.variableLength) copy(maxValue = count.toInt()) else this
@@ -0,0 +1,59 @@
+package ir.mrahimy.conceal.data
+
+/**
+ * Every chunk of the audio is coded on its own, so reveal can start at any of them
+ */
+const val CHUNK_MS = 1000
+
+/**
+ * Where every chunk of [chunkFrames] frames starts among the codes of the payload, so the codes of
+ * any time of the audio, and the pixels holding them, are known without decoding what comes
+ * before them
+ *
+ * @param offsets index of the first code of every chunk, counted from the first code after the
+ * payload tables
+ */
+class ChunkIndex(val chunkFrames: Int, val offsets: IntArray) {
+
+    val chunkCount: Int
+        get() = offsets.size
+
+    /**
+     * @return the chunk holding the frame, the last one for frames past the end
+     */
+    fun chunkOf(frame: Long) = (frame / chunkFrames).coerceIn(0, (chunkCount - 1).toLong()).toInt()
+
+    /**
+     * @param codeCount how many codes there are after the tables, the end of the last chunk
+     * @return index of the first code past the chunk
+     */
+    fun endOf(chunk: Int, codeCount: Long) =
+        if (chunk + 1 < chunkCount) offsets[chunk + 1].toLong() else codeCount
+
+    /**
+     * chunk frames, chunk count and then the offsets, a word each
+     */
+    fun toWords() = IntArray(2 + offsets.size).also { words ->
+        words[0] = chunkFrames
+        words[1] = chunkCount
+        offsets.copyInto(words, 2)
+    }
+
+    companion object {
+
+        fun framesOf(sampleRate: Int) = (sampleRate.toLong() * CHUNK_MS / 1000).coerceIn(1, Int.MAX_VALUE.toLong()).toInt()
+
+        fun countOf(frameCount: Long, chunkFrames: Int) = ((frameCount + chunkFrames - 1) / chunkFrames).toInt()
+
+        /**
+         * @throws IndexOutOfBoundsException if words does not hold a whole table
+         */
+        fun fromWords(words: IntArray, from: Int): ChunkIndex {
+            val chunkFrames = words[from]
+            val count = words[from + 1]
+            if (chunkFrames <= 0 || count < 0 || from + 2 + count > words.size)
+                throw IndexOutOfBoundsException("broken chunk index")
+            return ChunkIndex(chunkFrames, words.copyOfRange(from + 2, from + 2 + count))
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package ir.mrahimy.conceal.data
+
+/**
+ * A conceal stopped halfway: the carrier as it was, header and all, once every slot before
+ * slotsDone had been put
+ *
+ * @param key tells which input image, audio and depths the carrier belongs to
+ * @param startingPosition the position right after the header
+ */
+class ConcealCheckpoint(
+    val key: String,
+    val pixels: PixelBuffer,
+    val startingPosition: Int,
+    val slotsDone: Long
+)
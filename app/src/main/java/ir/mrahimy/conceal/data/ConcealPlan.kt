@@ -0,0 +1,36 @@
+package ir.mrahimy.conceal.data
+
+/**
+ * What concealing an audio inside an image takes, known before loading either of them
+ *
+ * @param pixelCount the number of pixels of the image
+ * @param pixelBudget the fewest pixels an image needs to hold the whole audio
+ * @param capacity how many samples the image holds
+ * @param samples how many samples the audio has
+ * @param maxDurationMs the longest audio of the same format the image holds
+ * @param smallestSamples how many samples the audio has in the smallest format it is fitted to,
+ * samples when it is not fitted, see [ir.mrahimy.conceal.util.fitInto]
+ * @param mayShrink whether the payload may take less than samples once trimmed or coded, whether
+ * it fits is then only known after that
+ */
+data class ConcealPlan(
+    val pixelCount: Int,
+    val pixelBudget: Long,
+    val capacity: Int,
+    val samples: Long,
+    val maxDurationMs: Long,
+    val smallestSamples: Long = samples,
+    val mayShrink: Boolean = false
+) {
+    /**
+     * Whether the audio fits as it is, neither fitted nor coded smaller
+     */
+    val fitsAsIs: Boolean
+        get() = samples <= capacity
+
+    /**
+     * false only when the audio is known not to fit
+     */
+    val fits: Boolean
+        get() = smallestSamples <= capacity || mayShrink
+}
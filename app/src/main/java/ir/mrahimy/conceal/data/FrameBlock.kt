@@ -0,0 +1,21 @@
+package ir.mrahimy.conceal.data
+
+/**
+ * A block of frames of audio handed out a block at a time, read from a wave file or widened from
+ * [Waver.samples], its samples interleaved. The same block is filled over and over, so it is only
+ * valid until the next one is handed out.
+ *
+ * @param samples room for a whole block
+ */
+class FrameBlock(val samples: LongArray, val channelCount: Int) {
+
+    /**
+     * How many frames the block holds, from the start of samples
+     */
+    var frames = 0
+
+    /**
+     * Index of the first frame of the block inside the whole audio
+     */
+    var firstFrame = 0L
+}
@@ -0,0 +1,56 @@
+package ir.mrahimy.conceal.data
+
+/**
+ * What the payload holds besides the samples, as 32-bit words right before them. Every table is
+ * a word of its tag and its length in words followed by its own words, so a table a reader does
+ * not know about is skipped.
+ *
+ * @param segments if the audio had its silence trimmed and its timeline is to be rebuilt
+ * @param chunks where every chunk of the codes starts, missing from payloads coded as a whole
+ */
+class PayloadTables(val segments: SegmentTable? = null, val chunks: ChunkIndex? = null) {
+
+    fun toWords(): IntArray {
+        val tables = listOfNotNull(
+            segments?.let { TAG_SEGMENTS to it.toWords() },
+            chunks?.let { TAG_CHUNKS to it.toWords() }
+        )
+        val words = IntArray(tables.sumBy { 1 + it.second.size })
+        var index = 0
+        tables.forEach { (tag, table) ->
+            words[index++] = (tag shl TAG_SHIFT) or table.size
+            table.copyInto(words, index)
+            index += table.size
+        }
+        return words
+    }
+
+    companion object {
+        const val TAG_SEGMENTS = 1
+        const val TAG_CHUNKS = 2
+
+        private const val TAG_SHIFT = 24
+        private const val LENGTH_MASK = (1 shl TAG_SHIFT) - 1
+
+        /**
+         * @throws IndexOutOfBoundsException if the words are not whole tables
+         */
+        fun fromWords(words: IntArray): PayloadTables {
+            var segments: SegmentTable? = null
+            var chunks: ChunkIndex? = null
+            var index = 0
+            while (index < words.size) {
+                val tag = words[index] ushr TAG_SHIFT
+                val length = words[index] and LENGTH_MASK
+                if (index + 1 + length > words.size) throw IndexOutOfBoundsException("broken payload table")
+                val table = words.copyOf(index + 1 + length)
+                when (tag) {
+                    TAG_SEGMENTS -> segments = SegmentTable.fromWords(table, index + 1)
+                    TAG_CHUNKS -> chunks = ChunkIndex.fromWords(table, index + 1)
+                }
+                index += 1 + length
+            }
+            return PayloadTables(segments, chunks)
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package ir.mrahimy.conceal.data
+
+import ir.mrahimy.conceal.util.Layer
+import ir.mrahimy.conceal.util.ktx.parse
+import ir.mrahimy.conceal.util.ktx.toRgb
+
+/**
+ * Pixels of an image packed as 0xAARRGGBB integers in row major order, the same layout
+ * Bitmap.getPixels and Bitmap.setPixels use. Holds one int per pixel instead of an [Rgb] object.
+ */
+class PixelBuffer(
+    val width: Int,
+    val height: Int,
+    val pixels: IntArray = IntArray(width * height)
+) {
+    val size: Int
+        get() = pixels.size
+
+    operator fun get(position: Int): Rgb = pixels[position].toRgb()
+
+    fun r(position: Int) = channel(position, Layer.R)
+    fun g(position: Int) = channel(position, Layer.G)
+    fun b(position: Int) = channel(position, Layer.B)
+
+    fun setR(position: Int, value: Int) = setChannel(position, Layer.R, value)
+    fun setG(position: Int, value: Int) = setChannel(position, Layer.G, value)
+    fun setB(position: Int, value: Int) = setChannel(position, Layer.B, value)
+
+    fun channel(position: Int, layer: Layer) = (pixels[position] ushr layer.shift) and 0xff
+
+    fun setChannel(position: Int, layer: Layer, value: Int) {
+        val mask = (0xff shl layer.shift).inv()
+        pixels[position] = (pixels[position] and mask) or ((value and 0xff) shl layer.shift)
+    }
+
+    fun copy() = PixelBuffer(width, height, pixels.copyOf())
+}
+
+/**
+ * @param width of the image these pixels belong to, a single row by default
+ */
+fun List<Rgb>.toPixelBuffer(width: Int = size): PixelBuffer {
+    val pixels = IntArray(size) { get(it).parse() }
+    return PixelBuffer(width, size / width, pixels)
+}
@@ -0,0 +1,185 @@
+package ir.mrahimy.conceal.data
+
+import ir.mrahimy.conceal.util.lowlevel.LowLevelQuantizeOperations
+
+/**
+ * Interleaved samples of a wave file kept in the narrowest primitive array their valid bits fit
+ * in: shorts for up to 16 bits, unsigned 8-bit samples included, ints for up to 32 and longs
+ * above. Kernels working on longs get the samples a block at a time through [copyInto], so the
+ * audio is never widened whole.
+ */
+sealed class SampleStore {
+
+    abstract val size: Int
+
+    abstract operator fun get(index: Int): Long
+
+    abstract operator fun set(index: Int, sample: Long)
+
+    /**
+     * Widens the samples from until to into destination, from destinationOffset on
+     *
+     * @return destination
+     */
+    abstract fun copyInto(destination: LongArray, destinationOffset: Int = 0, from: Int = 0, to: Int = size): LongArray
+
+    /**
+     * Narrows the samples of source from until to into this store, from offset on
+     */
+    abstract fun copyFrom(source: LongArray, offset: Int = 0, from: Int = 0, to: Int = source.size)
+
+    /**
+     * Copies the samples from until to into destination from destinationOffset on, as they are
+     * when both stores are as wide
+     */
+    abstract fun copyInto(destination: SampleStore, destinationOffset: Int, from: Int, to: Int)
+
+    abstract fun fill(sample: Long)
+
+    fun toLongArray(from: Int = 0, to: Int = size) = copyInto(LongArray(to - from), 0, from, to)
+
+    /**
+     * @return the largest magnitude of the samples, 1 if there are none
+     */
+    abstract fun maxValue(): Long
+
+    /**
+     * Codes the samples from until to into codes from offset on, the way a pcm payload of levels
+     * keeps them, see [LowLevelQuantizeOperations]
+     */
+    abstract fun quantizeInto(from: Int, to: Int, maxValue: Long, levels: Long, lossless: Boolean, codes: IntArray, offset: Int)
+
+    /**
+     * Gets the samples of the pcm codes from until to back into this store, from offset on
+     */
+    abstract fun dequantizeFrom(codes: IntArray, from: Int, to: Int, levels: Long, maxValue: Long, lossless: Boolean, offset: Int)
+
+    protected fun copyEach(destination: SampleStore, destinationOffset: Int, from: Int, to: Int) {
+        for (index in from until to) destination[destinationOffset + index - from] = get(index)
+    }
+
+    class Shorts(val array: ShortArray) : SampleStore() {
+
+        override val size get() = array.size
+
+        override fun get(index: Int) = array[index].toLong()
+
+        override fun set(index: Int, sample: Long) {
+            array[index] = sample.toShort()
+        }
+
+        override fun copyInto(destination: LongArray, destinationOffset: Int, from: Int, to: Int): LongArray {
+            for (index in from until to) destination[destinationOffset + index - from] = array[index].toLong()
+            return destination
+        }
+
+        override fun copyFrom(source: LongArray, offset: Int, from: Int, to: Int) {
+            for (index in from until to) array[offset + index - from] = source[index].toShort()
+        }
+
+        override fun copyInto(destination: SampleStore, destinationOffset: Int, from: Int, to: Int) {
+            if (destination is Shorts) array.copyInto(destination.array, destinationOffset, from, to)
+            else copyEach(destination, destinationOffset, from, to)
+        }
+
+        override fun fill(sample: Long) = array.fill(sample.toShort())
+
+        override fun maxValue() = LowLevelQuantizeOperations.peak(array, 0, size)
+
+        override fun quantizeInto(from: Int, to: Int, maxValue: Long, levels: Long, lossless: Boolean, codes: IntArray, offset: Int) =
+            LowLevelQuantizeOperations.quantize(array, from, to, maxValue, levels, lossless, codes, offset)
+
+        override fun dequantizeFrom(codes: IntArray, from: Int, to: Int, levels: Long, maxValue: Long, lossless: Boolean, offset: Int) =
+            LowLevelQuantizeOperations.dequantize(codes, from, to, levels, maxValue, lossless, array, offset)
+    }
+
+    class Ints(val array: IntArray) : SampleStore() {
+
+        override val size get() = array.size
+
+        override fun get(index: Int) = array[index].toLong()
+
+        override fun set(index: Int, sample: Long) {
+            array[index] = sample.toInt()
+        }
+
+        override fun copyInto(destination: LongArray, destinationOffset: Int, from: Int, to: Int): LongArray {
+            for (index in from until to) destination[destinationOffset + index - from] = array[index].toLong()
+            return destination
+        }
+
+        override fun copyFrom(source: LongArray, offset: Int, from: Int, to: Int) {
+            for (index in from until to) array[offset + index - from] = source[index].toInt()
+        }
+
+        override fun copyInto(destination: SampleStore, destinationOffset: Int, from: Int, to: Int) {
+            if (destination is Ints) array.copyInto(destination.array, destinationOffset, from, to)
+            else copyEach(destination, destinationOffset, from, to)
+        }
+
+        override fun fill(sample: Long) = array.fill(sample.toInt())
+
+        override fun maxValue() = LowLevelQuantizeOperations.peak(array, 0, size)
+
+        override fun quantizeInto(from: Int, to: Int, maxValue: Long, levels: Long, lossless: Boolean, codes: IntArray, offset: Int) =
+            LowLevelQuantizeOperations.quantize(array, from, to, maxValue, levels, lossless, codes, offset)
+
+        override fun dequantizeFrom(codes: IntArray, from: Int, to: Int, levels: Long, maxValue: Long, lossless: Boolean, offset: Int) =
+            LowLevelQuantizeOperations.dequantize(codes, from, to, levels, maxValue, lossless, array, offset)
+    }
+
+    class Longs(val array: LongArray) : SampleStore() {
+
+        override val size get() = array.size
+
+        override fun get(index: Int) = array[index]
+
+        override fun set(index: Int, sample: Long) {
+            array[index] = sample
+        }
+
+        override fun copyInto(destination: LongArray, destinationOffset: Int, from: Int, to: Int) =
+            array.copyInto(destination, destinationOffset, from, to)
+
+        override fun copyFrom(source: LongArray, offset: Int, from: Int, to: Int) {
+            source.copyInto(array, offset, from, to)
+        }
+
+        override fun copyInto(destination: SampleStore, destinationOffset: Int, from: Int, to: Int) {
+            if (destination is Longs) array.copyInto(destination.array, destinationOffset, from, to)
+            else copyEach(destination, destinationOffset, from, to)
+        }
+
+        override fun fill(sample: Long) = array.fill(sample)
+
+        override fun maxValue() = LowLevelQuantizeOperations.peak(array, 0, size)
+
+        override fun quantizeInto(from: Int, to: Int, maxValue: Long, levels: Long, lossless: Boolean, codes: IntArray, offset: Int) =
+            LowLevelQuantizeOperations.quantize(array, from, to, maxValue, levels, lossless, codes, offset)
+
+        override fun dequantizeFrom(codes: IntArray, from: Int, to: Int, levels: Long, maxValue: Long, lossless: Boolean, offset: Int) =
+            LowLevelQuantizeOperations.dequantize(codes, from, to, levels, maxValue, lossless, array, offset)
+    }
+
+    companion object {
+
+        /**
+         * @return a store of size samples of validBits, all of them 0
+         */
+        @JvmStatic
+        fun ofSize(size: Int, validBits: Int): SampleStore = when {
+            validBits <= Short.SIZE_BITS -> Shorts(ShortArray(size))
+            validBits <= Int.SIZE_BITS -> Ints(IntArray(size))
+            else -> Longs(LongArray(size))
+        }
+
+        /**
+         * @return the samples narrowed into a store of validBits, or kept as they are when longs
+         * are needed anyway
+         */
+        @JvmStatic
+        fun of(samples: LongArray, validBits: Int): SampleStore =
+            if (validBits > Int.SIZE_BITS) Longs(samples)
+            else ofSize(samples.size, validBits).also { it.copyFrom(samples) }
+    }
+}
@@ -0,0 +1,68 @@
+package ir.mrahimy.conceal.data
+
+/**
+ * Where the frames kept by silence trimming were in the original audio, so reveal can put them
+ * back with the silence between them
+ *
+ * @param frames frame count of the original audio
+ * @param segments the first frame and the frame count of every kept span, one after another
+ */
+class SegmentTable(val frames: Long, val segments: LongArray) {
+
+    val segmentCount: Int
+        get() = segments.size / 2
+
+    fun startOf(segment: Int) = segments[2 * segment]
+
+    fun lengthOf(segment: Int) = segments[2 * segment + 1]
+
+    /**
+     * @return how many frames are kept before the frame of the original audio
+     */
+    fun keptFramesBefore(frame: Long): Long {
+        var kept = 0L
+        for (segment in 0 until segmentCount) {
+            if (frame <= startOf(segment)) break
+            kept += minOf(lengthOf(segment), frame - startOf(segment))
+        }
+        return kept
+    }
+
+    /**
+     * @return the same spans once the audio they belong to has its rate changed
+     */
+    fun resampled(fromRate: Long, toRate: Long): SegmentTable {
+        if (fromRate == toRate) return this
+        val scaled = LongArray(segments.size)
+        for (segment in 0 until segmentCount) {
+            val start = startOf(segment) * toRate / fromRate
+            scaled[2 * segment] = start
+            scaled[2 * segment + 1] = (startOf(segment) + lengthOf(segment)) * toRate / fromRate - start
+        }
+        return SegmentTable(frames * toRate / fromRate, scaled)
+    }
+
+    /**
+     * frame count, segment count and then the spans, a word each
+     */
+    fun toWords() = IntArray(2 + segments.size).also { words ->
+        words[0] = frames.toInt()
+        words[1] = segmentCount
+        segments.forEachIndexed { index, value -> words[2 + index] = value.toInt() }
+    }
+
+    companion object {
+        /**
+         * @throws IndexOutOfBoundsException if words does not hold a whole table
+         */
+        fun fromWords(words: IntArray, from: Int): SegmentTable {
+            val count = words[from + 1]
+            if (count < 0 || from + 2 + 2 * count > words.size)
+                throw IndexOutOfBoundsException("broken segment table")
+            return SegmentTable(
+                words[from].toLong() and 0xffffffffL,
+                LongArray(2 * count) { words[from + 2 + it].toLong() and 0xffffffffL }
+            )
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package ir.mrahimy.conceal.data
+
+import ir.mrahimy.conceal.util.lowlevel.PngWriter
+import java.io.File
+
+/**
+ * A tiled conceal stopped halfway: the output png as far as it had been written
+ *
+ * @param key tells which input image, audio and depths the output belongs to
+ * @param png where the output is carried on from, rows and all
+ */
+class TiledCheckpoint(
+    val key: String,
+    val output: File,
+    val png: PngWriter.State
+)
@@ -1,36 +1,401 @@
 package ir.mrahimy.conceal.data
 
+import ir.mrahimy.conceal.data.enums.PayloadCodec
+import ir.mrahimy.conceal.util.ForeignImageException
+import ir.mrahimy.conceal.util.lowlevel.LowLevelCodecOperations
+import ir.mrahimy.conceal.util.lowlevel.LowLevelPackedOperations
+import ir.mrahimy.conceal.util.lowlevel.LowLevelQuantizeOperations
+import ir.mrahimy.conceal.util.lowlevel.RiceDecoder
+import ir.mrahimy.conceal.util.lowlevel.RiceEncoder
+import ir.mrahimy.conceal.util.lowlevel.RiceEncoder.BLOCK_FRAMES
+import ir.mrahimy.conceal.util.restoreSilence
+
+/**
+ * @param samples interleaved, in a store as wide as validBits need
+ */
 data class Waver(
-    val data: LongArray,
+    val samples: SampleStore,
     val sampleRate: Long,
     val channelCount: Int,
     val frameCount: Long,
     val validBits: Int
 ) {
+    /**
+     * @param data interleaved samples, narrowed into a [SampleStore] of validBits
+     */
+    constructor(data: LongArray, sampleRate: Long, channelCount: Int, frameCount: Long, validBits: Int) :
+            this(SampleStore.of(data, validBits), sampleRate, channelCount, frameCount, validBits)
+
     var maxValue: Long = 1
+
+    /**
+     * Where the frames came from in the original audio, if its silence has been trimmed and its
+     * timeline is to be rebuilt on reveal
+     */
+    var segments: SegmentTable? = null
+}
+
+/**
+ * How many words of [PayloadTables] [quantize] puts before the samples
+ */
+val Waver.tableWords: Int
+    get() {
+        val chunkFrames = ChunkIndex.framesOf(sampleRate.toInt())
+        return tablesOf(ChunkIndex(chunkFrames, IntArray(ChunkIndex.countOf(frameCount, chunkFrames)))).toWords().size
+    }
+
+private fun Waver.tablesOf(chunks: ChunkIndex) = PayloadTables(segments, chunks)
+
+/**
+ * The samples a block of frames at a time, widened into the same [FrameBlock] the way a wave file
+ * is read, the last block holding what is left
+ */
+fun Waver.frameBlocks(blockFrames: Int): Sequence<FrameBlock> = sequence {
+    val channels = channelCount.coerceAtLeast(1)
+    val frames = samples.size / channels
+    val block = FrameBlock(LongArray(blockFrames * channels), channels)
+    while (block.firstFrame < frames) {
+        block.frames = minOf(blockFrames.toLong(), frames - block.firstFrame).toInt()
+        val from = (block.firstFrame * channels).toInt()
+        samples.copyInto(block.samples, 0, from, from + block.frames * channels)
+        yield(block)
+        block.firstFrame += block.frames
+    }
 }
 
 fun LongArray.mapToUniformDouble(): DoubleArray {
-    val max = absolute().max()?.toDouble() ?: 1.0
-    return map {
-        (it.toDouble() / max)
-    }.toDoubleArray()
+    val max = maxValue().toDouble()
+    return DoubleArray(size) { this[it].toDouble() / max }
 }
 
-fun LongArray.maxValue() = absolute().max() ?: 1
+/**
+ * @return the largest magnitude of the samples, 1 if there are none
+ */
+fun LongArray.maxValue(): Long = LowLevelQuantizeOperations.peak(this, 0, size)
 
 fun DoubleArray.mapToRgbValue(): IntArray {
-    return map {
-        (it * 255).toInt()
-    }.toIntArray()
+    return IntArray(size) { (this[it] * 255).toInt() }
 }
 
 fun LongArray.absolute(): LongArray {
-    return map {
-        if (it < 0) it * -1 else it
-    }.toLongArray()
+    return LongArray(size) { if (this[it] < 0) this[it] * -1 else this[it] }
 }
 
 fun LongArray.toByteArray(): ByteArray {
-    return map { it.toByte() }.toByteArray()
+    return ByteArray(size) { this[it].toByte() }
+}
+
+/**
+ * @return the payload ready to be concealed with the given header: the words of its tables, laid
+ * as samples, and then the codes of every chunk of the samples one after another
+ */
+fun Waver.quantize(header: CarrierHeader): IntArray {
+    val chunkFrames = ChunkIndex.framesOf(header.sampleRate)
+    val chunks = ChunkIndex(chunkFrames, IntArray(ChunkIndex.countOf(header.frameCount.toLong(), chunkFrames)))
+    val payload = quantizeSamples(header, chunks, header.tableCount)
+    if (header.tableWords > 0)
+        LowLevelPackedOperations.wordsToSamples(tablesOf(chunks).toWords(), payload, 0, header.sampleBits)
+    return payload
+}
+
+/**
+ * Codes every chunk on its own and fills the offsets of the chunks
+ *
+ * @param first codes left free at the start of the payload, for the tables
+ */
+private fun Waver.quantizeSamples(header: CarrierHeader, chunks: ChunkIndex, first: Int): IntArray {
+    val channelCount = header.channelCount.coerceAtLeast(1)
+    val offsets = chunks.offsets
+    if (header.codec.variableLength) {
+        var codes = IntArray(first + expectedCodesOf(samples.size.toLong(), header.validBits).toInt())
+        var count = first
+        /** the first block holds the room of the tables alone */
+        frameBlocks(chunks.chunkFrames).quantize(header, maxValue, chunks).drop(1).forEach { chunk ->
+            if (count + chunk.size > codes.size)
+                codes = codes.copyOf(maxOf(count + chunk.size, codes.size + codes.size / 2))
+            chunk.copyInto(codes, count)
+            count += chunk.size
+        }
+        return if (count == codes.size) codes else codes.copyOf(count)
+    }
+
+    val chunkCodes = chunks.chunkFrames * channelCount + header.chunkStateCodes
+    offsets.indices.forEach { chunk -> offsets[chunk] = chunk * chunkCodes }
+    if (header.codec == PayloadCodec.PCM) return IntArray(first + samples.size).also { codes ->
+        samples.quantizeInto(0, samples.size, maxValue, header.levels, header.lossless, codes, first)
+    }
+
+    val state = LowLevelCodecOperations.imaAdpcmStateOf(channelCount)
+    return IntArray(first + header.sampleCodeCount.toInt()).also { codes ->
+        frameBlocks(chunks.chunkFrames).forEach { block ->
+            val chunk = (block.firstFrame / chunks.chunkFrames).toInt()
+            block.samples.quantizeChunk(block.frames * channelCount, header, maxValue, state, codes, first + offsets[chunk])
+        }
+    }
+}
+
+/**
+ * Codes the samples until to, a chunk of whole frames, into codes from offset on with a codec of
+ * fixed width, [CarrierHeader.chunkStateCodes] and a code per sample
+ *
+ * @param state of IMA ADPCM, see [LowLevelCodecOperations.imaAdpcmStateOf], carried on from chunk to chunk
+ */
+private fun LongArray.quantizeChunk(
+    to: Int,
+    header: CarrierHeader,
+    maxValue: Long,
+    state: IntArray,
+    codes: IntArray,
+    offset: Int
+) {
+    when (header.codec) {
+        PayloadCodec.MU_LAW -> LowLevelCodecOperations.encodeMuLaw(this, 0, to, header.validBits, codes, offset)
+        PayloadCodec.IMA_ADPCM -> LowLevelCodecOperations.encodeImaAdpcm(
+            this, 0, to, header.validBits, header.channelCount.coerceAtLeast(1), state, codes, offset
+        )
+        PayloadCodec.RICE -> throw IllegalArgumentException("rice codes are not of a fixed width")
+        PayloadCodec.PCM ->
+            LowLevelQuantizeOperations.quantize(this, 0, to, maxValue, header.levels, header.lossless, codes, offset)
+    }
+}
+
+/**
+ * About how many codes the samples take with the codec of the header, exactly as many for a codec
+ * of fixed width
+ */
+val CarrierHeader.expectedCodeCount: Long
+    get() = if (codec.variableLength) expectedCodesOf(sampleCount, validBits) else sampleCodeCount
+
+/**
+ * Rice is guessed to halve the bits of the samples, about what it makes of music
+ */
+private fun expectedCodesOf(samples: Long, validBits: Int) =
+    samples * validBits.coerceIn(1, Long.SIZE_BITS) / 2 / RiceEncoder.CODE_BITS + 1
+
+/**
+ * @return the chunks of the samples of the header, every chunk at offset 0 until it is coded
+ */
+fun CarrierHeader.emptyChunkIndex(): ChunkIndex {
+    val chunkFrames = ChunkIndex.framesOf(sampleRate)
+    return ChunkIndex(chunkFrames, IntArray(ChunkIndex.countOf(frameCount.toLong(), chunkFrames)))
+}
+
+/**
+ * @return the codes of the tables of a payload with these chunks and no segments, [CarrierHeader.tableCount]
+ * of them
+ */
+fun CarrierHeader.tableCodesOf(chunks: ChunkIndex): IntArray {
+    val codes = IntArray(tableCount)
+    if (tableWords > 0) LowLevelPackedOperations.wordsToSamples(PayloadTables(chunks = chunks).toWords(), codes, 0, sampleBits)
+    return codes
+}
+
+/**
+ * The payload of [quantize] a block at a time, for audio read a block at a time: the codes of the
+ * tables first, and then the codes of each block. Only a block of codes is made at a time.
+ *
+ * Where the chunks of a [PayloadCodec.variableLength] codec start is only known once they are
+ * coded, so its tables come first as zeros, the room they take, and [chunks] is filled as the
+ * blocks are coded. Once the last block is read, the codes of [tableCodesOf] the chunks go over
+ * that room and the header is told how many codes there are, see [withCodeCount].
+ *
+ * @param this blocks of a chunk of frames each, see [ChunkIndex.framesOf], the last one holding
+ * what is left
+ * @param maxValue the largest magnitude of all the samples, see [maxValue]
+ * @param chunks of the header, see [emptyChunkIndex], filled with the offsets of the chunks
+ */
+fun Sequence<FrameBlock>.quantize(
+    header: CarrierHeader,
+    maxValue: Long,
+    chunks: ChunkIndex = header.emptyChunkIndex()
+): Sequence<IntArray> {
+    val blocks = this
+    val channelCount = header.channelCount.coerceAtLeast(1)
+    val chunkFrames = chunks.chunkFrames
+    val chunkSamples = chunkFrames * channelCount
+    val chunkCodes = chunkSamples + header.chunkStateCodes
+    if (!header.codec.variableLength) chunks.offsets.indices.forEach { chunks.offsets[it] = it * chunkCodes }
+
+    return sequence {
+        yield(if (header.codec.variableLength) IntArray(header.tableCount) else header.tableCodesOf(chunks))
+        /** the room of a chunk is kept from a chunk to the next, only a chunk of codes is ever held */
+        val encoder =
+            if (header.codec != PayloadCodec.RICE) null
+            else RiceEncoder(channelCount, expectedCodesOf(chunkSamples.toLong(), header.validBits).toInt())
+        val state = LowLevelCodecOperations.imaAdpcmStateOf(channelCount)
+        var codeCount = 0
+        blocks.forEach { block ->
+            require(block.firstFrame % chunkFrames == 0L && block.frames <= chunkFrames) { "a block is not a chunk" }
+            val samples = block.frames * channelCount
+            val codes = if (encoder == null) {
+                IntArray(header.chunkStateCodes + samples).also {
+                    block.samples.quantizeChunk(samples, header, maxValue, state, it, 0)
+                }
+            } else {
+                chunks.offsets[(block.firstFrame / chunkFrames).toInt()] = codeCount
+                for (frame in 0 until block.frames step BLOCK_FRAMES)
+                    encoder.encodeBlock(block.samples, frame * channelCount, minOf(BLOCK_FRAMES, block.frames - frame))
+                encoder.takeChunk()
+            }
+            codeCount += codes.size
+            yield(codes)
+        }
+    }
+}
+
+/**
+ * @return the revealed samples back at the scale of the original audio, the payload tables left out
+ */
+fun IntArray.dequantize(header: CarrierHeader): LongArray = dequantize(header, tablesOf(header))
+
+private fun IntArray.dequantize(header: CarrierHeader, tables: PayloadTables): LongArray {
+    val codes = if (header.tableWords == 0) this else copyOfRange(minOf(header.tableCount, size), size)
+    val chunks = tables.chunks ?: return codes.dequantizeSamples(header)
+    return codes.dequantizeChunks(header, chunks, 0, chunks.chunkCount)
+}
+
+/**
+ * [dequantize] a chunk at a time, straight into a store as wide as the samples need
+ */
+private fun IntArray.dequantizeInto(header: CarrierHeader, tables: PayloadTables): SampleStore {
+    val chunks = tables.chunks
+        ?: return SampleStore.of(dequantize(header, tables), header.validBits)
+    val first = if (header.tableWords == 0) 0 else minOf(header.tableCount, size)
+    val channelCount = header.channelCount.coerceAtLeast(1)
+    val sampleCount = header.frameCount.toLong() * channelCount
+    val store = SampleStore.ofSize(
+        (if (header.codec.variableLength || header.chunkStateCodes > 0) sampleCount
+        else minOf(size - first.toLong(), sampleCount)).toInt(),
+        header.validBits
+    )
+    /** a pcm code is a sample of its own, the chunks one after another */
+    if (header.codec == PayloadCodec.PCM) return store.also {
+        it.dequantizeFrom(this, first, first + it.size, header.levels, header.maxValue.toLong(), header.lossless, 0)
+    }
+    for (chunk in 0 until chunks.chunkCount) {
+        val offset = chunk * chunks.chunkFrames * channelCount
+        if (offset >= store.size) break
+        val from = minOf(first + chunks.offsets[chunk], size)
+        val to = minOf(first + chunks.endOf(chunk, (size - first).toLong()), size.toLong()).toInt()
+        val samples = copyOfRange(from, to).dequantizeChunks(header, chunks, chunk, chunk + 1)
+        store.copyFrom(samples, offset, 0, minOf(samples.size, store.size - offset))
+    }
+    return store
+}
+
+/**
+ * @throws ForeignImageException if the payload does not start with whole tables
+ */
+fun IntArray.tablesOf(header: CarrierHeader): PayloadTables {
+    if (header.tableWords == 0) return PayloadTables()
+    val words = IntArray(header.tableWords)
+    LowLevelPackedOperations.samplesToWords(this, 0, header.sampleBits, words)
+    return try {
+        PayloadTables.fromWords(words)
+    } catch (e: IndexOutOfBoundsException) {
+        throw ForeignImageException("broken payload tables")
+    }
+}
+
+/**
+ * @param this the codes of the chunks from until to, from the first code of the first one on
+ * @return the samples of these chunks alone
+ */
+internal fun IntArray.dequantizeChunks(header: CarrierHeader, chunks: ChunkIndex, from: Int, to: Int): LongArray {
+    val channelCount = header.channelCount.coerceAtLeast(1)
+    val firstFrame = from.toLong() * chunks.chunkFrames
+    val lastFrame = minOf(to.toLong() * chunks.chunkFrames, header.frameCount.toLong()).coerceAtLeast(firstFrame)
+    val samples = ((lastFrame - firstFrame) * channelCount).toInt()
+    val first = if (from < chunks.chunkCount) chunks.offsets[from] else 0
+    when (header.codec) {
+        PayloadCodec.RICE -> return LongArray(samples).also {
+            for (chunk in from until to) {
+                RiceDecoder(this, chunks.offsets[chunk] - first, channelCount).run {
+                    forEachBlock(header, chunks, chunk, chunk + 1, firstFrame) { offset, frames ->
+                        decodeBlock(it, offset, frames)
+                    }
+                }
+            }
+        }
+        PayloadCodec.IMA_ADPCM -> return LongArray(samples).also {
+            val state = LowLevelCodecOperations.imaAdpcmStateOf(channelCount)
+            for (chunk in from until to) {
+                val codeFrom = chunks.offsets[chunk] - first
+                if (codeFrom >= size) break
+                val codeTo = minOf(chunks.endOf(chunk, first.toLong() + size) - first, size.toLong()).toInt()
+                val offset = ((chunk * chunks.chunkFrames.toLong() - firstFrame) * channelCount).toInt()
+                LowLevelCodecOperations.decodeImaAdpcm(this, codeFrom, codeTo, header.validBits, channelCount, state, it, offset)
+            }
+        }
+        else -> return copyOf(minOf(size, samples)).dequantizeSamples(header)
+    }
+}
+
+private fun IntArray.dequantizeSamples(header: CarrierHeader): LongArray {
+    return when (header.codec) {
+        PayloadCodec.MU_LAW -> LongArray(size).also {
+            LowLevelCodecOperations.decodeMuLaw(this, header.validBits, it)
+        }
+        /** a single chunk, its state first */
+        PayloadCodec.IMA_ADPCM -> LongArray(maxOf(0, size - header.chunkStateCodes)).also {
+            val channelCount = header.channelCount.coerceAtLeast(1)
+            LowLevelCodecOperations.decodeImaAdpcm(
+                this, 0, size, header.validBits, channelCount, LowLevelCodecOperations.imaAdpcmStateOf(channelCount), it, 0
+            )
+        }
+        PayloadCodec.RICE -> LongArray(header.sampleCount.toInt()).also { samples ->
+            RiceDecoder(this, header.channelCount.coerceAtLeast(1)).run {
+                forEachBlock(header, ChunkIndex(header.frameCount.coerceAtLeast(1), intArrayOf(0)), 0, 1) { offset, frames ->
+                    decodeBlock(samples, offset, frames)
+                }
+            }
+        }
+        PayloadCodec.PCM -> LongArray(size).also {
+            LowLevelQuantizeOperations.dequantize(
+                this, 0, size, header.levels, header.maxValue.toLong(), header.lossless, it, 0
+            )
+        }
+    }
+}
+
+/**
+ * Hands every block of [BLOCK_FRAMES] frames of the chunks from until to, the last block of a
+ * chunk holding what is left of it
+ *
+ * @param firstFrame the frame at offset 0 of the samples the blocks are in
+ */
+private inline fun forEachBlock(
+    header: CarrierHeader,
+    chunks: ChunkIndex,
+    from: Int,
+    to: Int,
+    firstFrame: Long = 0,
+    block: (offset: Int, frames: Int) -> Unit
+) {
+    val channelCount = header.channelCount.coerceAtLeast(1)
+    val lastFrame = minOf(to.toLong() * chunks.chunkFrames, header.frameCount.toLong())
+    for (chunk in from until to) {
+        val chunkEnd = minOf((chunk + 1L) * chunks.chunkFrames, lastFrame)
+        for (frame in chunk.toLong() * chunks.chunkFrames until chunkEnd step BLOCK_FRAMES.toLong()) {
+            block(((frame - firstFrame) * channelCount).toInt(), minOf(BLOCK_FRAMES.toLong(), chunkEnd - frame).toInt())
+        }
+    }
+}
+
+/**
+ * @param payload revealed from an image holding this header
+ * @return the audio with its silence back in place, if it has been trimmed for a rebuilt timeline
+ * @throws ForeignImageException if the payload tables are broken
+ */
+fun CarrierHeader.toWaver(payload: IntArray): Waver {
+    val tables = payload.tablesOf(this)
+    val waver = Waver(
+        payload.dequantizeInto(this, tables),
+        sampleRate.toLong(),
+        channelCount,
+        frameCount.toLong(),
+        validBits
+    )
+    val segments = tables.segments ?: return waver
+    return waver.restoreSilence(segments)
 }
\ No newline at end of file
@@ -1,13 +1,26 @@
 package ir.mrahimy.conceal.data.capsules
 
 import android.graphics.Bitmap
-import ir.mrahimy.conceal.data.Rgb
+import ir.mrahimy.conceal.data.PixelBuffer
+import ir.mrahimy.conceal.util.Checkpointer
+import ir.mrahimy.conceal.util.PackedLayout
+import ir.mrahimy.conceal.util.PayloadBlocks
 import kotlinx.coroutines.Job
 
+/**
+ * @param blocks if any, the payload made a block at a time as it is put instead of
+ * [audioDataAsRgbList], holding [payloadCount] samples in all, or about as many
+ * @param onPut for [blocks], puts over the pixels what is only known once every block is put
+ */
 data class ConcealInputData(
-    val rgbList: List<Rgb>,
-    val position: Int,
+    val pixels: PixelBuffer,
+    val layout: PackedLayout,
     val audioDataAsRgbList: IntArray,
     val refImage: Bitmap,
-    val job: Job
+    val job: Job,
+    val fromSlot: Long = 0,
+    val checkpointer: Checkpointer? = null,
+    val blocks: PayloadBlocks? = null,
+    val payloadCount: Long = audioDataAsRgbList.size.toLong(),
+    val onPut: (PixelBuffer.(count: Long) -> Unit)? = null
 )
\ No newline at end of file
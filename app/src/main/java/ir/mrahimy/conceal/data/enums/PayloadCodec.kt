@@ -0,0 +1,34 @@
+package ir.mrahimy.conceal.data.enums
+
+import ir.mrahimy.conceal.util.lowlevel.LowLevelCodecOperations
+import ir.mrahimy.conceal.util.lowlevel.RiceEncoder
+
+/**
+ * How the samples are coded before they are concealed
+ *
+ * @param id kept inside the header, 0 for the images concealed before codecs were recorded
+ * @param codeBits how many bits a code takes
+ * @param variableLength whether samples become a stream of codes rather than one code each
+ */
+enum class PayloadCodec(val id: Int, val codeBits: Int, val variableLength: Boolean = false) {
+    /**
+     * The samples themselves, sampleDepth bits of magnitude and a sign
+     */
+    PCM(0, 0),
+    MU_LAW(1, LowLevelCodecOperations.MU_LAW_BITS),
+    IMA_ADPCM(2, LowLevelCodecOperations.IMA_ADPCM_BITS),
+
+    /**
+     * Bit exact whatever the valid bits, see [RiceEncoder]
+     */
+    RICE(3, RiceEncoder.CODE_BITS, true);
+
+    /**
+     * @return bits a sample takes inside the payload
+     */
+    fun sampleBitsOf(sampleDepth: Int) = if (this == PCM) sampleDepth + 1 else codeBits
+
+    companion object {
+        fun of(id: Int) = values().firstOrNull { it.id == id }
+    }
+}
@@ -0,0 +1,19 @@
+package ir.mrahimy.conceal.data.enums
+
+/**
+ * What happens to the silent spans of the audio before it is concealed
+ */
+enum class SilenceTrimming {
+    OFF,
+
+    /**
+     * Silence is dropped for good, the speech is revealed back to back
+     */
+    DROP,
+
+    /**
+     * Silence is dropped and a table of the kept spans goes along, so reveal puts back silence as
+     * long as it was
+     */
+    KEEP_TIMELINE
+}
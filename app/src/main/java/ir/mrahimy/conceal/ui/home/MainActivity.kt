@@ -20,7 +20,8 @@ import ir.mrahimy.conceal.data.enums.ChooserType
 import ir.mrahimy.conceal.ui.parse.ParseActivity
 import ir.mrahimy.conceal.ui.slide.SlideShowActivity
 import ir.mrahimy.conceal.util.arch.EventObsrver
-import ir.mrahimy.conceal.util.putAllSignedIntegers
+import ir.mrahimy.conceal.util.putAllSignedIntegersInParallel
+import ir.mrahimy.conceal.util.putAllSignedIntegersStreamed
 import kotlinx.android.synthetic.main.activity_main.*
 import org.koin.android.ext.android.inject
 import org.koin.androidx.viewmodel.ext.android.viewModel
@@ -67,10 +68,28 @@ class MainActivity : BaseActivity<MainActivityViewModel, ActivityMainBinding>()
         viewModel.onStartRgbListPutAll.observe(this,
             EventObsrver { input ->
                 input.apply {
-                    rgbList.putAllSignedIntegers(position, audioDataAsRgbList, refImage, job)
-                        .observe(this@MainActivity, Observer {
-                            viewModel.onUpdateInserting(it)
-                        })
+                    val results = blocks?.let {
+                        pixels.putAllSignedIntegersStreamed(
+                            layout,
+                            payloadCount,
+                            it,
+                            refImage,
+                            job,
+                            fromSlot,
+                            checkpointer,
+                            onPut
+                        )
+                    } ?: pixels.putAllSignedIntegersInParallel(
+                        layout,
+                        audioDataAsRgbList,
+                        refImage,
+                        job,
+                        fromSlot,
+                        checkpointer
+                    )
+                    results.observe(this@MainActivity, Observer {
+                        viewModel.onUpdateInserting(it)
+                    })
                 }
             })
 
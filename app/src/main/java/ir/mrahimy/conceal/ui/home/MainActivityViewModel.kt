@@ -3,13 +3,18 @@ package ir.mrahimy.conceal.ui.home
 import android.app.Application
 import android.content.Intent
 import android.graphics.Bitmap
+import androidx.annotation.StringRes
 import androidx.lifecycle.LiveData
+import androidx.lifecycle.MediatorLiveData
 import androidx.lifecycle.MutableLiveData
 import androidx.lifecycle.map
 import androidx.lifecycle.viewModelScope
 import com.github.squti.androidwaverecorder.WaveRecorder
 import ir.mrahimy.conceal.R
 import ir.mrahimy.conceal.base.BaseAndroidViewModel
+import ir.mrahimy.conceal.data.CapacityPlan
+import ir.mrahimy.conceal.data.CarrierHeader
+import ir.mrahimy.conceal.data.ConcealPlan
 import ir.mrahimy.conceal.data.LocalResult
 import ir.mrahimy.conceal.data.MediaState
 import ir.mrahimy.conceal.data.Recording
@@ -20,36 +25,68 @@ import ir.mrahimy.conceal.data.capsules.SaveBitmapInfoCapsule
 import ir.mrahimy.conceal.data.capsules.SaveWaveInfoCapsule
 import ir.mrahimy.conceal.data.capsules.empty
 import ir.mrahimy.conceal.data.capsules.save
+import ir.mrahimy.conceal.data.emptyChunkIndex
 import ir.mrahimy.conceal.data.enums.FileSavingState
+import ir.mrahimy.conceal.data.enums.PayloadCodec
+import ir.mrahimy.conceal.data.enums.SilenceTrimming
+import ir.mrahimy.conceal.data.expectedCodeCount
 import ir.mrahimy.conceal.data.fill
-import ir.mrahimy.conceal.data.mapToRgbValue
-import ir.mrahimy.conceal.data.mapToUniformDouble
 import ir.mrahimy.conceal.data.maxValue
+import ir.mrahimy.conceal.data.quantize
+import ir.mrahimy.conceal.data.tableCodesOf
+import ir.mrahimy.conceal.data.toCarrierHeader
+import ir.mrahimy.conceal.data.withCodeCount
+import ir.mrahimy.conceal.data.withPayloadOf
 import ir.mrahimy.conceal.net.req.makeAudioInfoMap
 import ir.mrahimy.conceal.net.req.makeImageInfoMap
 import ir.mrahimy.conceal.repository.InfoRepository
 import ir.mrahimy.conceal.repository.RecordingRepository
+import ir.mrahimy.conceal.util.BINARY_HEADER_PIXELS
+import ir.mrahimy.conceal.util.CHECKPOINT_FILE_NAME
+import ir.mrahimy.conceal.util.Checkpointer
+import ir.mrahimy.conceal.util.DEFAULT_LSB_DEPTH
 import ir.mrahimy.conceal.util.HugeFileException
+import ir.mrahimy.conceal.util.PackedLayout
+import ir.mrahimy.conceal.util.TILE_PIXELS
 import ir.mrahimy.conceal.util.arch.Event
 import ir.mrahimy.conceal.util.arch.StatelessEvent
 import ir.mrahimy.conceal.util.arch.combine
+import ir.mrahimy.conceal.util.checkpointKeyOf
+import ir.mrahimy.conceal.util.concealTiled
+import ir.mrahimy.conceal.util.fitInto
+import ir.mrahimy.conceal.util.forgetStaleCheckpoint
+import ir.mrahimy.conceal.util.ktx.decodePixelCount
 import ir.mrahimy.conceal.util.ktx.getNameFromPath
 import ir.mrahimy.conceal.util.ktx.getPathJava
-import ir.mrahimy.conceal.util.ktx.getRgbArray
+import ir.mrahimy.conceal.util.ktx.getPixelBuffer
 import ir.mrahimy.conceal.util.ktx.loadBitmap
 import ir.mrahimy.conceal.util.ktx.parseWaver
 import ir.mrahimy.conceal.util.ktx.removeEmulatedPath
+import ir.mrahimy.conceal.util.ktx.toValidPath
+import ir.mrahimy.conceal.util.loadPreviewBitmap
+import ir.mrahimy.conceal.util.lowlevel.LowLevelPackedOperations.MIN_DEPTH
 import ir.mrahimy.conceal.util.lowlevel.WavUtil
 import ir.mrahimy.conceal.util.lowlevel.Wave
 import ir.mrahimy.conceal.util.mapToErrorStringRes
-import ir.mrahimy.conceal.util.putWaverHeaderInfo
-import ir.mrahimy.conceal.util.remove3Lsb
+import ir.mrahimy.conceal.util.parseWaverTiled
+import ir.mrahimy.conceal.util.planCapacity
+import ir.mrahimy.conceal.util.planConceal
+import ir.mrahimy.conceal.util.putCarrierHeader
+import ir.mrahimy.conceal.util.putOver
+import ir.mrahimy.conceal.util.readWaveFormat
+import ir.mrahimy.conceal.util.readWavePeak
+import ir.mrahimy.conceal.util.removeLsb
+import ir.mrahimy.conceal.util.shouldTile
+import ir.mrahimy.conceal.util.toReadErrorStringRes
+import ir.mrahimy.conceal.util.trimSilence
+import ir.mrahimy.conceal.util.useFrameBlocks
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.Job
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import java.io.File
+import java.io.IOException
 import java.util.Date
 
 class MainActivityViewModel(
@@ -93,6 +130,60 @@ class MainActivityViewModel(
 
     val isInputHintVisible = _inputImage.map { it == null }
 
+    /**
+     * Whether the input image is too large to be decoded whole, it is then concealed a band at a
+     * time and [inputImage] is only a smaller copy of it
+     */
+    private var isInputImageTiled = false
+
+    /**
+     * How many lsb of each layer of the input image hold the audio, traded between image
+     * fidelity and capacity
+     */
+    val lsbDepth = MutableLiveData<Int>(DEFAULT_LSB_DEPTH)
+    val lsbDepthPosition = lsbDepth.map { it - MIN_DEPTH }
+
+    /**
+     * How many bits of each sample are kept, audio with no more valid bits is kept bit exact
+     */
+    val sampleDepth = MutableLiveData<Int>(CarrierHeader.DEFAULT_SAMPLE_DEPTH)
+    val sampleDepthPosition = sampleDepth.map { CarrierHeader.SAMPLE_DEPTHS.indexOf(it) }
+
+    /**
+     * How the samples are coded. Against the samples of the default [sampleDepth], 9 bits each,
+     * mu-law fits 9/8 times as much audio and IMA ADPCM 9/4 times, more against deeper samples.
+     */
+    val payloadCodec = MutableLiveData<PayloadCodec>(PayloadCodec.PCM)
+    val payloadCodecPosition = payloadCodec.map { it.ordinal }
+
+    /**
+     * Whether audio too long for the input image is downmixed and resampled until it fits,
+     * rather than being refused
+     */
+    val fitAudioToImage = MutableLiveData<Boolean>(true)
+
+    /**
+     * What happens to the silent spans of the audio, dropping them saves as much room and work as
+     * there is silence
+     */
+    val silenceTrimming = MutableLiveData<SilenceTrimming>(SilenceTrimming.OFF)
+    val silenceTrimmingPosition = silenceTrimming.map { it.ordinal }
+
+    private var capacityJob: Job? = null
+
+    /**
+     * How many samples the input image holds for every lsb depth and sample depth, the bounds of
+     * the image decoded off the main thread
+     */
+    val capacityPlan: LiveData<List<CapacityPlan>> = MediatorLiveData<List<CapacityPlan>>().apply {
+        addSource(inputImagePath) { path ->
+            capacityJob?.cancel()
+            capacityJob = viewModelScope.launch {
+                value = if (path == null) null else withContext(Dispatchers.IO) { planCapacity(path.decodePixelCount()) }
+            }
+        }
+    }
+
     private val inputWavePath = MutableLiveData<String>(null)
     private val _inputWave = inputWavePath.map {
         if (it == null) null else File(it)
@@ -135,9 +226,7 @@ class MainActivityViewModel(
     private val _waveInfo = _inputWave.map {
         if (it == null) return@map null
         try {
-            WavUtil.fromWaveData(
-                Wave.WavFile.openWavFile(it)
-            ).apply { maxValue = data.maxValue() }
+            it.readWaveFormat()
         } catch (e: Wave.WavFileException) {
             e.printStackTrace()
             val errorStringRes = e.code.mapToErrorStringRes()
@@ -150,6 +239,70 @@ class MainActivityViewModel(
         }
     }
 
+    private var planJob: Job? = null
+
+    /**
+     * Whether the audio fits inside the image, worked out from the size of the image and the
+     * header of the wave file as soon as both are chosen, and again whenever an input or an
+     * option changes
+     */
+    val concealPlan: LiveData<ConcealPlan> = MediatorLiveData<ConcealPlan>().apply {
+        addSource(inputImagePath) { replan() }
+        addSource(inputWavePath) { replan() }
+        addSource(lsbDepth) { replan() }
+        addSource(sampleDepth) { replan() }
+        addSource(payloadCodec) { replan() }
+        addSource(fitAudioToImage) { replan() }
+        addSource(silenceTrimming) { replan() }
+    }
+
+    /**
+     * Plans off the main thread, the image bounds being decoded and the wave file opened, the plan
+     * of the latest inputs winning
+     */
+    private fun MediatorLiveData<ConcealPlan>.replan() {
+        planJob?.cancel()
+        planJob = viewModelScope.launch {
+            value = planOfInputs()
+        }
+    }
+
+    /**
+     * @return the plan of the current inputs and options, null if either input is missing or the
+     * wave file cannot be read
+     */
+    private suspend fun planOfInputs(): ConcealPlan? {
+        val imagePath = inputImagePath.value ?: return null
+        val wavePath = inputWavePath.value ?: return null
+        val lsbDepth = lsbDepth.value ?: DEFAULT_LSB_DEPTH
+        val sampleDepth = sampleDepth.value ?: CarrierHeader.DEFAULT_SAMPLE_DEPTH
+        val codec = payloadCodec.value ?: PayloadCodec.PCM
+        val fitAudio = fitAudioToImage.value == true
+        val trimsSilence = (silenceTrimming.value ?: SilenceTrimming.OFF) != SilenceTrimming.OFF
+        return withContext(Dispatchers.IO) {
+            try {
+                planConceal(imagePath, File(wavePath), lsbDepth, sampleDepth, codec, fitAudio, trimsSilence)
+            } catch (e: Wave.WavFileException) {
+                null
+            } catch (e: IOException) {
+                null
+            }
+        }
+    }
+
+    /**
+     * How much the input image holds with the chosen depths, and how long an audio of the format
+     * of the input wave file that is, once one is chosen
+     */
+    val capacitySummary = combine(capacityPlan, concealPlan, lsbDepth, sampleDepth) { plans, concealPlan, lsbDepth, sampleDepth ->
+        if (concealPlan != null) {
+            return@combine getString(R.string.capacity_duration, concealPlan.capacity, concealPlan.maxDurationMs / 1000)
+        }
+        val plan = plans?.firstOrNull { it.lsbDepth == lsbDepth && it.sampleDepth == sampleDepth }
+            ?: return@combine null
+        getString(R.string.capacity_samples, plan.samples)
+    }
+
     private val _isDataExceeding = MutableLiveData<Boolean>(false)
     val isOutputHintVisible =
         combine(
@@ -157,9 +310,10 @@ class MainActivityViewModel(
             _inputWave,
             _waveInfo,
             _inputError,
-            _isDataExceeding
+            _isDataExceeding,
+            concealPlan
         )
-        { inputImage, inputWave, waveInfo, inputError, isDataExceeding ->
+        { inputImage, inputWave, waveInfo, inputError, isDataExceeding, concealPlan ->
             if (inputImage == null) {
                 _outputImageLabel.postValue(getString(R.string.choose_input_image))
                 return@combine true
@@ -170,6 +324,13 @@ class MainActivityViewModel(
                 return@combine true
             }
 
+            if (concealPlan?.fits == false) {
+                _outputImageLabel.postValue(
+                    getString(R.string.data_exceeds_duration, concealPlan.maxDurationMs / 1000)
+                )
+                return@combine true
+            }
+
             if (waveInfo == null || isDataExceeding == true) {
                 _outputImageLabel.postValue(inputError)
                 return@combine true
@@ -203,8 +364,7 @@ class MainActivityViewModel(
         }
         val image = _image ?: return@combine null
         val waveFile = _waveFile ?: return@combine null
-        if (isConcealActive)
-            putWaveFileIntoImage(image, waveFile)
+        if (isConcealActive) putWaveFileIntoImage(image, waveFile)
         return@combine 1
     }
 
@@ -293,22 +453,78 @@ class MainActivityViewModel(
     val onDataExceeds: LiveData<StatelessEvent>
         get() = _onDataExceeds
 
+    /**
+     * @param waveFormat the format of the input wave file, its samples are only read from here on
+     */
     private fun putWaveFileIntoImage(
         image: Bitmap,
-        waveFile: Waver
+        waveFormat: Waver
     ) = viewModelScope.launch {
-        val rgbList = image.getRgbArray().remove3Lsb()
-        val audioDataAsRgbList = waveFile.data.mapToUniformDouble().mapToRgbValue()
+        val input = _inputWave.value ?: return@launch
+        /** the hint tells why, see [isOutputHintVisible] */
+        val plan = planOfInputs()
+        if (plan?.fits == false) return@launch
+        if (canStream(plan)) {
+            concealStreamed(image, input, waveFormat)
+            return@launch
+        }
+
+        val waveFile = try {
+            withContext(Dispatchers.IO) {
+                WavUtil.fromWaveData(Wave.WavFile.openWavFile(input)).apply { maxValue = samples.maxValue() }
+            }
+        } catch (e: Wave.WavFileException) {
+            tellReadError(e)
+            return@launch
+        } catch (e: IOException) {
+            tellReadError(e)
+            return@launch
+        }
+        val (plainHeader, audioDataAsRgbList) = withContext(Dispatchers.Default) {
+            val trimmed = when (silenceTrimming.value) {
+                SilenceTrimming.DROP -> waveFile.trimSilence(false)
+                SilenceTrimming.KEEP_TIMELINE -> waveFile.trimSilence(true)
+                else -> waveFile
+            }
+            val trimmedHeader = trimmed.toCarrierHeader(
+                lsbDepth.value ?: DEFAULT_LSB_DEPTH,
+                sampleDepth.value ?: CarrierHeader.DEFAULT_SAMPLE_DEPTH,
+                payloadCodec.value ?: PayloadCodec.PCM
+            )
+            if (fitAudioToImage.value != true) return@withContext trimmedHeader to trimmed.quantize(trimmedHeader)
+
+            val capacity = capacityOf(image, trimmedHeader)
+            /** compressed codes may fit as they are, the fitting formats assume they do not shrink */
+            if (trimmedHeader.codec.variableLength) {
+                val codes = trimmed.quantize(trimmedHeader)
+                if (codes.size - trimmedHeader.tableCount <= capacity) return@withContext trimmedHeader to codes
+            }
+            val audio = trimmed.fitInto(capacity)
+            val header = audio.toCarrierHeader(trimmedHeader.lsbDepth, trimmedHeader.sampleDepth, trimmedHeader.codec)
+            header to audio.quantize(header)
+        }
+        val header = plainHeader.withPayloadOf(audioDataAsRgbList)
+        if (isInputImageTiled) {
+            concealTiled(image, header, audioDataAsRgbList)
+            return@launch
+        }
+
+        val checkpointer = checkpointerOf(header) ?: return@launch
+        val checkpoint = withContext(Dispatchers.IO) { checkpointer.load() }
         try {
             concealJob = Job()
+            val pixels = checkpoint?.pixels ?: image.getPixelBuffer().removeLsb(header.lsbDepth)
+            val position = checkpoint?.startingPosition ?: pixels.putCarrierHeader(header)
             _onStartRgbListPutAll.postValue(
                 Event(
                     ConcealInputData(
-                        rgbList,
-                        rgbList.putWaverHeaderInfo(waveFile),
+                        pixels,
+                        PackedLayout(pixels.size, position, header.lsbDepth, header.sampleBits),
                         audioDataAsRgbList,
                         image,
-                        concealJob
+                        concealJob,
+                        checkpoint?.slotsDone ?: 0,
+                        checkpointer
                     )
                 )
             )
@@ -318,6 +534,149 @@ class MainActivityViewModel(
         }
     }
 
+    /**
+     * Whether the audio can go into the image as it is read, a block at a time: it fits as it is,
+     * or it is compressed and refused only if it does not fit once coded. The rest still loads the
+     * whole audio: a tiled image is concealed from a payload in memory, trimming finds the silence
+     * of the whole audio first and fitting resamples the whole of it.
+     */
+    private fun canStream(plan: ConcealPlan?) = !isInputImageTiled &&
+            (silenceTrimming.value ?: SilenceTrimming.OFF) == SilenceTrimming.OFF &&
+            (plan?.fitsAsIs == true || payloadCodec.value?.variableLength == true && fitAudioToImage.value != true)
+
+    /**
+     * Reads the input wave file a block at a time, once for its peak unless the codec is lossless
+     * and once to put it, so only a few blocks of it are ever in memory however long it is
+     */
+    private suspend fun concealStreamed(image: Bitmap, input: File, waveFormat: Waver) {
+        val codec = payloadCodec.value ?: PayloadCodec.PCM
+        val audio = try {
+            withContext(Dispatchers.IO) {
+                if (codec.variableLength) waveFormat.copy()
+                else waveFormat.copy().apply { maxValue = input.readWavePeak() }
+            }
+        } catch (e: Wave.WavFileException) {
+            tellReadError(e)
+            return
+        } catch (e: IOException) {
+            tellReadError(e)
+            return
+        }
+        val header = audio.toCarrierHeader(
+            lsbDepth.value ?: DEFAULT_LSB_DEPTH,
+            sampleDepth.value ?: CarrierHeader.DEFAULT_SAMPLE_DEPTH,
+            codec
+        )
+
+        val checkpointer = checkpointerOf(header) ?: return
+        val checkpoint = withContext(Dispatchers.IO) { checkpointer.load() }
+        concealJob = Job()
+        val pixels = checkpoint?.pixels
+            ?: withContext(Dispatchers.Default) { image.getPixelBuffer().removeLsb(header.lsbDepth) }
+        val position = checkpoint?.startingPosition ?: pixels.putCarrierHeader(header)
+        val layout = PackedLayout(pixels.size, position, header.lsbDepth, header.sampleBits)
+        /** filled as the chunks are coded, the tables and the code count of rice are only known then */
+        val chunks = header.emptyChunkIndex()
+        _onStartRgbListPutAll.postValue(
+            Event(
+                ConcealInputData(
+                    pixels,
+                    layout,
+                    IntArray(0),
+                    image,
+                    concealJob,
+                    checkpoint?.slotsDone ?: 0,
+                    checkpointer,
+                    blocks = { put ->
+                        input.useFrameBlocks(chunks.chunkFrames) {
+                            put(it.quantize(header, audio.maxValue, chunks))
+                        }
+                    },
+                    payloadCount = header.tableCount + header.expectedCodeCount,
+                    onPut = { count ->
+                        if (codec.variableLength) {
+                            putCarrierHeader(header.withCodeCount(count - header.tableCount))
+                            putOver(layout, header.tableCodesOf(chunks))
+                        }
+                    }
+                )
+            )
+        )
+    }
+
+    /**
+     * @return how many samples of the header fit inside the input image after its payload tables,
+     * whether the image is [image] itself or a smaller copy of it
+     */
+    private fun capacityOf(image: Bitmap, header: CarrierHeader): Int {
+        val pixelCount =
+            if (isInputImageTiled) inputImagePath.value?.decodePixelCount() ?: 0
+            else image.width * image.height
+        /** the state heading every chunk is left out too, so the fitted samples alone fill the rest */
+        return PackedLayout(pixelCount, BINARY_HEADER_PIXELS, header.lsbDepth, header.sampleBits).capacity -
+                header.tableCount - (header.sampleCodeCount - header.sampleCount).toInt()
+    }
+
+    /**
+     * Keeps the carrier of the conceal of the current inputs in the app storage, so the conceal
+     * goes on from there once restarted
+     */
+    private fun checkpointerOf(header: CarrierHeader): Checkpointer? {
+        val imagePath = inputImagePath.value ?: return null
+        val wavePath = inputWavePath.value ?: return null
+        return Checkpointer(
+            File(getApplication().applicationContext.filesDir, CHECKPOINT_FILE_NAME),
+            checkpointKeyOf(imagePath, wavePath, header)
+        )
+    }
+
+    /**
+     * Conceals from the input file straight into the output file a band of rows at a time, the
+     * preview staying the smaller copy of the input image. A cancelled conceal keeps its partial
+     * output while it is checkpointed, to be carried on by the next conceal of the same inputs.
+     */
+    private fun concealTiled(preview: Bitmap, header: CarrierHeader, samples: IntArray) {
+        val inputImagePath = inputImagePath.value ?: return
+        val cacheDir = getApplication().applicationContext.externalCacheDir?.absolutePath ?: return
+        val checkpointer = checkpointerOf(header) ?: return
+        concealJob = Job()
+        viewModelScope.launch(concealJob + Dispatchers.IO) {
+            val checkpoint = checkpointer.loadTiled()
+            val output = checkpoint?.output ?: File(
+                cacheDir.toValidPath() + "${inputImagePath.getNameFromPath()}_conceal_${Date().time}.png"
+            )
+            var concealed = false
+            var failed = false
+            try {
+                inputImagePath.concealTiled(output, header, samples, checkpointer, checkpoint?.png) { rows, height ->
+                    _concealPercentage.postValue(
+                        ConcealPercentage(1, rows * 100f / height, preview, 0, 0, false)
+                    )
+                }
+                concealed = true
+            } catch (e: HugeFileException) {
+                failed = true
+                tellDataExceeds(e)
+            } catch (e: IOException) {
+                failed = true
+                e.printStackTrace()
+                tellDataExceeds(e)
+            } finally {
+                if (failed) checkpointer.clear()
+                if (!concealed && !checkpointer.isSaved) output.delete()
+            }
+            if (!concealed) return@launch
+
+            _concealPercentage.postValue(
+                ConcealPercentage(1, 100f, preview, 0, (samples.size - 1).coerceAtLeast(0), true)
+            )
+            saveFileJob = Job()
+            withContext(saveFileJob) {
+                saveOutput({ _, _ -> output.absolutePath }) { it.parseWaverTiled() }
+            }
+        }
+    }
+
     private fun tellDataExceeds(e: Exception) {
         val stringRes =
             if (e is HugeFileException) getString(R.string.data_exceeds_on_index, e.index)
@@ -331,11 +690,31 @@ class MainActivityViewModel(
         }
     }
 
+    /**
+     * Tells the audio could not be read, rather than it does not fit
+     */
+    private fun tellReadError(e: Exception) {
+        e.printStackTrace()
+        tellError(e.toReadErrorStringRes())
+    }
+
+    private fun tellError(@StringRes stringRes: Int) {
+        _inputError.postValue(getString(stringRes))
+        viewModelScope.launch {
+            delay(10)
+            cancelConcealJob()
+        }
+    }
+
     init {
         viewModelScope.launch {
             delay(1000)
             _inputImageSelectionTooltip.postValue(R.string.select_image_tooltip)
         }
+        /** a checkpoint of inputs since moved or changed is never picked up again */
+        viewModelScope.launch(Dispatchers.IO) {
+            File(getApplication().applicationContext.filesDir, CHECKPOINT_FILE_NAME).forgetStaleCheckpoint()
+        }
     }
 
     private val _onStopPlaying = MutableLiveData<StatelessEvent>()
@@ -389,56 +768,76 @@ class MainActivityViewModel(
             concealPercentage.data?.let { outputBitmap ->
                 saveFileJob = Job()
                 viewModelScope.launch(saveFileJob + Dispatchers.Default) {
-                    waveFileSavingState.postValue(FileSavingState.SAVING)
-                    getApplication().applicationContext.externalCacheDir?.absolutePath?.let {
-
-                        val inputImagePath = inputImagePath.value ?: return@launch
-                        val inputWavePath = inputWavePath.value ?: return@launch
-                        val imageName = inputImagePath.getNameFromPath()
-                        val bitmapInfo = SaveBitmapInfoCapsule(
+                    saveOutput({ cacheDir, imageName ->
+                        SaveBitmapInfoCapsule(
                             "${imageName}_conceal",
                             Date(),
                             outputBitmap,
                             Bitmap.CompressFormat.PNG
-                        )
-                        val outputImagePath = withContext(saveFileJob + Dispatchers.IO) {
-                            bitmapInfo.save(it)
-                        }
+                        ).save(cacheDir)
+                    }) { outputBitmap.parseWaver() }
+                }
+            }
+        }
+    }
 
-                        _outputBitmapPath.postValue(outputImagePath)
+    /**
+     * Saves the output image, reveals the audio back from it and saves that audio as a recording
+     *
+     * @param saveImage saves the output image into the cache directory, returns its path
+     * @param parseWaver reveals the audio from the saved output image
+     */
+    private suspend fun saveOutput(
+        saveImage: (cacheDir: String, imageName: String) -> String,
+        parseWaver: suspend (outputImagePath: String) -> Waver
+    ) {
+        waveFileSavingState.postValue(FileSavingState.SAVING)
+        getApplication().applicationContext.externalCacheDir?.absolutePath?.let {
+
+            val inputImagePath = inputImagePath.value ?: return
+            val inputWavePath = inputWavePath.value ?: return
+            val imageName = inputImagePath.getNameFromPath()
+            val outputImagePath = withContext(saveFileJob + Dispatchers.IO) {
+                saveImage(it, imageName)
+            }
 
-                        val waver = withContext(saveFileJob + Dispatchers.IO) {
-                            outputBitmap.parseWaver()
-                        }
+            _outputBitmapPath.postValue(outputImagePath)
 
-                        val wavInfo = SaveWaveInfoCapsule("parsed_from_$imageName", Date(), waver)
-                        val parsedWavePath = withContext(saveFileJob + Dispatchers.IO) {
-                            try {
-                                wavInfo.save(it)
-                            } catch (e: ArrayIndexOutOfBoundsException) {
-                                e.printStackTrace()
-                                tellDataExceeds(e)
-                                null
-                            }
-                        }
+            val waver = withContext(saveFileJob + Dispatchers.IO) {
+                parseWaver(outputImagePath)
+            }
 
-                        viewModelScope.launch {
-                            recordingRepository.addRecording(
-                                Recording(
-                                    0L,
-                                    inputImagePath,
-                                    outputImagePath,
-                                    inputWavePath,
-                                    parsedWavePath,
-                                    Date().time
-                                )
-                            )
-                        }
-                    }
-                    waveFileSavingState.postValue(FileSavingState.DONE)
+            val wavInfo = SaveWaveInfoCapsule("parsed_from_$imageName", Date(), waver)
+            val parsedWavePath = withContext(saveFileJob + Dispatchers.IO) {
+                try {
+                    wavInfo.save(it)
+                } catch (e: ArrayIndexOutOfBoundsException) {
+                    e.printStackTrace()
+                    tellDataExceeds(e)
+                    null
+                } catch (e: IOException) {
+                    e.printStackTrace()
+                    null
+                } catch (e: Wave.WavFileException) {
+                    e.printStackTrace()
+                    null
                 }
             }
+
+            viewModelScope.launch {
+                recordingRepository.addRecording(
+                    Recording(
+                        0L,
+                        inputImagePath,
+                        outputImagePath,
+                        inputWavePath,
+                        parsedWavePath,
+                        Date().time
+                    )
+                )
+            }
         }
+        waveFileSavingState.postValue(FileSavingState.DONE)
     }
 
     private val _onStartResultActivity = MutableLiveData<Event<String>>()
@@ -491,7 +890,12 @@ class MainActivityViewModel(
             _isInputImageLoading.postValue(true)
             delay(10)
             inputImagePath.postValue(file)
-            _inputImage.postValue(file.loadBitmap())
+            val (tiled, bitmap) = withContext(Dispatchers.IO) {
+                val tiled = shouldTile(file.decodePixelCount())
+                tiled to if (tiled) file.loadBitmap(TILE_PIXELS) else file.loadBitmap()
+            }
+            isInputImageTiled = tiled
+            _inputImage.postValue(bitmap)
             _isInputImageLoading.postValue(false)
             _concealPercentage.postValue(empty())
             if (_inputWave.value == null) {
@@ -528,7 +932,9 @@ class MainActivityViewModel(
     fun onUpdateInserting(result: LocalResult<ConcealPercentage>) {
         when (result) {
             is LocalResult.Success -> updatePercentage(result.data)
-            is LocalResult.Error -> tellDataExceeds(result.e)
+            is LocalResult.Error ->
+                if (result.stringRes == R.string.data_exceeds) tellDataExceeds(result.e)
+                else tellError(result.stringRes)
         }
     }
 
@@ -550,12 +956,44 @@ class MainActivityViewModel(
 
     fun setRecording(recording: Recording) {
         activateConceal(false)
-        outputBitmapFromRecording.postValue(recording.outputImagePath.loadBitmap())
+        outputBitmapFromRecording.postValue(recording.outputImagePath.loadPreviewBitmap())
         outputImagePathFromRecording.postValue(recording.outputImagePath)
         recording.inputImagePath?.let { selectImageFile(it) }
         selectAudioFile(recording.parsedWavePath)
     }
 
+    /**
+     * @param position of the lsb depth picked, from [MIN_DEPTH] on
+     */
+    fun selectLsbDepth(position: Int) {
+        val depth = MIN_DEPTH + position
+        if (lsbDepth.value != depth) lsbDepth.value = depth
+    }
+
+    /**
+     * @param position of the sample depth picked, in [CarrierHeader.SAMPLE_DEPTHS]
+     */
+    fun selectSampleDepth(position: Int) {
+        val depth = CarrierHeader.SAMPLE_DEPTHS[position]
+        if (sampleDepth.value != depth) sampleDepth.value = depth
+    }
+
+    /**
+     * @param position of the way silence is trimmed, in [SilenceTrimming.values]
+     */
+    fun selectSilenceTrimming(position: Int) {
+        val trimming = SilenceTrimming.values()[position]
+        if (silenceTrimming.value != trimming) silenceTrimming.value = trimming
+    }
+
+    /**
+     * @param position of the codec picked, in [PayloadCodec.values]
+     */
+    fun selectPayloadCodec(position: Int) {
+        val codec = PayloadCodec.values()[position]
+        if (payloadCodec.value != codec) payloadCodec.value = codec
+    }
+
     fun activateConceal(isActive: Boolean) {
         isConcealActive = isActive
     }
@@ -20,24 +20,40 @@ import ir.mrahimy.conceal.net.req.makeImageInfoMap
 import ir.mrahimy.conceal.repository.InfoRepository
 import ir.mrahimy.conceal.repository.RecordingRepository
 import ir.mrahimy.conceal.util.HugeFileException
+import ir.mrahimy.conceal.util.PayloadSeeker
+import ir.mrahimy.conceal.util.StreamingPlayer
+import ir.mrahimy.conceal.util.TILE_PIXELS
 import ir.mrahimy.conceal.util.arch.Event
 import ir.mrahimy.conceal.util.arch.StatelessEvent
 import ir.mrahimy.conceal.util.arch.combine
+import ir.mrahimy.conceal.util.frameAt
+import ir.mrahimy.conceal.util.ktx.decodePixelCount
 import ir.mrahimy.conceal.util.ktx.getNameFromPath
 import ir.mrahimy.conceal.util.ktx.getPathJava
 import ir.mrahimy.conceal.util.ktx.loadBitmap
 import ir.mrahimy.conceal.util.ktx.parseWaver
+import ir.mrahimy.conceal.util.ktx.payloadSeeker
 import ir.mrahimy.conceal.util.ktx.removeEmulatedPath
+import ir.mrahimy.conceal.util.lowlevel.Wave
+import ir.mrahimy.conceal.util.parseWaverTiled
+import ir.mrahimy.conceal.util.shouldTile
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.Job
 import kotlinx.coroutines.delay
+import kotlinx.coroutines.isActive
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import java.io.File
+import java.io.IOException
 import java.util.Date
 
 private const val BACK_PRESS_EXIT_TIME = 2000L
 
+/**
+ * How often the seek bar follows playback
+ */
+private const val SEEK_BAR_UPDATE_MS = 200L
+
 class ParseActivityViewModel(
     application: Application,
     private val recordingRepository: RecordingRepository,
@@ -75,11 +91,13 @@ class ParseActivityViewModel(
     val drawable: LiveData<Int> =
         combine(
             waveFileSavingState,
+            revealState,
             _mediaState
-        ) { waveFileSavingState, mediaState ->
+        ) { waveFileSavingState, revealState, mediaState ->
             when {
                 mediaState == MediaState.PLAY -> R.drawable.ic_stop_fill
                 waveFileSavingState == FileSavingState.DONE -> R.drawable.ic_play_fill
+                revealState == RevealState.REVEALING && !isInputImageTiled -> R.drawable.ic_play_fill
                 else -> R.drawable.wav
             }
         }
@@ -91,6 +109,12 @@ class ParseActivityViewModel(
 
     val isInputHintVisible = _inputImage.map { it == null }
 
+    /**
+     * Whether the input image is too large to be decoded whole, it is then revealed a band at a
+     * time and [inputImage] is only a smaller copy of it
+     */
+    private var isInputImageTiled = false
+
     private val _inputImageSelectionTooltip = MutableLiveData<Int>(null)
     val inputImageSelectionTooltip: LiveData<Int>
         get() = _inputImageSelectionTooltip
@@ -165,14 +189,20 @@ class ParseActivityViewModel(
         revealJob = Job()
         viewModelScope.launch(revealJob + Dispatchers.Default) {
             revealState.postValue(RevealState.REVEALING)
-            delay(10)
             val waver = withContext(revealJob + Dispatchers.IO) {
                 try {
-                    image.parseWaver()
+                    val path = inputImagePath.value
+                    if (isInputImageTiled && path != null) path.parseWaverTiled()
+                    else image.parseWaver()
                 } catch (e: NumberFormatException) {
                     cancelRevealJob()
                     _snackMessage.postValue(Event(R.string.error_in_parsing_image))
                     return@withContext null
+                } catch (e: IOException) {
+                    e.printStackTrace()
+                    cancelRevealJob()
+                    _snackMessage.postValue(Event(R.string.error_in_parsing_image))
+                    return@withContext null
                 }
             }
 
@@ -192,6 +222,12 @@ class ParseActivityViewModel(
                         e.printStackTrace()
                         tellDataExceeds(e)
                         null
+                    } catch (e: IOException) {
+                        e.printStackTrace()
+                        null
+                    } catch (e: Wave.WavFileException) {
+                        e.printStackTrace()
+                        null
                     }
                 }
 
@@ -257,11 +293,20 @@ class ParseActivityViewModel(
     }
 
     private fun selectImageFile(file: String) {
+        stopStreaming()
+        seeker = null
+        _streamDurationMs.value = null
+        _streamPositionMs.value = 0
         viewModelScope.launch {
             _isInputImageLoading.postValue(true)
             delay(10)
             inputImagePath.postValue(file)
-            _inputImage.postValue(file.loadBitmap())
+            val (tiled, bitmap) = withContext(Dispatchers.IO) {
+                val tiled = shouldTile(file.decodePixelCount())
+                tiled to if (tiled) file.loadBitmap(TILE_PIXELS) else file.loadBitmap()
+            }
+            isInputImageTiled = tiled
+            _inputImage.postValue(bitmap)
             _isInputImageLoading.postValue(false)
         }
     }
@@ -274,21 +319,128 @@ class ParseActivityViewModel(
     val onPlayOutputAudio: LiveData<Event<String>>
         get() = _onPlayOutputAudio
 
+    /**
+     * Plays the audio straight from the input image while it is still being revealed, see
+     * [StreamingPlayer]
+     */
+    private var player: StreamingPlayer? = null
+
+    /**
+     * Of the input image, kept from a play to the next and for seeking
+     */
+    private var seeker: PayloadSeeker? = null
+
+    private val _streamDurationMs = MutableLiveData<Int>(null)
+    val streamDurationMs: LiveData<Int>
+        get() = _streamDurationMs
+
+    /**
+     * Where playback is, or where the next play starts from
+     */
+    private val _streamPositionMs = MutableLiveData<Int>(0)
+    val streamPositionMs: LiveData<Int>
+        get() = _streamPositionMs
+
+    /**
+     * The seek bar shows once the audio of the image is known, on its first play
+     */
+    val isSeekBarVisible = _streamDurationMs.map { it != null }
+
     fun playAudio() {
         val revealState = revealState.value ?: return
         val savingState = waveFileSavingState.value ?: return
         val mediaState = _mediaState.value ?: return
 
+        if (mediaState == MediaState.PLAY) {
+            stopStreaming()
+            _onPlayOutputAudio.postValue(Event("stop"))
+            return
+        }
+
+        val image = _inputImage.value
+        if (!isInputImageTiled && image != null && revealState != RevealState.IDLE) {
+            stream(image)
+            return
+        }
+
         if (revealState == RevealState.DONE && savingState == FileSavingState.DONE) {
-            if (mediaState == MediaState.PLAY)
-                _onPlayOutputAudio.postValue(Event("stop"))
-            else {
-                val path = recordingToInsert?.parsedWavePath ?: return
-                _onPlayOutputAudio.postValue(Event(path))
+            val path = recordingToInsert?.parsedWavePath ?: return
+            _onPlayOutputAudio.postValue(Event(path))
+        }
+    }
+
+    /**
+     * Whether the seek bar is being dragged, playback does not move it meanwhile
+     */
+    private var isSeeking = false
+
+    /**
+     * Plays from the position on, only the chunks from there on being revealed
+     */
+    private fun stream(image: Bitmap, fromMs: Int = _streamPositionMs.value ?: 0) {
+        stopStreaming()
+        viewModelScope.launch {
+            val payloadSeeker = try {
+                seeker ?: withContext(Dispatchers.Default) { image.payloadSeeker() }
+            } catch (e: NumberFormatException) {
+                _snackMessage.postValue(Event(R.string.error_in_parsing_image))
+                return@launch
+            }
+            val header = payloadSeeker.header
+            if (seeker == null) {
+                seeker = payloadSeeker
+                _streamDurationMs.value = (payloadSeeker.frameCount * 1000 / header.sampleRate.coerceAtLeast(1)).toInt()
+            }
+            val streamingPlayer = StreamingPlayer(payloadSeeker)
+            player = streamingPlayer
+            _mediaState.postValue(MediaState.PLAY)
+            val followed = launch {
+                while (isActive) {
+                    delay(SEEK_BAR_UPDATE_MS)
+                    if (isSeeking || player !== streamingPlayer) continue
+                    _streamPositionMs.value = (streamingPlayer.playingFrame * 1000 / header.sampleRate.coerceAtLeast(1)).toInt()
+                }
+            }
+            var ended = false
+            try {
+                streamingPlayer.play(header.frameAt(fromMs.toLong()))
+                ended = player === streamingPlayer
+            } finally {
+                followed.cancel()
+                if (player === streamingPlayer) {
+                    player = null
+                    _mediaState.postValue(MediaState.STOP)
+                }
+                /** the next play starts over once the audio is played to its end */
+                if (ended) _streamPositionMs.value = 0
             }
         }
     }
 
+    fun startSeeking() {
+        isSeeking = true
+    }
+
+    /**
+     * Plays on from the position, or starts the next play there when nothing is playing
+     */
+    fun seekTo(positionMs: Int) {
+        isSeeking = false
+        _streamPositionMs.value = positionMs
+        if (player == null) return
+        _inputImage.value?.let { stream(it, positionMs) }
+    }
+
+    private fun stopStreaming() {
+        player?.stop()
+        player = null
+    }
+
+    override fun onCleared() {
+        stopStreaming()
+        super.onCleared()
+    }
+
     private val _onDoneInserting = MutableLiveData<StatelessEvent>()
     val onDoneInserting: LiveData<StatelessEvent>
         get() = _onDoneInserting
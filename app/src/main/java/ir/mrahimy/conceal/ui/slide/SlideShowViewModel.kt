@@ -8,7 +8,7 @@ import androidx.lifecycle.MutableLiveData
 import androidx.lifecycle.map
 import ir.mrahimy.conceal.base.BaseAndroidViewModel
 import ir.mrahimy.conceal.util.arch.Event
-import ir.mrahimy.conceal.util.ktx.loadBitmap
+import ir.mrahimy.conceal.util.loadPreviewBitmap
 import java.io.File
 
 class SlideShowViewModel(application: Application) : BaseAndroidViewModel(application) {
@@ -16,7 +16,7 @@ class SlideShowViewModel(application: Application) : BaseAndroidViewModel(applic
     private val _imagePath = MutableLiveData<String>()
 
     val bitmap = _imagePath.map {
-        it.loadBitmap()
+        it.loadPreviewBitmap()
     }
 
     fun setImagePath(path: String) {
@@ -0,0 +1,106 @@
+package ir.mrahimy.conceal.util
+
+import ir.mrahimy.conceal.data.CapacityPlan
+import ir.mrahimy.conceal.data.CarrierHeader
+import ir.mrahimy.conceal.data.ConcealPlan
+import ir.mrahimy.conceal.data.enums.PayloadCodec
+import ir.mrahimy.conceal.util.ktx.decodePixelCount
+import ir.mrahimy.conceal.util.lowlevel.LowLevelPackedOperations
+import ir.mrahimy.conceal.util.lowlevel.LowLevelPackedOperations.MAX_DEPTH
+import ir.mrahimy.conceal.util.lowlevel.LowLevelPackedOperations.MIN_DEPTH
+import ir.mrahimy.conceal.util.lowlevel.PolyphaseResampler
+import ir.mrahimy.conceal.util.lowlevel.Wave
+import java.io.File
+import java.io.IOException
+
+/**
+ * @param pixelCount the number of pixels of the carrier image
+ * @return the exact number of samples fitting in the image behind a binary header, for each
+ * lsb depth and each sample depth
+ */
+fun planCapacity(pixelCount: Int): List<CapacityPlan> = (MIN_DEPTH..MAX_DEPTH).flatMap { lsbDepth ->
+    CarrierHeader.SAMPLE_DEPTHS.map { sampleDepth ->
+        CapacityPlan(
+            lsbDepth,
+            sampleDepth,
+            PackedLayout(pixelCount, BINARY_HEADER_PIXELS, lsbDepth, sampleDepth + 1).capacity
+        )
+    }
+}
+
+/**
+ * @param pixelCount the number of pixels of the carrier image
+ * @param frameCount the number of frames of the audio, each frame holding channelCount samples
+ * @param codec a [PayloadCodec.variableLength] one is planned as a code per sample, the size it
+ * takes with 16-bit audio it cannot compress at all, and as one which may fit once compressed
+ * @param fitAudio whether audio too long is brought to a smaller format, see [fitInto], it then
+ * fits if its smallest format does
+ * @param trimsSilence whether the silence of the audio is dropped, see [trimSilence], which may
+ * make it fit
+ */
+fun planConceal(
+    pixelCount: Int,
+    frameCount: Long,
+    channelCount: Int,
+    sampleRate: Long,
+    lsbDepth: Int,
+    sampleDepth: Int,
+    codec: PayloadCodec = PayloadCodec.PCM,
+    fitAudio: Boolean = false,
+    trimsSilence: Boolean = false
+): ConcealPlan {
+    val layout = PackedLayout(pixelCount, BINARY_HEADER_PIXELS, lsbDepth, codec.sampleBitsOf(sampleDepth))
+    val samples = frameCount * channelCount
+    val slots = LowLevelPackedOperations.slotsHolding(samples, lsbDepth, layout.sampleBits)
+    /** every pixel has 3 slots but the ones of the header, which have only g and b */
+    val pixelBudget = maxOf(BINARY_HEADER_PIXELS.toLong(), (slots + BINARY_HEADER_PIXELS + 2) / 3)
+    val samplesPerSecond = (channelCount * sampleRate).coerceAtLeast(1)
+    val smallestSamples = if (!fitAudio || sampleRate <= 0) samples else {
+        val (rate, channels) = fittingFormatsOf(sampleRate, channelCount).last()
+        PolyphaseResampler(sampleRate.toInt(), rate.toInt()).outputFramesOf(frameCount) * channels
+    }
+    return ConcealPlan(
+        pixelCount,
+        pixelBudget,
+        layout.capacity,
+        samples,
+        layout.capacity * 1000L / samplesPerSecond,
+        minOf(samples, smallestSamples),
+        codec.variableLength || trimsSilence
+    )
+}
+
+/**
+ * Plans from the bounds of the image and the header of the wave file alone, neither a pixel nor
+ * a sample is read
+ *
+ * @throws Wave.WavFileException if the header of the wave file is not valid
+ */
+@Throws(IOException::class, Wave.WavFileException::class)
+fun planConceal(
+    imagePath: String,
+    wave: File,
+    lsbDepth: Int,
+    sampleDepth: Int,
+    codec: PayloadCodec = PayloadCodec.PCM,
+    fitAudio: Boolean = false,
+    trimsSilence: Boolean = false
+): ConcealPlan {
+    val pixelCount = imagePath.decodePixelCount()
+    val wavFile = Wave.WavFile.openWavFile(wave)
+    try {
+        return planConceal(
+            pixelCount,
+            wavFile.numFrames,
+            wavFile.numChannels,
+            wavFile.sampleRate,
+            lsbDepth,
+            sampleDepth,
+            codec,
+            fitAudio,
+            trimsSilence
+        )
+    } finally {
+        wavFile.close()
+    }
+}
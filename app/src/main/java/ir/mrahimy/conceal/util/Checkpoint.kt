@@ -0,0 +1,398 @@
+package ir.mrahimy.conceal.util
+
+import ir.mrahimy.conceal.data.CarrierHeader
+import ir.mrahimy.conceal.data.ConcealCheckpoint
+import ir.mrahimy.conceal.data.PixelBuffer
+import ir.mrahimy.conceal.data.TiledCheckpoint
+import ir.mrahimy.conceal.util.lowlevel.PngWriter
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
+
+const val CHECKPOINT_FILE_NAME = "conceal.checkpoint"
+
+/**
+ * The first save of a conceal writes the whole carrier, about 48MB for 12 megapixels, and every
+ * later one only the pixels put since, see [appendCheckpoint]
+ */
+const val CHECKPOINT_INTERVAL_MS = 10_000L
+
+private const val CHECKPOINT_MAGIC = 0x0F15C4E7
+private const val TILED_CHECKPOINT_MAGIC = 0x0F15C4E8
+private const val CHECKPOINT_RUNS_MAGIC = 0x0F15C4E9
+private const val CHECKPOINT_VERSION = 2
+private const val CHUNK_BYTES = 1 shl 20
+
+/**
+ * @return a key which changes as soon as any input of the conceal does, the files being told
+ * apart by their path, size and modification time
+ * @param header of the conceal, telling the depths, the codec and the format the audio is
+ * concealed in
+ */
+fun checkpointKeyOf(imagePath: String, wavePath: String, header: CarrierHeader): String {
+    val image = File(imagePath)
+    val wave = File(wavePath)
+    return listOf(
+        imagePath, image.length(), image.lastModified(),
+        wavePath, wave.length(), wave.lastModified(),
+        header.lsbDepth, header.sampleDepth, header.codec, header.sampleRate, header.channelCount
+    ).joinToString("|")
+}
+
+/**
+ * @return whether the image and the audio of the key of [checkpointKeyOf] are still there as they
+ * were, a key which cannot be told apart being taken for a stale one
+ */
+fun isCheckpointKeyCurrent(key: String): Boolean {
+    val parts = key.split("|")
+    if (parts.size != 11) return false
+    return listOf(0, 3).all { at ->
+        val file = File(parts[at])
+        file.exists() && file.length().toString() == parts[at + 1] && file.lastModified().toString() == parts[at + 2]
+    }
+}
+
+/**
+ * Saves the partial carrier of a conceal into file once every [intervalMs] at most, so a conceal
+ * cancelled or killed halfway can be picked up where it stopped. Only one conceal is kept, a new
+ * one overwrites it and loading for other inputs forgets it.
+ *
+ * Saving is best effort: a checkpoint which cannot be written, the storage being full for
+ * instance, is skipped and the conceal goes on.
+ */
+class Checkpointer(
+    private val file: File,
+    private val key: String,
+    private val intervalMs: Long = CHECKPOINT_INTERVAL_MS
+) {
+    private var lastSaved = System.currentTimeMillis()
+
+    /**
+     * The slots done of the checkpoint this checkpointer saved, -1 while there is none a run of
+     * pixels can go after, the next save writing the whole carrier then. A loaded checkpoint may
+     * end on a run cut short, so it is never added to.
+     */
+    private var savedSlots = -1L
+
+    /**
+     * Whether there is a checkpoint of this conceal in file, loaded or saved by this checkpointer
+     */
+    var isSaved = false
+        private set
+
+    /**
+     * Must be called while no slot is being put, so the pixels are consistent with slotsDone.
+     * Only the pixels of the slots put since the last save are written, the whole carrier once
+     * in a while so the file stays within twice its size.
+     */
+    suspend fun save(pixels: PixelBuffer, layout: PackedLayout, slotsDone: Long) {
+        if (!isDue()) return
+        val fromSlot = savedSlots
+        /** a run cut short by a failed save is only left behind by a whole carrier */
+        savedSlots = -1
+        write {
+            if (fromSlot < 0 || fromSlot > slotsDone || length() > 2L * pixels.size * Int.SIZE_BYTES)
+                writeCheckpoint(ConcealCheckpoint(key, pixels, layout.startingPosition, slotsDone))
+            else appendCheckpoint(pixels, slotsDone, layout.positionsOf(fromSlot, slotsDone))
+            savedSlots = slotsDone
+        }
+    }
+
+    /**
+     * Writes out every row the png has so far and saves where to carry output on from, must be
+     * called between two bands
+     *
+     * @throws IOException if the png cannot be written, the conceal cannot go on then
+     */
+    @Throws(IOException::class)
+    suspend fun save(output: File, png: PngWriter) {
+        if (!isDue()) return
+        val state = withContext(Dispatchers.IO) { png.checkpoint() }
+        write { writeCheckpoint(TiledCheckpoint(key, output, state)) }
+    }
+
+    /**
+     * @return the saved conceal if it has the same inputs, null otherwise, any other conceal
+     * saved being forgotten
+     */
+    fun load(): ConcealCheckpoint? = file.readCheckpoint(key).orForget()
+
+    /**
+     * @return the saved tiled conceal if it has the same inputs, null otherwise, any other
+     * conceal saved being forgotten along with its partial output
+     */
+    fun loadTiled(): TiledCheckpoint? = file.readTiledCheckpoint(key).orForget()
+
+    /**
+     * Forgets the saved conceal, the output of a tiled one is kept
+     */
+    fun clear() {
+        file.delete()
+        File("$file.tmp").delete()
+        isSaved = false
+        savedSlots = -1
+    }
+
+    private fun isDue() = System.currentTimeMillis() - lastSaved >= intervalMs
+
+    private suspend fun write(checkpoint: suspend File.() -> Unit) {
+        try {
+            withContext(Dispatchers.IO) { file.checkpoint() }
+            isSaved = true
+        } catch (e: IOException) {
+            e.printStackTrace()
+        }
+        lastSaved = System.currentTimeMillis()
+    }
+
+    private fun <T> T?.orForget(): T? {
+        if (this != null) {
+            isSaved = true
+            return this
+        }
+        file.forgetCheckpoint()
+        isSaved = false
+        savedSlots = -1
+        return null
+    }
+}
+
+/**
+ * Forgets the checkpoint in this file, along with the output of a tiled one, unless its image
+ * and audio are still there as they were, see [isCheckpointKeyCurrent]. A temp file left by a
+ * save cut short goes too.
+ */
+fun File.forgetStaleCheckpoint() {
+    File("$path.tmp").delete()
+    val key = readCheckpointKey() ?: return forgetCheckpoint()
+    if (!isCheckpointKeyCurrent(key)) forgetCheckpoint()
+}
+
+private fun File.forgetCheckpoint() {
+    readTiledCheckpoint()?.output?.delete()
+    delete()
+    File("$path.tmp").delete()
+}
+
+/**
+ * @return the key of the checkpoint of either kind in this file, null if there is none or it
+ * cannot be read
+ */
+private fun File.readCheckpointKey(): String? {
+    if (!exists()) return null
+    return try {
+        DataInputStream(FileInputStream(this).buffered()).use {
+            val magic = it.readInt()
+            if (magic != CHECKPOINT_MAGIC && magic != TILED_CHECKPOINT_MAGIC || it.readInt() != CHECKPOINT_VERSION) null
+            else it.readUTF()
+        }
+    } catch (e: IOException) {
+        e.printStackTrace()
+        null
+    }
+}
+
+/**
+ * Writes the whole checkpoint next to this file first and then moves it in place, so a conceal
+ * killed while saving leaves the previous checkpoint intact
+ */
+@Throws(IOException::class)
+fun File.writeCheckpoint(checkpoint: ConcealCheckpoint) = writeThroughTemp { temp ->
+    FileOutputStream(temp).channel.use { channel ->
+        val head = ByteArrayOutputStream()
+        DataOutputStream(head).apply {
+            writeInt(CHECKPOINT_MAGIC)
+            writeInt(CHECKPOINT_VERSION)
+            writeUTF(checkpoint.key)
+            writeInt(checkpoint.pixels.width)
+            writeInt(checkpoint.pixels.height)
+            writeInt(checkpoint.startingPosition)
+            writeLong(checkpoint.slotsDone)
+        }
+        channel.writeFully(ByteBuffer.wrap(head.toByteArray()))
+
+        val pixels = checkpoint.pixels.pixels
+        channel.writePixels(ByteBuffer.allocate(CHUNK_BYTES), pixels, 0, pixels.size)
+    }
+}
+
+/**
+ * Adds the pixels of the runs to the checkpoint in this file and moves its slots done on, so
+ * only what changed since it was saved is written. A run cut short is harmless: it is only read
+ * up to where it ends, its pixels of slots after those done being put again once resumed.
+ *
+ * @param runs of positions, see [PackedLayout.positionsOf]
+ */
+@Throws(IOException::class)
+fun File.appendCheckpoint(pixels: PixelBuffer, slotsDone: Long, runs: List<IntRange>) {
+    FileOutputStream(this, true).channel.use { channel ->
+        val head = ByteArrayOutputStream()
+        DataOutputStream(head).apply {
+            writeInt(CHECKPOINT_RUNS_MAGIC)
+            writeInt(runs.size)
+            runs.forEach {
+                writeInt(it.first)
+                writeInt(it.last + 1 - it.first)
+            }
+        }
+        channel.writeFully(ByteBuffer.wrap(head.toByteArray()))
+        val buffer = ByteBuffer.allocate(CHUNK_BYTES)
+        runs.forEach { channel.writePixels(buffer, pixels.pixels, it.first, it.last + 1) }
+        /** the slots done go last, so they are only read once every pixel before them is */
+        buffer.clear()
+        buffer.putLong(slotsDone).flip()
+        channel.writeFully(buffer)
+    }
+}
+
+/**
+ * Writes the tiled checkpoint the same way as [writeCheckpoint], the output itself staying where
+ * it is
+ */
+@Throws(IOException::class)
+fun File.writeCheckpoint(checkpoint: TiledCheckpoint) = writeThroughTemp { temp ->
+    DataOutputStream(FileOutputStream(temp).buffered()).use {
+        it.writeInt(TILED_CHECKPOINT_MAGIC)
+        it.writeInt(CHECKPOINT_VERSION)
+        it.writeUTF(checkpoint.key)
+        it.writeUTF(checkpoint.output.path)
+        it.writeLong(checkpoint.png.length)
+        it.writeInt(checkpoint.png.rowsWritten)
+        it.writeInt(checkpoint.png.adler)
+    }
+}
+
+/**
+ * @return the tiled checkpoint in this file if it has the given key, or any key when there is
+ * none given, null if there is none or it cannot be read
+ */
+fun File.readTiledCheckpoint(key: String? = null): TiledCheckpoint? {
+    if (!exists()) return null
+    return try {
+        DataInputStream(FileInputStream(this).buffered()).use {
+            if (it.readInt() != TILED_CHECKPOINT_MAGIC || it.readInt() != CHECKPOINT_VERSION) return null
+            val savedKey = it.readUTF()
+            if (key != null && savedKey != key) return null
+            val output = File(it.readUTF())
+            TiledCheckpoint(savedKey, output, PngWriter.State(it.readLong(), it.readInt(), it.readInt()))
+        }
+    } catch (e: IOException) {
+        e.printStackTrace()
+        null
+    }
+}
+
+/**
+ * Writes into a temp file next to this one and then moves it in place, the temp file being
+ * removed if it cannot be written
+ */
+private inline fun File.writeThroughTemp(write: (temp: File) -> Unit) {
+    val temp = File("$path.tmp")
+    try {
+        write(temp)
+    } catch (e: IOException) {
+        temp.delete()
+        throw e
+    }
+    if (!temp.renameTo(this)) {
+        temp.delete()
+        throw IOException("cannot move $temp to $this")
+    }
+}
+
+/**
+ * @return the checkpoint in this file if it has the given key, the runs of [appendCheckpoint]
+ * read over its pixels, null if there is none, it is of another conceal or it cannot be read
+ */
+fun File.readCheckpoint(key: String): ConcealCheckpoint? {
+    if (!exists()) return null
+    return try {
+        FileInputStream(this).use { stream ->
+            val head = DataInputStream(stream)
+            if (head.readInt() != CHECKPOINT_MAGIC || head.readInt() != CHECKPOINT_VERSION) return null
+            if (head.readUTF() != key) return null
+            val width = head.readInt()
+            val height = head.readInt()
+            val startingPosition = head.readInt()
+            val slotsDone = head.readLong()
+
+            val pixels = PixelBuffer(width, height)
+            val channel = stream.channel
+            if (channel.size() - channel.position() < pixels.size.toLong() * Int.SIZE_BYTES) return null
+            val buffer = ByteBuffer.allocate(CHUNK_BYTES)
+            channel.readPixels(buffer, pixels.pixels, 0, pixels.size)
+            ConcealCheckpoint(key, pixels, startingPosition, channel.readRuns(buffer, pixels.pixels) ?: slotsDone)
+        }
+    } catch (e: IOException) {
+        e.printStackTrace()
+        null
+    }
+}
+
+/**
+ * Reads the runs of [appendCheckpoint] over the pixels up to the end of the file or the first run
+ * cut short
+ *
+ * @return the slots done of the last whole run, null if there is none
+ */
+private fun FileChannel.readRuns(buffer: ByteBuffer, pixels: IntArray): Long? {
+    var slotsDone: Long? = null
+    try {
+        while (position() < size()) {
+            val head = DataInputStream(Channels.newInputStream(this))
+            if (head.readInt() != CHECKPOINT_RUNS_MAGIC) break
+            val runCount = head.readInt()
+            if (runCount !in 0..Layer.values().size) break
+            val runs = List(runCount) { head.readInt() to head.readInt() }
+            if (runs.any { (from, count) -> from < 0 || count < 0 || from + count > pixels.size }) break
+            runs.forEach { (from, count) -> readPixels(buffer, pixels, from, from + count) }
+            buffer.clear()
+            buffer.limit(Long.SIZE_BYTES)
+            readFully(buffer)
+            slotsDone = buffer.getLong(0)
+        }
+    } catch (e: IOException) {
+        /** a run cut short, the ones before it stand */
+    }
+    return slotsDone
+}
+
+private fun FileChannel.writePixels(buffer: ByteBuffer, pixels: IntArray, from: Int, to: Int) {
+    for (offset in from until to step CHUNK_BYTES / Int.SIZE_BYTES) {
+        val count = minOf(CHUNK_BYTES / Int.SIZE_BYTES, to - offset)
+        buffer.clear()
+        buffer.asIntBuffer().put(pixels, offset, count)
+        buffer.limit(count * Int.SIZE_BYTES)
+        writeFully(buffer)
+    }
+}
+
+private fun FileChannel.readPixels(buffer: ByteBuffer, pixels: IntArray, from: Int, to: Int) {
+    for (offset in from until to step CHUNK_BYTES / Int.SIZE_BYTES) {
+        val count = minOf(CHUNK_BYTES / Int.SIZE_BYTES, to - offset)
+        buffer.clear()
+        buffer.limit(count * Int.SIZE_BYTES)
+        readFully(buffer)
+        buffer.flip()
+        buffer.asIntBuffer().get(pixels, offset, count)
+    }
+}
+
+private fun FileChannel.writeFully(buffer: ByteBuffer) {
+    while (buffer.hasRemaining()) write(buffer)
+}
+
+private fun FileChannel.readFully(buffer: ByteBuffer) {
+    while (buffer.hasRemaining()) {
+        if (read(buffer) < 0) throw IOException("checkpoint ends too soon")
+    }
+}
@@ -0,0 +1,415 @@
+package ir.mrahimy.conceal.util
+
+import android.graphics.Bitmap
+import androidx.lifecycle.liveData
+import ir.mrahimy.conceal.R
+import ir.mrahimy.conceal.data.LocalResult
+import ir.mrahimy.conceal.data.PixelBuffer
+import ir.mrahimy.conceal.data.capsules.ConcealPercentage
+import ir.mrahimy.conceal.util.lowlevel.LowLevelLsbOperations
+import ir.mrahimy.conceal.util.lowlevel.LowLevelLsbOperations.PIXELS_PER_INTEGER
+import ir.mrahimy.conceal.util.lowlevel.LowLevelPackedOperations
+import ir.mrahimy.conceal.util.lowlevel.PackedSampleWriter
+import ir.mrahimy.conceal.util.lowlevel.Wave
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import java.io.IOException
+
+/**
+ * Samples handed to a worker between two progress reports
+ */
+private const val SAMPLES_PER_REPORT = 4096
+
+/**
+ * Slots handed to a worker between two progress reports
+ */
+private const val SLOTS_PER_REPORT = 16384L
+
+/**
+ * Slots put between two points where every worker is done, a point where the conceal can be saved
+ */
+const val SLOTS_PER_SEGMENT = 1L shl 22
+
+/**
+ * Puts the whole array inside 3lsb of this buffer with the legacy [SampleLayout] on [workers]
+ * threads. Each layer is split in bands of pixels, one band per task, and layers go one after
+ * another so two tasks never touch the same pixel. The result is identical to putting them one by
+ * one with [putSignedInteger].
+ *
+ * @param progress counts the samples put so far
+ * @throws HugeFileException if the array does not fit, before touching any pixel
+ */
+suspend fun PixelBuffer.putAllSignedIntegersInParallel(
+    layout: SampleLayout,
+    array: IntArray,
+    workers: Int = Runtime.getRuntime().availableProcessors(),
+    progress: Progress = Progress()
+) = coroutineScope {
+    if (array.size > layout.capacity)
+        throw HugeFileException(array.findPercent(layout.capacity).toInt())
+
+    Layer.values().forEach { layer ->
+        val first = layout.firstSampleOf(layer)
+        val last = minOf(first + layout.capacityOf(layer), array.size)
+        if (first >= last) return@forEach
+
+        val bandSize = (last - first + workers - 1) / workers
+        (first until last step bandSize).map { bandStart ->
+            async(Dispatchers.Default) {
+                putBand(layout, array, layer, bandStart, minOf(bandStart + bandSize, last), progress)
+            }
+        }.awaitAll()
+    }
+}
+
+private fun PixelBuffer.putBand(
+    layout: SampleLayout,
+    array: IntArray,
+    layer: Layer,
+    from: Int,
+    to: Int,
+    progress: Progress
+) {
+    var position = layout.positionOf(from)
+    var reported = from
+    for (index in from until to) {
+        LowLevelLsbOperations.putSignedIntegerLut(pixels, position, array[index], layer.shift)
+        position += PIXELS_PER_INTEGER
+        if (index - reported == SAMPLES_PER_REPORT) {
+            progress.add((index - reported).toLong())
+            reported = index
+        }
+    }
+    progress.add((to - reported).toLong())
+}
+
+/**
+ * Puts the whole array as a packed stream, see [PackedLayout], on [workers] threads. Work is split
+ * by slots rather than by samples: each layer is split in bands of pixels and every task writes
+ * only the slots of its own band, even for a sample cut in two by the edge of a band. Layers go
+ * one after another so two tasks never touch the same pixel.
+ *
+ * @param progress counts the slots put so far
+ * @param dirtyRows if any, gets the rows of every slot put marked as they are put
+ * @param fromSlot slots before it are already put, as in a conceal resumed from a
+ * [ir.mrahimy.conceal.data.ConcealCheckpoint]
+ * @param onSegmentDone if any, called each time every slot before slotsDone is put and no task is
+ * running, that is every [slotsPerSegment] slots and at the end of each layer
+ * @throws HugeFileException if the array does not fit, before touching any pixel
+ */
+suspend fun PixelBuffer.putAllSignedIntegersInParallel(
+    layout: PackedLayout,
+    array: IntArray,
+    workers: Int = Runtime.getRuntime().availableProcessors(),
+    progress: Progress = Progress(),
+    dirtyRows: DirtyRows? = null,
+    fromSlot: Long = 0,
+    slotsPerSegment: Long = SLOTS_PER_SEGMENT,
+    onSegmentDone: (suspend (slotsDone: Long) -> Unit)? = null
+) = coroutineScope {
+    if (array.size > layout.capacity)
+        throw HugeFileException(array.findPercent(layout.capacity).toInt())
+
+    val usedSlots = layout.slotsHolding(array.size)
+    progress.add(fromSlot.coerceAtMost(usedSlots))
+    Layer.values().forEach { layer ->
+        val first = maxOf(layout.firstSlotOf(layer), fromSlot)
+        val last = minOf(layout.firstSlotOf(layer) + layout.slotsOf(layer), usedSlots)
+        if (first >= last) return@forEach
+
+        for (segmentStart in first until last step slotsPerSegment) {
+            val segmentEnd = minOf(segmentStart + slotsPerSegment, last)
+            val bandSize = (segmentEnd - segmentStart + workers - 1) / workers
+            (segmentStart until segmentEnd step bandSize).map { bandStart ->
+                async(Dispatchers.Default) {
+                    putSlotBand(layout, array, layer, bandStart, minOf(bandStart + bandSize, segmentEnd), progress, dirtyRows)
+                }
+            }.awaitAll()
+            onSegmentDone?.invoke(segmentEnd)
+        }
+    }
+}
+
+private fun PixelBuffer.putSlotBand(
+    layout: PackedLayout,
+    array: IntArray,
+    layer: Layer,
+    from: Long,
+    to: Long,
+    progress: Progress,
+    dirtyRows: DirtyRows?
+) {
+    val firstSlot = layout.firstSlotOf(layer)
+    val firstPosition = layout.firstPositionOf(layer)
+    for (slot in from until to step SLOTS_PER_REPORT) {
+        val count = minOf(SLOTS_PER_REPORT, to - slot).toInt()
+        val position = firstPosition + (slot - firstSlot).toInt()
+        LowLevelPackedOperations.putSlots(
+            pixels,
+            position,
+            count,
+            layer.shift,
+            layout.depth,
+            array,
+            layout.sampleBits,
+            slot
+        )
+        dirtyRows?.mark(position, position + count)
+        progress.add(count.toLong())
+    }
+}
+
+/**
+ * Puts the array on all cores, see [putAllSignedIntegersInParallel], emitting the same kind of
+ * results as [putAllSignedIntegers]. Every result holds the same output bitmap, built once and
+ * then kept up to date by copying only the rows changed since the previous result.
+ *
+ * @param fromSlot slots before it are already put in this buffer, see [Checkpointer.load]
+ * @param checkpointer if any, saves the buffer as the conceal goes and forgets it once it is done
+ */
+fun PixelBuffer.putAllSignedIntegersInParallel(
+    layout: PackedLayout,
+    array: IntArray,
+    image: Bitmap,
+    job: Job,
+    fromSlot: Long = 0,
+    checkpointer: Checkpointer? = null
+) = liveData(job + Dispatchers.IO) {
+    val carrier = this@putAllSignedIntegersInParallel
+    val resBitmap = toBitmap(image)
+    val dirtyRows = DirtyRows(width, height)
+    val progress = Progress()
+    emit(LocalResult.Success(ConcealPercentage(1, 0f, resBitmap, layout.startingPosition, 0, false)))
+
+    if (array.size > layout.capacity) {
+        val e = HugeFileException(array.findPercent(layout.capacity).toInt())
+        emit(LocalResult.Error(R.string.data_exceeds, 1, e))
+        return@liveData
+    }
+
+    coroutineScope {
+        launch(Dispatchers.Default) {
+            try {
+                putAllSignedIntegersInParallel(
+                    layout,
+                    array,
+                    progress = progress,
+                    dirtyRows = dirtyRows,
+                    fromSlot = fromSlot
+                ) { slotsDone ->
+                    checkpointer?.save(carrier, layout, slotsDone)
+                }
+            } finally {
+                progress.close()
+            }
+        }
+
+        progress.collect { slots ->
+            val index = (slots * layout.depth / layout.sampleBits).toInt()
+            dirtyRows.flush(pixels, resBitmap)
+            emit(
+                LocalResult.Success(
+                    ConcealPercentage(
+                        1,
+                        array.findPercent(index),
+                        resBitmap,
+                        layout.positionOf(index),
+                        index,
+                        false
+                    )
+                )
+            )
+        }
+    }
+
+    checkpointer?.clear()
+    val lastIndex = (array.size - 1).coerceAtLeast(0)
+    dirtyRows.flush(pixels, resBitmap)
+    emit(
+        LocalResult.Success(
+            ConcealPercentage(
+                1,
+                100.0f,
+                resBitmap,
+                layout.pixelsHolding(array.size),
+                lastIndex,
+                true
+            )
+        )
+    )
+}
+
+/**
+ * Blocks of the payload made ahead of the one being put, while it is put
+ */
+private const val BLOCKS_AHEAD = 2
+
+/**
+ * Opens the blocks of a payload for the block it is called with and closes whatever they are read
+ * from once that block returns, throws or is cancelled, so a source is never left open by a
+ * conceal stopped halfway
+ */
+typealias PayloadBlocks = suspend (suspend (Sequence<IntArray>) -> Unit) -> Unit
+
+/**
+ * Puts the payload as its blocks are made, one after another from the start of the layout, so the
+ * payload is never whole in memory. Blocks are made on [Dispatchers.IO], reading the audio they
+ * come from, while the blocks before them are put, [BLOCKS_AHEAD] blocks ahead at most. The
+ * blocks are opened and closed on that side too, see [PayloadBlocks]. Emits the same kind of
+ * results as the other [putAllSignedIntegersInParallel], as often as [Progress] lets it, and
+ * tells a read error of the audio apart from a payload too large.
+ *
+ * @param count how many samples the blocks hold in all, or about as many if that is only known
+ * once they are made, see [ir.mrahimy.conceal.data.expectedCodeCount]. Blocks going past the
+ * capacity of the layout are refused as they come.
+ * @param fromSlot slots before it are already put in this buffer, see [Checkpointer.load], the
+ * blocks still starting from the first sample
+ * @param checkpointer if any, saves the buffer after the blocks ending on a slot and forgets it
+ * once the conceal is done
+ * @param onPut if any, called with how many samples the blocks held once every one is put, to put
+ * over this buffer what is only known by then, see [putOver]
+ */
+fun PixelBuffer.putAllSignedIntegersStreamed(
+    layout: PackedLayout,
+    count: Long,
+    blocks: PayloadBlocks,
+    image: Bitmap,
+    job: Job,
+    fromSlot: Long = 0,
+    checkpointer: Checkpointer? = null,
+    onPut: (PixelBuffer.(count: Long) -> Unit)? = null
+) = liveData(job + Dispatchers.IO) {
+    val carrier = this@putAllSignedIntegersStreamed
+    val resBitmap = toBitmap(image)
+    val dirtyRows = DirtyRows(width, height)
+    val progress = Progress()
+    emit(LocalResult.Success(ConcealPercentage(1, 0f, resBitmap, layout.startingPosition, 0, false)))
+
+    val writer = PackedSampleWriter(
+        pixels,
+        Layer.values().map { layout.firstPositionOf(it) }.toIntArray(),
+        Layer.values().map { it.shift }.toIntArray(),
+        layout.depth,
+        layout.sampleBits
+    )
+    val fromSample = fromSlot * layout.depth / layout.sampleBits
+    writer.skip(fromSample)
+    val made = Channel<IntArray>(BLOCKS_AHEAD)
+    try {
+        coroutineScope {
+            launch(Dispatchers.IO) {
+                try {
+                    blocks { payload -> payload.dropSamples(fromSample).forEach { made.send(it) } }
+                } finally {
+                    made.close()
+                }
+            }
+
+            launch(Dispatchers.Default) {
+                try {
+                    for (block in made) {
+                        if (writer.samplesPut + block.size > layout.capacity)
+                            throw HugeFileException((layout.capacity * 100f / maxOf(count, writer.samplesPut + block.size)).toInt())
+                        val layer = writer.layer
+                        val position = writer.position
+                        writer.put(block, 0, block.size)
+                        if (writer.layer == layer) dirtyRows.mark(position, writer.position)
+                        else dirtyRows.mark(0, size)
+
+                        val bits = writer.samplesPut * layout.sampleBits
+                        if (bits % layout.depth == 0L)
+                            checkpointer?.save(carrier, layout, bits / layout.depth)
+                        progress.add(block.size.toLong())
+                    }
+                    writer.finish()
+                    onPut?.invoke(carrier, writer.samplesPut)
+                } finally {
+                    progress.close()
+                }
+            }
+
+            progress.collect { put ->
+                val index = (fromSample + put).toInt()
+                dirtyRows.flush(pixels, resBitmap)
+                emit(
+                    LocalResult.Success(
+                        ConcealPercentage(
+                            1,
+                            (index * 100f / count).coerceAtMost(100f),
+                            resBitmap,
+                            layout.positionOf(index),
+                            index,
+                            false
+                        )
+                    )
+                )
+            }
+        }
+    } catch (e: HugeFileException) {
+        emit(LocalResult.Error(R.string.data_exceeds, 1, e))
+        return@liveData
+    } catch (e: IOException) {
+        emit(LocalResult.Error(e.toReadErrorStringRes(), 1, e))
+        return@liveData
+    } catch (e: Wave.WavFileException) {
+        emit(LocalResult.Error(e.toReadErrorStringRes(), 1, e))
+        return@liveData
+    }
+
+    val put = writer.samplesPut
+    checkpointer?.clear()
+    dirtyRows.mark(0, size)
+    dirtyRows.flush(pixels, resBitmap)
+    emit(
+        LocalResult.Success(
+            ConcealPercentage(
+                1,
+                100.0f,
+                resBitmap,
+                layout.pixelsHolding(put.toInt()),
+                (put - 1).coerceAtLeast(0).toInt(),
+                true
+            )
+        )
+    )
+}
+
+/**
+ * Puts the samples over the first ones of the layout, which must have been put as zeros, such as
+ * the tables of a payload only known once the rest of it is put
+ */
+fun PixelBuffer.putOver(layout: PackedLayout, samples: IntArray) {
+    PackedSampleWriter(
+        pixels,
+        Layer.values().map { layout.firstPositionOf(it) }.toIntArray(),
+        Layer.values().map { it.shift }.toIntArray(),
+        layout.depth,
+        layout.sampleBits
+    ).run {
+        put(samples, 0, samples.size)
+        finish()
+    }
+}
+
+/**
+ * @return the blocks without their first count samples
+ */
+private fun Sequence<IntArray>.dropSamples(count: Long): Sequence<IntArray> {
+    var dropped = 0L
+    return mapNotNull { block ->
+        val left = count - dropped
+        when {
+            left <= 0 -> block
+            left < block.size -> block.copyOfRange(left.toInt(), block.size).also { dropped = count }
+            else -> {
+                dropped += block.size
+                null
+            }
+        }
+    }
+}
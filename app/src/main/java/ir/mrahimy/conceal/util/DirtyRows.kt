@@ -0,0 +1,48 @@
+package ir.mrahimy.conceal.util
+
+import android.graphics.Bitmap
+import java.util.concurrent.atomic.AtomicIntegerArray
+
+/**
+ * Rows of an image whose pixels have changed since they were last copied into its bitmap. Rows
+ * are marked from any thread as pixels are written, and flushed from a single one with a
+ * setPixels call per run of dirty rows, so a bitmap follows its pixels without being rebuilt.
+ *
+ * @param width of the image, a row being this many pixels
+ */
+class DirtyRows(private val width: Int, height: Int) {
+
+    private val dirty = AtomicIntegerArray(height)
+
+    /**
+     * Marks the rows holding the pixels from until to, once they have been written
+     */
+    fun mark(from: Int, to: Int) {
+        if (from >= to) return
+        for (row in from / width..(to - 1) / width) dirty.set(row, 1)
+    }
+
+    /**
+     * Copies the dirty rows of pixels into the same rows of bitmap
+     */
+    fun flush(pixels: IntArray, bitmap: Bitmap) = flush { from, to ->
+        bitmap.setPixels(pixels, from * width, width, 0, from, width, to - from)
+    }
+
+    /**
+     * Hands every run of dirty rows to copyRows, rows from until to. A row is unmarked before it
+     * is copied, so a row written meanwhile is copied again on the next flush.
+     */
+    fun flush(copyRows: (from: Int, to: Int) -> Unit) {
+        var row = 0
+        while (row < dirty.length()) {
+            if (dirty.getAndSet(row, 0) == 0) {
+                row++
+                continue
+            }
+            val first = row++
+            while (row < dirty.length() && dirty.getAndSet(row, 0) != 0) row++
+            copyRows(first, row)
+        }
+    }
+}
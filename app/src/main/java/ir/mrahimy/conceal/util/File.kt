@@ -2,9 +2,11 @@ package ir.mrahimy.conceal.util
 
 import android.graphics.Bitmap
 import ir.mrahimy.conceal.data.Waver
+import ir.mrahimy.conceal.data.frameBlocks
 import ir.mrahimy.conceal.util.lowlevel.WavUtil
 import ir.mrahimy.conceal.util.lowlevel.Wave
 import java.io.File
+import java.io.IOException
 
 fun File.writeBitmap(bitmap: Bitmap, format: Bitmap.CompressFormat, quality: Int = 100) {
     outputStream().use { out ->
@@ -13,15 +15,17 @@ fun File.writeBitmap(bitmap: Bitmap, format: Bitmap.CompressFormat, quality: Int
     }
 }
 
+/**
+ * Writes the audio a block at a time through a [Wave.WavWriter]
+ *
+ * @throws IOException or [Wave.WavFileException] if the file cannot be written
+ */
+@Throws(IOException::class, Wave.WavFileException::class)
 fun File.writeWave(waver: Waver) {
     waver.apply {
-        Wave.WavFile.newWavFile(
-            this@writeWave,
-            channelCount,
-            frameCount,
-            validBits,
-            sampleRate
-        ).writeAllFrames(this)
+        Wave.WavWriter(this@writeWave, channelCount, validBits, sampleRate).use { writer ->
+            frameBlocks(WAVE_BLOCK_FRAMES).forEach { writer.writeFrames(it.samples, it.frames) }
+        }
     }
 }
 
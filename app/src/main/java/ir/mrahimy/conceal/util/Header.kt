@@ -0,0 +1,179 @@
+package ir.mrahimy.conceal.util
+
+import ir.mrahimy.conceal.data.CarrierHeader
+import ir.mrahimy.conceal.data.CarrierHeader.Companion.DEFAULT_SAMPLE_DEPTH
+import ir.mrahimy.conceal.data.PixelBuffer
+import ir.mrahimy.conceal.data.enums.PayloadCodec
+import ir.mrahimy.conceal.util.lowlevel.LowLevelLsbOperations
+import ir.mrahimy.conceal.util.lowlevel.LowLevelLsbOperations.PIXELS_PER_NIBBLE
+import ir.mrahimy.conceal.util.lowlevel.LowLevelLsbOperations.PIXELS_PER_WORD
+import ir.mrahimy.conceal.util.lowlevel.LowLevelPackedOperations.MAX_DEPTH
+import ir.mrahimy.conceal.util.lowlevel.LowLevelPackedOperations.MIN_DEPTH
+import java.nio.ByteBuffer
+import java.util.zip.CRC32
+
+/**
+ * First word of the binary header. Its first nibble is 0, which the legacy header never starts
+ * with: it is the digit count of the sample rate.
+ */
+const val HEADER_MAGIC = 0x0F15C0DE
+
+/**
+ * magic, version and lsb depth and sample depth and codec and flags, sample rate, channel count
+ * and valid bits, frame count, max value, table words, checksum
+ */
+const val HEADER_WORDS = 8
+
+/**
+ * The words of [CarrierHeader.FIRST_BINARY_VERSION], which has no table words
+ */
+private const val FIRST_HEADER_WORDS = 7
+
+const val BINARY_HEADER_PIXELS = HEADER_WORDS * PIXELS_PER_WORD
+
+/**
+ * Set when the samples are kept as they are instead of being scaled against the max value
+ */
+private const val FLAG_LOSSLESS = 1
+
+/**
+ * The high nibble of the flags byte holds the [PayloadCodec] id
+ */
+private const val CODEC_SHIFT = 4
+
+/**
+ * The longest header there can be: the legacy one with five numbers of at most 15 digits, each
+ * digit and the digit count taking a nibble
+ */
+const val MAX_HEADER_PIXELS = 5 * (1 + 15) * PIXELS_PER_NIBBLE
+
+/**
+ * Thrown when an image does not hold anything concealed, or its header is broken.
+ * It is a [NumberFormatException] like the failures of parsing the legacy header.
+ */
+class ForeignImageException(message: String) : NumberFormatException(message)
+
+/**
+ * Puts the binary header inside 2 lsb of the r layer, one word every [PIXELS_PER_WORD] pixels.
+ * These 2 lsb are cleared first, whatever lsb depth the rest of the image has.
+ * @returns the position right after the header
+ */
+fun PixelBuffer.putCarrierHeader(header: CarrierHeader): Int {
+    val words = header.toWords()
+    val mask = (3 shl Layer.R.shift).inv()
+    for (position in 0 until words.size * PIXELS_PER_WORD) {
+        pixels[position] = pixels[position] and mask
+    }
+    words.forEachIndexed { index, word ->
+        LowLevelLsbOperations.putWord(pixels, index * PIXELS_PER_WORD, word, Layer.R.shift)
+    }
+    return words.size * PIXELS_PER_WORD
+}
+
+/**
+ * Reads either header, the version tells which one has been found
+ * @throws ForeignImageException as soon as the magic or the checksum does not match
+ * @throws NumberFormatException if a legacy header cannot be parsed
+ */
+fun PixelBuffer.getCarrierHeader(): CarrierHeader {
+    if (LowLevelLsbOperations.getNibble(pixels, 0, Layer.R.shift) != 0) return getLegacyHeader()
+
+    val magic = LowLevelLsbOperations.getWord(pixels, 0, Layer.R.shift)
+    if (magic != HEADER_MAGIC) throw ForeignImageException("no magic number")
+
+    val version = LowLevelLsbOperations.getWord(pixels, PIXELS_PER_WORD, Layer.R.shift) ushr 24
+    val wordCount = when (version) {
+        CarrierHeader.FIRST_BINARY_VERSION -> FIRST_HEADER_WORDS
+        CarrierHeader.BINARY_VERSION -> HEADER_WORDS
+        else -> throw ForeignImageException("unknown header version $version")
+    }
+    val words = IntArray(wordCount) {
+        LowLevelLsbOperations.getWord(pixels, it * PIXELS_PER_WORD, Layer.R.shift)
+    }
+    if (words.last() != words.checksum()) throw ForeignImageException("header checksum mismatch")
+
+    val lsbDepth = (words[1] ushr 16) and 0xff
+    if (lsbDepth != CarrierHeader.GROUPED_LSB_DEPTH && lsbDepth !in MIN_DEPTH..MAX_DEPTH)
+        throw ForeignImageException("unknown lsb depth $lsbDepth")
+
+    /** images concealed before sample depths were recorded leave it 0 */
+    val sampleDepth = ((words[1] ushr 8) and 0xff).takeIf { it != 0 } ?: DEFAULT_SAMPLE_DEPTH
+    if (sampleDepth !in CarrierHeader.SAMPLE_DEPTHS)
+        throw ForeignImageException("unknown sample depth $sampleDepth")
+
+    val codecId = (words[1] ushr CODEC_SHIFT) and 0xf
+    val codec = PayloadCodec.of(codecId) ?: throw ForeignImageException("unknown codec $codecId")
+
+    return CarrierHeader(
+        version,
+        lsbDepth,
+        sampleDepth,
+        words[1] and FLAG_LOSSLESS != 0,
+        codec,
+        words[2],
+        words[3] ushr 16,
+        words[4],
+        words[3] and 0xffff,
+        words[5],
+        if (version == CarrierHeader.BINARY_VERSION) words[6] else 0,
+        wordCount * PIXELS_PER_WORD
+    )
+}
+
+private fun PixelBuffer.getLegacyHeader(): CarrierHeader {
+    val parsedSampleRate = getSampleRate()
+    val parsedChannelCount = getChannelCount(parsedSampleRate.position)
+    val parsedFrameCount = getFrameCount(parsedChannelCount.position)
+    val parsedValidBits = getValidBits(parsedFrameCount.position)
+    val parsedMaxValue = getMaxValue(parsedValidBits.position)
+    return CarrierHeader(
+        CarrierHeader.LEGACY_VERSION,
+        CarrierHeader.GROUPED_LSB_DEPTH,
+        DEFAULT_SAMPLE_DEPTH,
+        false,
+        PayloadCodec.PCM,
+        parsedSampleRate.number,
+        parsedChannelCount.number,
+        parsedFrameCount.number,
+        parsedValidBits.number,
+        parsedMaxValue.number,
+        0,
+        parsedMaxValue.position
+    )
+}
+
+/**
+ * @param size the number of pixels
+ * @return where the samples are, right after this header
+ */
+fun CarrierHeader.layoutOf(size: Int): PayloadLayout =
+    if (lsbDepth == CarrierHeader.GROUPED_LSB_DEPTH) SampleLayout(size, position)
+    else PackedLayout(size, position, lsbDepth, sampleBits)
+
+private fun CarrierHeader.toWords(): IntArray {
+    val words = intArrayOf(
+        HEADER_MAGIC,
+        (CarrierHeader.BINARY_VERSION shl 24) or
+                (lsbDepth shl 16) or
+                (sampleDepth shl 8) or
+                (codec.id shl CODEC_SHIFT) or
+                (if (lossless) FLAG_LOSSLESS else 0),
+        sampleRate,
+        (channelCount shl 16) or (validBits and 0xffff),
+        frameCount,
+        maxValue,
+        tableWords,
+        0
+    )
+    words[words.lastIndex] = words.checksum()
+    return words
+}
+
+/**
+ * crc32 of every word but the last one, which holds the checksum itself
+ */
+private fun IntArray.checksum(): Int {
+    val bytes = ByteBuffer.allocate((size - 1) * Int.SIZE_BYTES)
+    for (index in 0 until lastIndex) bytes.putInt(this[index])
+    return CRC32().apply { update(bytes.array()) }.value.toInt()
+}
@@ -0,0 +1,154 @@
+package ir.mrahimy.conceal.util
+
+import ir.mrahimy.conceal.data.CarrierHeader
+import ir.mrahimy.conceal.util.lowlevel.LowLevelLsbOperations.PIXELS_PER_INTEGER
+import ir.mrahimy.conceal.util.lowlevel.LowLevelPackedOperations
+
+/**
+ * Same fidelity as the 3lsb of the grouped layout
+ */
+const val DEFAULT_LSB_DEPTH = 3
+
+/**
+ * Where the samples of the audio go inside the pixels, after the header: always the r layer
+ * first, then the g and b layers from their first pixel
+ *
+ * @param size the number of pixels
+ * @param startingPosition the position right after the header
+ */
+sealed class PayloadLayout(val size: Int, val startingPosition: Int) {
+
+    /**
+     * How many samples fit
+     */
+    abstract val capacity: Int
+
+    fun firstPositionOf(layer: Layer) = if (layer == Layer.R) startingPosition else 0
+
+    /**
+     * @return position of the first pixel holding the sample at index
+     */
+    abstract fun positionOf(index: Int): Int
+
+    /**
+     * @return how many pixels from the start of the image hold the first count samples. Once the
+     * r layer is full, g and b samples are spread all over the image so the whole of it is needed.
+     */
+    abstract fun pixelsHolding(count: Int): Int
+}
+
+/**
+ * The layout of the legacy versions, the same place the sequential loop puts samples at. Every
+ * sample takes [PIXELS_PER_INTEGER] pixels of a single layer with its sign in the 3rd lsb of the
+ * first one, so the place of any sample is known up front.
+ */
+class SampleLayout(size: Int, startingPosition: Int) : PayloadLayout(size, startingPosition) {
+
+    private val rCapacity = (size - startingPosition).coerceAtLeast(0) / PIXELS_PER_INTEGER
+    private val layerCapacity = size / PIXELS_PER_INTEGER
+
+    override val capacity = rCapacity + 2 * layerCapacity
+
+    fun capacityOf(layer: Layer) = if (layer == Layer.R) rCapacity else layerCapacity
+
+    /**
+     * @return index of the first sample that goes inside the layer
+     */
+    fun firstSampleOf(layer: Layer) = when (layer) {
+        Layer.R -> 0
+        Layer.G -> rCapacity
+        Layer.B -> rCapacity + layerCapacity
+    }
+
+    override fun positionOf(index: Int): Int {
+        val layer = layerOf(index)
+        return firstPositionOf(layer) + (index - firstSampleOf(layer)) * PIXELS_PER_INTEGER
+    }
+
+    fun layerOf(index: Int) = when {
+        index < firstSampleOf(Layer.G) -> Layer.R
+        index < firstSampleOf(Layer.B) -> Layer.G
+        else -> Layer.B
+    }
+
+    override fun pixelsHolding(count: Int) =
+        if (count <= rCapacity) startingPosition + count * PIXELS_PER_INTEGER else size
+}
+
+/**
+ * Samples of [sampleBits] laid one after another as a stream of bits, [depth] bits of it inside
+ * every layer of every pixel, see [LowLevelPackedOperations]. Nothing is wasted on alignment, a
+ * sample may even start in a layer and end in the next one.
+ *
+ * @param depth how many lsb of each layer are used, from [LowLevelPackedOperations.MIN_DEPTH] to
+ * [LowLevelPackedOperations.MAX_DEPTH]
+ */
+class PackedLayout(
+    size: Int,
+    startingPosition: Int,
+    val depth: Int,
+    val sampleBits: Int = CarrierHeader.DEFAULT_SAMPLE_DEPTH + 1
+) : PayloadLayout(size, startingPosition) {
+
+    init {
+        require(depth in LowLevelPackedOperations.MIN_DEPTH..LowLevelPackedOperations.MAX_DEPTH) {
+            "lsb depth $depth is not supported"
+        }
+    }
+
+    private val rSlots = (size - startingPosition).coerceAtLeast(0)
+
+    val slots = rSlots + 2L * size
+
+    override val capacity =
+        LowLevelPackedOperations.capacity(slots, depth, sampleBits).coerceAtMost(Int.MAX_VALUE.toLong()).toInt()
+
+    fun slotsOf(layer: Layer) = if (layer == Layer.R) rSlots.toLong() else size.toLong()
+
+    /**
+     * @return index of the first slot inside the layer
+     */
+    fun firstSlotOf(layer: Layer) = when (layer) {
+        Layer.R -> 0L
+        Layer.G -> rSlots.toLong()
+        Layer.B -> rSlots.toLong() + size
+    }
+
+    fun slotsHolding(count: Int) = LowLevelPackedOperations.slotsHolding(count.toLong(), depth, sampleBits)
+
+    override fun positionOf(index: Int): Int {
+        val slot = index.toLong() * sampleBits / depth
+        val layer = when {
+            slot < firstSlotOf(Layer.G) -> Layer.R
+            slot < firstSlotOf(Layer.B) -> Layer.G
+            else -> Layer.B
+        }
+        return firstPositionOf(layer) + (slot - firstSlotOf(layer)).toInt()
+    }
+
+    override fun pixelsHolding(count: Int): Int {
+        val slots = slotsHolding(count)
+        return if (slots <= rSlots) startingPosition + slots.toInt() else size
+    }
+
+    /**
+     * @return the runs of positions holding the slots from until to, in order and apart from
+     * each other, at most a run a layer
+     */
+    fun positionsOf(fromSlot: Long, toSlot: Long): List<IntRange> {
+        val runs = mutableListOf<IntRange>()
+        Layer.values().forEach { layer ->
+            val first = firstSlotOf(layer)
+            val from = maxOf(fromSlot, first) - first
+            val to = minOf(toSlot, first + slotsOf(layer)) - first
+            if (from < to) runs += firstPositionOf(layer) + from.toInt() until firstPositionOf(layer) + to.toInt()
+        }
+        runs.sortBy { it.first }
+        return runs.fold(mutableListOf()) { merged, run ->
+            val last = merged.lastOrNull()
+            if (last != null && run.first <= last.last + 1) merged[merged.size - 1] = last.first..maxOf(last.last, run.last)
+            else merged += run
+            merged
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package ir.mrahimy.conceal.util
+
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * Bounded queue of 16-bit pcm between a single thread decoding samples and a single one playing
+ * them. The decoder waits while the buffer is full and the player while it is empty, so decoding
+ * keeps only [capacity] samples ahead of playback and never more.
+ *
+ * The waits block their threads and are not woken by coroutine cancellation, so both sides belong
+ * on blocking threads such as [kotlinx.coroutines.Dispatchers.IO] and [cancel] is what gets them out.
+ */
+class PcmRingBuffer(val capacity: Int) {
+
+    private val samples = ShortArray(capacity)
+    private val lock = ReentrantLock()
+    private val notEmpty = lock.newCondition()
+    private val notFull = lock.newCondition()
+
+    private var head = 0
+    private var count = 0
+    private var isClosed = false
+    private var isCancelled = false
+
+    /**
+     * Puts the samples from until to, waiting for room as long as needed
+     *
+     * @return false if the buffer has been cancelled, the rest of the samples are not wanted
+     */
+    fun write(source: ShortArray, from: Int = 0, to: Int = source.size): Boolean {
+        var index = from
+        while (index < to) lock.withLock {
+            while (count == capacity && !isCancelled) notFull.await()
+            if (isCancelled) return false
+
+            val tail = (head + count) % capacity
+            val length = minOf(to - index, capacity - count, capacity - tail)
+            source.copyInto(samples, tail, index, index + length)
+            count += length
+            index += length
+            notEmpty.signal()
+        }
+        return true
+    }
+
+    /**
+     * Takes as many samples as there are, up to to - from, waiting for some if there are none
+     *
+     * @return how many samples are taken, -1 once the buffer is closed and drained or cancelled
+     */
+    fun read(target: ShortArray, from: Int = 0, to: Int = target.size): Int = lock.withLock {
+        while (count == 0 && !isClosed && !isCancelled) notEmpty.await()
+        if (isCancelled || count == 0) return -1
+
+        val length = minOf(to - from, count, capacity - head)
+        samples.copyInto(target, from, head, head + length)
+        head = (head + length) % capacity
+        count -= length
+        notFull.signal()
+        length
+    }
+
+    /**
+     * Tells the reader no more samples are coming, it still gets the ones in the buffer
+     */
+    fun close() = lock.withLock {
+        isClosed = true
+        notEmpty.signalAll()
+    }
+
+    /**
+     * Drops the samples in the buffer and wakes up both sides, from any thread
+     */
+    fun cancel() = lock.withLock {
+        isCancelled = true
+        count = 0
+        notEmpty.signalAll()
+        notFull.signalAll()
+    }
+}
@@ -0,0 +1,51 @@
+package ir.mrahimy.conceal.util
+
+import kotlinx.coroutines.channels.Channel
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * At most 30 progress reports a second, as often as the preview can show them
+ */
+const val PROGRESS_INTERVAL_MS = 1000L / 30
+
+/**
+ * Progress of a job running on any number of threads, kept as a single primitive counter.
+ * Workers add to it as they go and, once every [intervalMs] at most, signal a conflated channel.
+ * The single reader wakes up on these signals only and always reads the latest count, so workers
+ * never wait for it and nothing is allocated per report.
+ */
+class Progress(intervalMs: Long = PROGRESS_INTERVAL_MS) {
+
+    private val intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMs)
+    private val counter = AtomicLong()
+    private val lastSignal = AtomicLong(System.nanoTime())
+    private val signals = Channel<Unit>(Channel.CONFLATED)
+
+    val done: Long
+        get() = counter.get()
+
+    /**
+     * Can be called from any thread
+     */
+    fun add(count: Long) {
+        counter.addAndGet(count)
+        val now = System.nanoTime()
+        val last = lastSignal.get()
+        if (now - last >= intervalNanos && lastSignal.compareAndSet(last, now)) signals.offer(Unit)
+    }
+
+    /**
+     * Ends [collect] once the job is over, whether it is done or it has failed
+     */
+    fun close() {
+        signals.close()
+    }
+
+    /**
+     * Reports the latest count on every signal, until [close] is called
+     */
+    suspend fun collect(report: suspend (done: Long) -> Unit) {
+        for (signal in signals) report(counter.get())
+    }
+}
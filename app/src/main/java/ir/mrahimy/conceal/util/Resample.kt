@@ -0,0 +1,79 @@
+package ir.mrahimy.conceal.util
+
+import ir.mrahimy.conceal.data.SampleStore
+import ir.mrahimy.conceal.data.Waver
+import ir.mrahimy.conceal.util.lowlevel.PolyphaseResampler
+import kotlin.math.abs
+
+/**
+ * Rates the audio is brought down to when it does not fit inside the image, the highest first
+ */
+val FITTING_SAMPLE_RATES = longArrayOf(22050, 16000, 8000)
+
+/**
+ * Every format the audio can be brought to, from the best to the smallest: as it is, downmixed to
+ * mono, and then mono at each of [FITTING_SAMPLE_RATES] below its own rate
+ */
+fun Waver.fittingFormats(): List<Pair<Long, Int>> = fittingFormatsOf(sampleRate, channelCount)
+
+/**
+ * [fittingFormats] of audio of this format, known before the audio is read
+ */
+fun fittingFormatsOf(sampleRate: Long, channelCount: Int): List<Pair<Long, Int>> =
+    listOf(sampleRate to channelCount, sampleRate to 1).distinct() +
+            FITTING_SAMPLE_RATES.filter { it < sampleRate }.map { it to 1 }
+
+/**
+ * @param capacity how many samples fit inside the image
+ * @return the audio in the best of [fittingFormats] that fits, or in the smallest one when none
+ * does. The audio itself when it fits as it is.
+ */
+fun Waver.fitInto(capacity: Int): Waver {
+    val formats = fittingFormats()
+    val (rate, channels) = formats.firstOrNull { (rate, channels) ->
+        PolyphaseResampler(sampleRate.toInt(), rate.toInt()).outputFramesOf(frameCount) * channels <= capacity
+    } ?: formats.last()
+    return resample(rate, channels)
+}
+
+/**
+ * @param channelCount the channel count of the audio, or 1 to downmix it
+ * @return the audio at the given rate, worked out frame by frame straight from this one, its
+ * [Waver.segments] following
+ */
+fun Waver.resample(sampleRate: Long, channelCount: Int): Waver {
+    if (sampleRate == this.sampleRate && channelCount == this.channelCount) return this
+
+    val resampler = PolyphaseResampler(this.sampleRate.toInt(), sampleRate.toInt())
+    val frames = resampler.outputFramesOf(frameCount)
+    val output = SampleStore.ofSize((frames * channelCount).toInt(), validBits)
+    val (min, max) = when {
+        validBits <= 8 -> 0L to 255L
+        validBits >= Long.SIZE_BITS -> Long.MIN_VALUE to Long.MAX_VALUE
+        else -> -(1L shl (validBits - 1)) to (1L shl (validBits - 1)) - 1
+    }
+
+    /** a block of output frames at a time, out of a window of the input widened for it alone */
+    val inputChannels = this.channelCount
+    val inputFrames = minOf(frameCount, (samples.size / inputChannels).toLong())
+    val block = LongArray(WAVE_BLOCK_FRAMES * channelCount)
+    var window = LongArray(0)
+    var maxValue = 1L
+    for (from in 0 until frames step WAVE_BLOCK_FRAMES.toLong()) {
+        val to = minOf(from + WAVE_BLOCK_FRAMES, frames)
+        val first = resampler.firstInputFrameOf(from)
+        val windowSize = ((minOf(resampler.inputFramesUntil(to - 1), inputFrames) - first).coerceAtLeast(0) * inputChannels).toInt()
+        if (window.size < windowSize) window = LongArray(windowSize)
+        samples.copyInto(window, 0, (first * inputChannels).toInt(), (first * inputChannels).toInt() + windowSize)
+        resampler.resample(window, first, inputChannels, inputFrames, block, from, to, channelCount, min, max)
+
+        val count = ((to - from) * channelCount).toInt()
+        for (index in 0 until count) maxValue = maxOf(maxValue, abs(block[index]))
+        output.copyFrom(block, (from * channelCount).toInt(), 0, count)
+    }
+
+    return Waver(output, sampleRate, channelCount, frames, validBits).also { waver ->
+        waver.maxValue = maxValue
+        waver.segments = segments?.resampled(this.sampleRate, sampleRate)
+    }
+}
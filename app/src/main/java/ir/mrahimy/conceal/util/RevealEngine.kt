@@ -0,0 +1,82 @@
+package ir.mrahimy.conceal.util
+
+import ir.mrahimy.conceal.data.PixelBuffer
+import ir.mrahimy.conceal.util.lowlevel.LowLevelLsbOperations
+import ir.mrahimy.conceal.util.lowlevel.LowLevelLsbOperations.PIXELS_PER_INTEGER
+import ir.mrahimy.conceal.util.lowlevel.LowLevelPackedOperations
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+
+/**
+ * Gets the first count samples back on [workers] threads. The samples are split in bands, each
+ * band is decoded straight into its own range of the result so nothing has to be merged
+ * afterwards. The result is the same as [getAllSignedIntegers] for the same samples.
+ *
+ * @param layout where the samples have been put
+ * @param count how many samples to get, at most [PayloadLayout.capacity]
+ */
+suspend fun PixelBuffer.getAllSignedIntegersInParallel(
+    layout: PayloadLayout,
+    count: Int = layout.capacity,
+    workers: Int = Runtime.getRuntime().availableProcessors()
+): IntArray = coroutineScope {
+    val samples = IntArray(count.coerceIn(0, layout.capacity))
+    if (samples.isEmpty()) return@coroutineScope samples
+
+    val bandSize = (samples.size + workers - 1) / workers
+    (samples.indices step bandSize).map { bandStart ->
+        async(Dispatchers.Default) {
+            val bandEnd = minOf(bandStart + bandSize, samples.size)
+            getBand(layout, samples, bandStart, bandEnd)
+        }
+    }.awaitAll()
+    samples
+}
+
+/**
+ * Gets the samples from until to alone, on the calling thread, only the pixels holding them are
+ * read
+ */
+fun PixelBuffer.getSignedIntegers(layout: PayloadLayout, from: Int, to: Int): IntArray {
+    val last = to.coerceAtMost(layout.capacity)
+    if (from >= last) return IntArray(0)
+    return IntArray(last - from).also { getBand(layout, it, from, last, from) }
+}
+
+/**
+ * Decodes samples from until to, a band may start in a layer and end in the next one
+ *
+ * @param first index of the sample at the start of samples
+ */
+private fun PixelBuffer.getBand(layout: PayloadLayout, samples: IntArray, from: Int, to: Int, first: Int = 0) =
+    when (layout) {
+        is SampleLayout -> getBand(layout, samples, from, to, first)
+        is PackedLayout -> getBand(layout, samples, from, to, first)
+    }
+
+private fun PixelBuffer.getBand(layout: SampleLayout, samples: IntArray, from: Int, to: Int, first: Int) {
+    Layer.values().forEach { layer ->
+        val start = maxOf(from, layout.firstSampleOf(layer))
+        val last = minOf(to, layout.firstSampleOf(layer) + layout.capacityOf(layer))
+        var position = layout.positionOf(start)
+        for (index in start until last) {
+            samples[index - first] = LowLevelLsbOperations.getSignedIntegerLut(pixels, position, layer.shift)
+            position += PIXELS_PER_INTEGER
+        }
+    }
+}
+
+private fun PixelBuffer.getBand(layout: PackedLayout, samples: IntArray, from: Int, to: Int, first: Int) =
+    LowLevelPackedOperations.getSamples(
+        pixels,
+        Layer.values().map { layout.firstPositionOf(it) }.toIntArray(),
+        Layer.values().map { it.shift }.toIntArray(),
+        layout.depth,
+        samples,
+        layout.sampleBits,
+        from,
+        to,
+        first
+    )
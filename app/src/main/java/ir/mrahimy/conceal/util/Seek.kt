@@ -0,0 +1,113 @@
+package ir.mrahimy.conceal.util
+
+import ir.mrahimy.conceal.data.CarrierHeader
+import ir.mrahimy.conceal.data.ChunkIndex
+import ir.mrahimy.conceal.data.PixelBuffer
+import ir.mrahimy.conceal.data.Waver
+import ir.mrahimy.conceal.data.dequantize
+import ir.mrahimy.conceal.data.dequantizeChunks
+import ir.mrahimy.conceal.data.tablesOf
+
+/**
+ * @return the frame of the audio at the time, in milliseconds
+ */
+fun CarrierHeader.frameAt(timeMs: Long) = sampleRate.toLong() * timeMs / 1000
+
+/**
+ * Reveals any range of the audio alone. The chunk index of the payload tells where the codes of
+ * every chunk are, so only the chunks holding a range are read and decoded, however long the
+ * audio is. Payloads without an index are decoded from their start for every range.
+ *
+ * @param load makes sure the pixels from until to are in the buffer before they are read, the
+ * buffer may hold the header alone to begin with
+ * @throws ForeignImageException if the payload tables are broken
+ */
+class PayloadSeeker(
+    private val pixels: PixelBuffer,
+    val header: CarrierHeader,
+    private val load: (from: Int, to: Int) -> Unit = { _, _ -> }
+) {
+
+    private val layout = header.layoutOf(pixels.size)
+
+    private val tables = run {
+        load(0, layout.pixelsHolding(header.tableCount))
+        pixels.getSignedIntegers(layout, 0, header.tableCount).tablesOf(header)
+    }
+
+    /**
+     * Frames of the audio as it was recorded, silence trimmed away or not
+     */
+    val frameCount: Long
+        get() = tables.segments?.frames ?: header.frameCount.toLong()
+
+    /**
+     * Whether a range can be revealed without what comes before it
+     */
+    val isIndexed: Boolean
+        get() = tables.chunks.let { it != null && it.chunkCount > 0 }
+
+    /**
+     * How many frames are coded together, revealing less is no faster
+     */
+    val chunkFrames: Int
+        get() = tables.chunks?.chunkFrames ?: ChunkIndex.framesOf(header.sampleRate)
+
+    /**
+     * @param fromFrame the first frame of the audio as it was recorded, and toFrame the frame past
+     * the last one
+     */
+    fun reveal(fromFrame: Long, toFrame: Long): Waver {
+        val segments = tables.segments
+        val from = fromFrame.coerceIn(0, frameCount)
+        val to = toFrame.coerceIn(from, frameCount)
+        val keptFrom = segments?.keptFramesBefore(from) ?: from
+        val keptTo = segments?.keptFramesBefore(to) ?: to
+
+        val channelCount = header.channelCount.coerceAtLeast(1)
+        val chunks = tables.chunks
+        val kept = when {
+            keptTo == keptFrom -> LongArray(0)
+            chunks == null || chunks.chunkCount == 0 -> {
+                val count = header.payloadCount.coerceAtMost(layout.capacity.toLong()).toInt()
+                load(0, layout.pixelsHolding(count))
+                pixels.getSignedIntegers(layout, 0, count).dequantize(header).sliceFrames(keptFrom, keptTo, channelCount)
+            }
+            else -> {
+                val first = chunks.chunkOf(keptFrom)
+                val last = chunks.chunkOf(keptTo - 1) + 1
+                val codeFrom = header.tableCount + chunks.offsets[first].toLong()
+                val codeTo = header.tableCount + chunks.endOf(last - 1, header.sampleCodeCount)
+                val lastPixel = layout.pixelsHolding(codeTo.coerceAtMost(layout.capacity.toLong()).toInt())
+                /** codes spilling into the g and b layers are spread all over the image */
+                load(if (lastPixel < pixels.size) layout.positionOf(codeFrom.toInt()) else 0, lastPixel)
+
+                val firstFrame = first.toLong() * chunks.chunkFrames
+                pixels.getSignedIntegers(layout, codeFrom.toInt(), codeTo.toInt())
+                    .dequantizeChunks(header, chunks, first, last)
+                    .sliceFrames(keptFrom - firstFrame, keptTo - firstFrame, channelCount)
+            }
+        }
+
+        val waver = Waver(kept, header.sampleRate.toLong(), header.channelCount, keptTo - keptFrom, header.validBits)
+        return segments?.let { waver.restoreSilence(it, from, to) } ?: waver
+    }
+}
+
+/**
+ * Reveals the frames from until to of the audio alone, see [PayloadSeeker]
+ *
+ * @throws ForeignImageException if the payload tables are broken
+ */
+fun PixelBuffer.revealRange(
+    header: CarrierHeader,
+    fromFrame: Long,
+    toFrame: Long,
+    load: (from: Int, to: Int) -> Unit = { _, _ -> }
+) = PayloadSeeker(this, header, load).reveal(fromFrame, toFrame)
+
+/**
+ * @return the samples of the frames from until to, as many of them as there are
+ */
+private fun LongArray.sliceFrames(from: Long, to: Long, channelCount: Int) =
+    copyOfRange(minOf(from * channelCount, size.toLong()).toInt(), minOf(to * channelCount, size.toLong()).toInt())
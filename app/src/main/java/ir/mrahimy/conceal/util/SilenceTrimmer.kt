@@ -0,0 +1,129 @@
+package ir.mrahimy.conceal.util
+
+import ir.mrahimy.conceal.data.SampleStore
+import ir.mrahimy.conceal.data.SegmentTable
+import ir.mrahimy.conceal.data.Waver
+import ir.mrahimy.conceal.data.frameBlocks
+
+/**
+ * Energy is measured over windows of this length
+ */
+const val VAD_WINDOW_MS = 20
+
+/**
+ * A window quieter than this, in dB below full scale, is silent
+ */
+const val VAD_THRESHOLD_DB = -40.0
+
+/**
+ * Voice is kept this long around every window that has it, so soft onsets and tails stay
+ */
+const val VAD_HANGOVER_MS = 100
+
+/**
+ * Shorter silence is kept, a table entry would cost more than it saves and speech would sound
+ * chopped
+ */
+const val VAD_MIN_SILENCE_MS = 300
+
+/**
+ * Drops the silent spans of the audio, found by the mean power of every [VAD_WINDOW_MS] window
+ * against the full scale of [Waver.validBits], so the same level is silent in a quiet recording
+ * and in a loud one
+ *
+ * @param keepTimeline whether the result has [Waver.segments] telling where its spans were
+ * @return the spans holding voice back to back, or this audio when there is no silence to drop
+ * or nothing but silence
+ */
+fun Waver.trimSilence(keepTimeline: Boolean): Waver {
+    val channels = channelCount.coerceAtLeast(1)
+    val window = (sampleRate * VAD_WINDOW_MS / 1000).coerceAtLeast(1).toInt()
+    val windows = ((frameCount + window - 1) / window).toInt()
+    if (windows == 0) return this
+
+    val center = if (validBits <= 8) 128.0 else 0.0
+    val energies = DoubleArray(windows)
+    frameBlocks(WAVE_BLOCK_FRAMES).forEach { block ->
+        for (blockFrame in 0 until minOf(block.frames.toLong(), frameCount - block.firstFrame).toInt()) {
+            var sum = 0.0
+            for (channel in 0 until channels) {
+                val sample = block.samples[blockFrame * channels + channel] - center
+                sum += sample * sample
+            }
+            energies[((block.firstFrame + blockFrame) / window).toInt()] += sum / channels
+        }
+    }
+    val fullScale = if (validBits <= 8) 128.0 else Math.pow(2.0, (validBits - 1).toDouble())
+    val threshold = fullScale * fullScale * Math.pow(10.0, VAD_THRESHOLD_DB / 10)
+    val hangover = (VAD_HANGOVER_MS + VAD_WINDOW_MS - 1) / VAD_WINDOW_MS
+    val minSilence = (VAD_MIN_SILENCE_MS + VAD_WINDOW_MS - 1) / VAD_WINDOW_MS
+    val voiced = BooleanArray(windows)
+    energies.forEachIndexed { index, energy ->
+        val frames = minOf(window.toLong(), frameCount - index.toLong() * window)
+        if (energy / frames < threshold) return@forEachIndexed
+        for (near in maxOf(0, index - hangover)..minOf(windows - 1, index + hangover)) voiced[near] = true
+    }
+    if (voiced.none { it }) return this
+
+    val spans = mutableListOf<Long>()
+    var index = 0
+    while (index < windows) {
+        val start = index
+        while (index < windows && voiced[index] == voiced[start]) index++
+        /** silence too short to drop, at the edges too, is kept with the voice around it */
+        val keep = voiced[start] || index - start < minSilence
+        if (!keep) continue
+        val from = start.toLong() * window
+        val to = minOf(index.toLong() * window, frameCount)
+        if (spans.isNotEmpty() && spans[spans.size - 2] + spans[spans.size - 1] == from) {
+            spans[spans.size - 1] += to - from
+        } else {
+            spans += from
+            spans += to - from
+        }
+    }
+    if (spans.size == 2 && spans[1] == frameCount) return this
+
+    val keptFrames = (1 until spans.size step 2).map { spans[it] }.sum()
+    val kept = SampleStore.ofSize((keptFrames * channels).toInt(), validBits)
+    var position = 0
+    for (span in spans.indices step 2) {
+        val length = (spans[span + 1] * channels).toInt()
+        samples.copyInto(kept, position, (spans[span] * channels).toInt(), (spans[span] * channels).toInt() + length)
+        position += length
+    }
+
+    return Waver(kept, sampleRate, channelCount, keptFrames, validBits).also { waver ->
+        waver.maxValue = maxValue
+        if (keepTimeline) waver.segments = SegmentTable(frameCount, spans.toLongArray())
+    }
+}
+
+/**
+ * Puts the spans of this audio back where the table tells, silence in between. Spans cut short,
+ * by a payload that did not fit or by resampling, leave silence in their place.
+ *
+ * @param from the first frame of the original audio to rebuild, this audio starting with the
+ * frames kept from there on, and to the frame past the last one
+ */
+fun Waver.restoreSilence(table: SegmentTable, from: Long = 0, to: Long = table.frames): Waver {
+    val channels = channelCount.coerceAtLeast(1)
+    val silence = if (validBits <= 8) 128L else 0L
+    val restored = SampleStore.ofSize(((to - from) * channels).toInt(), validBits).apply { fill(silence) }
+
+    var kept = -table.keptFramesBefore(from)
+    for (segment in 0 until table.segmentCount) {
+        val start = table.startOf(segment)
+        val spanFrom = maxOf(start, from)
+        val spanTo = minOf(start + table.lengthOf(segment), to)
+        if (spanTo > spanFrom) {
+            val position = ((kept + spanFrom - start) * channels).toInt()
+            val length = minOf((spanTo - spanFrom) * channels, (samples.size - position).toLong()).toInt()
+            if (length <= 0) break
+            samples.copyInto(restored, ((spanFrom - from) * channels).toInt(), position, position + length)
+        }
+        kept += table.lengthOf(segment)
+    }
+
+    return Waver(restored, sampleRate, channelCount, to - from, validBits).also { it.maxValue = maxValue }
+}
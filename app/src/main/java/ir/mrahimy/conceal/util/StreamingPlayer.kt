@@ -0,0 +1,141 @@
+package ir.mrahimy.conceal.util
+
+import android.media.AudioAttributes
+import android.media.AudioFormat
+import android.media.AudioManager
+import android.media.AudioTrack
+import ir.mrahimy.conceal.util.lowlevel.LowLevelCodecOperations
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+
+/**
+ * Decoded pcm is kept this far ahead of playback at most
+ */
+const val STREAM_BUFFER_MS = 500
+
+/**
+ * Plays the audio of an image as it is revealed: chunk after chunk is revealed through the
+ * seeker, turned to 16-bit pcm and handed through a [PcmRingBuffer] to an [AudioTrack], so
+ * playback starts once the first chunk is decoded. Neither a wave file nor the whole audio is
+ * ever made. Audio of more than 2 channels is downmixed to mono.
+ *
+ * A player plays once, a new one is made for every play.
+ */
+class StreamingPlayer(private val seeker: PayloadSeeker) {
+
+    private val header = seeker.header
+    private val outputChannels = if (header.channelCount == 2) 2 else 1
+    private val ring = PcmRingBuffer(
+        (header.sampleRate.toLong() * STREAM_BUFFER_MS / 1000 * outputChannels).coerceIn(1, Int.MAX_VALUE.toLong()).toInt()
+    )
+
+    @Volatile
+    private var track: AudioTrack? = null
+
+    @Volatile
+    private var firstFrame = 0L
+
+    /**
+     * The frame of the audio being played, or the one play started from while there is none
+     */
+    val playingFrame: Long
+        get() = firstFrame + (track?.playbackHeadPosition?.toLong() ?: 0)
+
+    /**
+     * Plays from the frame on, suspending until the end of the audio or until [stop] is called
+     */
+    suspend fun play(fromFrame: Long = 0) = coroutineScope {
+        firstFrame = fromFrame.coerceIn(0, seeker.frameCount)
+        val channelMask = if (outputChannels == 2) AudioFormat.CHANNEL_OUT_STEREO else AudioFormat.CHANNEL_OUT_MONO
+        val bufferSize = AudioTrack.getMinBufferSize(header.sampleRate, channelMask, AudioFormat.ENCODING_PCM_16BIT)
+        val audioTrack = AudioTrack(
+            AudioAttributes.Builder()
+                .setUsage(AudioAttributes.USAGE_MEDIA)
+                .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+                .build(),
+            AudioFormat.Builder()
+                .setSampleRate(header.sampleRate)
+                .setChannelMask(channelMask)
+                .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                .build(),
+            bufferSize,
+            AudioTrack.MODE_STREAM,
+            AudioManager.AUDIO_SESSION_ID_GENERATE
+        )
+        track = audioTrack
+
+        /** both sides wait on the ring blocking, only cancelling it gets them out once play is cancelled */
+        val cancellation = launch {
+            try {
+                delay(Long.MAX_VALUE)
+            } finally {
+                ring.cancel()
+            }
+        }
+
+        /** the decoder spends most of playback waiting for room, that is not for a cpu thread */
+        launch(Dispatchers.IO) {
+            try {
+                decode(fromFrame)
+            } finally {
+                ring.close()
+            }
+        }
+
+        withContext(Dispatchers.IO) {
+            try {
+                audioTrack.play()
+                val buffer = ShortArray((bufferSize / 2).coerceAtLeast(outputChannels))
+                var written = 0L
+                while (true) {
+                    val count = ring.read(buffer)
+                    if (count < 0) break
+                    audioTrack.write(buffer, 0, count)
+                    written += count / outputChannels
+                }
+                /** the track still holds up to a buffer of frames to play */
+                while (isActive && track != null && audioTrack.playbackHeadPosition < written) delay(20)
+                audioTrack.stop()
+            } finally {
+                track = null
+                audioTrack.release()
+            }
+        }
+        cancellation.cancel()
+    }
+
+    private fun CoroutineScope.decode(fromFrame: Long) {
+        val step = if (seeker.isIndexed) seeker.chunkFrames.toLong() else seeker.frameCount
+        var frame = fromFrame.coerceAtLeast(0)
+        while (isActive && frame < seeker.frameCount) {
+            val to = minOf((frame / step + 1) * step, seeker.frameCount)
+            val waver = seeker.reveal(frame, to)
+            val channelCount = header.channelCount.coerceAtLeast(1)
+            val samples = waver.samples.toLongArray()
+            val pcm = ShortArray(samples.size / channelCount * outputChannels)
+            LowLevelCodecOperations.toPcm16(samples, header.validBits, channelCount, outputChannels, pcm)
+            if (!ring.write(pcm)) return
+            frame = to
+        }
+    }
+
+    /**
+     * Stops playback right away, from any thread
+     */
+    fun stop() {
+        ring.cancel()
+        val playing = track ?: return
+        track = null
+        try {
+            playing.pause()
+            playing.flush()
+        } catch (e: IllegalStateException) {
+            /** released meanwhile, it has played to its end */
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package ir.mrahimy.conceal.util
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.graphics.BitmapRegionDecoder
+import android.graphics.Rect
+import ir.mrahimy.conceal.data.CarrierHeader
+import ir.mrahimy.conceal.data.PixelBuffer
+import ir.mrahimy.conceal.data.Waver
+import ir.mrahimy.conceal.data.toWaver
+import ir.mrahimy.conceal.util.ktx.decodePixelCount
+import ir.mrahimy.conceal.util.ktx.loadBitmap
+import ir.mrahimy.conceal.util.lowlevel.LowLevelLsbOperations
+import ir.mrahimy.conceal.util.lowlevel.LowLevelLsbOperations.PIXELS_PER_INTEGER
+import ir.mrahimy.conceal.util.lowlevel.LowLevelPackedOperations
+import ir.mrahimy.conceal.util.lowlevel.PngWriter
+import kotlinx.coroutines.yield
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+
+/**
+ * Pixels decoded at once in tiled mode, about 4MB whatever the size of the image
+ */
+const val TILE_PIXELS = 1 shl 20
+
+/**
+ * Full size copies of the pixels a conceal keeps at once: the decoded bitmap, its pixel buffer
+ * and the output bitmap
+ */
+private const val FULL_SIZE_COPIES = 3
+
+/**
+ * Whether an image is too large to be decoded whole, that is when its copies would take more
+ * than half of the heap
+ */
+fun shouldTile(pixelCount: Int, maxMemory: Long = Runtime.getRuntime().maxMemory()) =
+    pixelCount.toLong() * Int.SIZE_BYTES * FULL_SIZE_COPIES > maxMemory / 2
+
+/**
+ * Rows of a band: about [TILE_PIXELS] pixels, never less than the longest header so the header is
+ * always inside the first band
+ */
+fun bandRowsOf(width: Int) = maxOf(rowsHolding(MAX_HEADER_PIXELS, width), TILE_PIXELS / width, 1)
+
+/**
+ * Decodes the image whole, or a smaller copy of it when it is too large to be, see [shouldTile]
+ */
+fun String.loadPreviewBitmap(): Bitmap =
+    if (shouldTile(decodePixelCount())) loadBitmap(TILE_PIXELS) else loadBitmap()
+
+internal fun rowsHolding(pixels: Int, width: Int, height: Int = Int.MAX_VALUE) =
+    minOf(height, (pixels + width - 1) / width)
+
+/**
+ * Conceals the samples into the image at this path a band of rows at a time, see
+ * [concealBands], and writes the result to output as a png. Only a band of the image is ever in
+ * memory.
+ *
+ * @param checkpointer if any, saves how far output is written between two bands
+ * @param resumeFrom where output was left by a checkpoint of the same conceal, the output being
+ * written from scratch if there is none or it is shorter than that
+ * @param onProgress called after each band with how many rows are done so far
+ * @throws HugeFileException if the samples do not fit, before writing anything
+ * @throws IOException if the image cannot be decoded or the output cannot be written
+ */
+@Throws(IOException::class)
+suspend fun String.concealTiled(
+    output: File,
+    header: CarrierHeader,
+    samples: IntArray,
+    checkpointer: Checkpointer? = null,
+    resumeFrom: PngWriter.State? = null,
+    onProgress: (rows: Int, height: Int) -> Unit = { _, _ -> }
+) = decodeBands { width, height, readRows ->
+    val layout = PackedLayout(width * height, BINARY_HEADER_PIXELS, header.lsbDepth, header.sampleBits)
+    if (samples.size > layout.capacity)
+        throw HugeFileException(samples.findPercent(layout.capacity).toInt())
+
+    val resumed = resumeFrom?.takeIf { output.length() >= it.length && it.rowsWritten % bandRowsOf(width) == 0 }
+    val stream = if (resumed == null) output.outputStream() else {
+        RandomAccessFile(output, "rw").use { it.setLength(resumed.length) }
+        FileOutputStream(output, true)
+    }
+    PngWriter(stream.buffered(), width, height, resumed).use { png ->
+        concealBands(width, height, header, samples, readRows, fromRow = resumed?.rowsWritten ?: 0) { band, from, to ->
+            png.writeRows(band, to - from)
+            checkpointer?.save(output, png)
+            onProgress(to, height)
+        }
+    }
+    checkpointer?.clear()
+}
+
+/**
+ * Reveals the audio from the image at this path a band of rows at a time, see [revealBands].
+ * Only the bands holding the header and the samples are decoded.
+ *
+ * @throws NumberFormatException if the image does not hold any audio
+ * @throws IOException if the image cannot be decoded
+ */
+@Throws(IOException::class)
+suspend fun String.parseWaverTiled(): Waver = decodeBands { width, height, readRows ->
+    revealBands(width, height, readRows)
+}
+
+/**
+ * Hands the body a way to read any band of rows of the image at this path, decoded through a
+ * single reused bitmap of [bandRowsOf] rows
+ */
+private suspend fun <T> String.decodeBands(
+    body: suspend (width: Int, height: Int, readRows: (IntArray, Int, Int) -> Unit) -> T
+): T {
+    val decoder = BitmapRegionDecoder.newInstance(this, false)
+        ?: throw IOException("cannot decode $this")
+    try {
+        val width = decoder.width
+        val height = decoder.height
+        val options = BitmapFactory.Options().apply {
+            inPreferredConfig = Bitmap.Config.ARGB_8888
+            inBitmap = Bitmap.createBitmap(width, minOf(bandRowsOf(width), height), Bitmap.Config.ARGB_8888)
+        }
+        return body(width, height) { band, from, to ->
+            val bitmap = decoder.decodeRegion(Rect(0, from, width, to), options)
+                ?: throw IOException("cannot decode rows $from to $to of $this")
+            bitmap.getPixels(band, 0, width, 0, 0, width, to - from)
+        }
+    } finally {
+        decoder.recycle()
+    }
+}
+
+/**
+ * Conceals band by band in the same pixels [putAllSignedIntegersInParallel] puts them in: each
+ * band is read, its lsb are cleared, the header goes into the first one and then every slot
+ * falling inside the band. The header is always binary and the layout always packed.
+ *
+ * @param readRows reads rows from until to into the start of the band
+ * @param bandRows must hold the header within the first band
+ * @param fromRow the first band to conceal, the ones before it being done already
+ * @param writeRows takes the band once its rows from until to are done
+ */
+internal suspend fun concealBands(
+    width: Int,
+    height: Int,
+    header: CarrierHeader,
+    samples: IntArray,
+    readRows: (band: IntArray, from: Int, to: Int) -> Unit,
+    bandRows: Int = bandRowsOf(width),
+    fromRow: Int = 0,
+    writeRows: suspend (band: IntArray, from: Int, to: Int) -> Unit
+) {
+    val layout = PackedLayout(width * height, BINARY_HEADER_PIXELS, header.lsbDepth, header.sampleBits)
+    val band = PixelBuffer(width, bandRows)
+    for (from in fromRow until height step bandRows) {
+        val to = minOf(from + bandRows, height)
+        readRows(band.pixels, from, to)
+        band.removeLsb(header.lsbDepth)
+        if (from == 0) band.putCarrierHeader(header)
+        layout.putBand(band.pixels, from * width, (to - from) * width, samples)
+        writeRows(band.pixels, from, to)
+        yield()
+    }
+}
+
+/**
+ * Reveals band by band, reading the header from the first band and then only the bands holding
+ * the samples. Samples are gathered from whichever bands hold their bits, so the result is the
+ * same as [getAllSignedIntegersInParallel] on the whole image.
+ *
+ * @param readRows reads rows from until to into the start of the band
+ * @param bandRows must hold the longest header within the first band
+ * @throws NumberFormatException if the image does not hold any audio
+ */
+internal suspend fun revealBands(
+    width: Int,
+    height: Int,
+    readRows: (band: IntArray, from: Int, to: Int) -> Unit,
+    bandRows: Int = bandRowsOf(width)
+): Waver {
+    val band = PixelBuffer(width, bandRows)
+    readRows(band.pixels, 0, minOf(bandRows, height))
+    val header = band.getCarrierHeader()
+
+    val layout = header.layoutOf(width * height)
+    val samples = IntArray(header.payloadCount.coerceAtMost(layout.capacity.toLong()).toInt())
+    val lastRow = rowsHolding(layout.pixelsHolding(samples.size), width, height)
+    for (from in 0 until lastRow step bandRows) {
+        val to = minOf(from + bandRows, height)
+        if (from > 0) readRows(band.pixels, from, to)
+        layout.depositBand(band.pixels, from * width, (to - from) * width, samples)
+        yield()
+    }
+    layout.finishDeposit(samples)
+
+    return header.toWaver(samples)
+}
+
+/**
+ * Puts every slot that falls inside the band, the band holding length pixels from firstPosition
+ * on with their lsb already cleared
+ */
+internal fun PackedLayout.putBand(band: IntArray, firstPosition: Int, length: Int, samples: IntArray) {
+    val usedSlots = slotsHolding(samples.size)
+    Layer.values().forEach { layer ->
+        val layerStart = firstPositionOf(layer)
+        val from = maxOf(firstPosition, layerStart)
+        val firstSlot = firstSlotOf(layer) + (from - layerStart)
+        val count = minOf((firstPosition + length - from).toLong(), usedSlots - firstSlot)
+        if (count <= 0) return@forEach
+
+        LowLevelPackedOperations.putSlots(
+            band,
+            from - firstPosition,
+            count.toInt(),
+            layer.shift,
+            depth,
+            samples,
+            sampleBits,
+            firstSlot
+        )
+    }
+}
+
+/**
+ * Gathers the bits of the samples that fall inside the band, the band holding length pixels from
+ * firstPosition on. Samples must start zeroed and are only done after [finishDeposit].
+ */
+internal fun PayloadLayout.depositBand(band: IntArray, firstPosition: Int, length: Int, samples: IntArray) =
+    when (this) {
+        is SampleLayout -> depositBand(band, firstPosition, length, samples)
+        is PackedLayout -> depositBand(band, firstPosition, length, samples)
+    }
+
+internal fun PayloadLayout.finishDeposit(samples: IntArray) = when (this) {
+    is SampleLayout -> LowLevelLsbOperations.toSignedIntegers(samples)
+    is PackedLayout -> LowLevelPackedOperations.signExtend(samples, sampleBits)
+}
+
+private fun SampleLayout.depositBand(band: IntArray, firstPosition: Int, length: Int, samples: IntArray) {
+    Layer.values().forEach { layer ->
+        val layerStart = firstPositionOf(layer)
+        val integers = minOf(capacityOf(layer), samples.size - firstSampleOf(layer))
+        val from = maxOf(firstPosition, layerStart)
+        val to = minOf(firstPosition + length, layerStart + integers * PIXELS_PER_INTEGER)
+        if (from >= to) return@forEach
+
+        LowLevelLsbOperations.depositSignedIntegers(
+            band,
+            from - firstPosition,
+            to - from,
+            layer.shift,
+            samples,
+            firstSampleOf(layer).toLong() * PIXELS_PER_INTEGER + (from - layerStart)
+        )
+    }
+}
+
+private fun PackedLayout.depositBand(band: IntArray, firstPosition: Int, length: Int, samples: IntArray) {
+    val usedSlots = slotsHolding(samples.size)
+    Layer.values().forEach { layer ->
+        val layerStart = firstPositionOf(layer)
+        val from = maxOf(firstPosition, layerStart)
+        val firstSlot = firstSlotOf(layer) + (from - layerStart)
+        val count = minOf((firstPosition + length - from).toLong(), usedSlots - firstSlot)
+        if (count <= 0) return@forEach
+
+        LowLevelPackedOperations.depositSlots(
+            band,
+            from - firstPosition,
+            count.toInt(),
+            layer.shift,
+            depth,
+            samples,
+            sampleBits,
+            firstSlot
+        )
+    }
+}
@@ -0,0 +1,84 @@
+package ir.mrahimy.conceal.util
+
+import ir.mrahimy.conceal.data.FrameBlock
+import ir.mrahimy.conceal.data.Waver
+import ir.mrahimy.conceal.util.lowlevel.LowLevelQuantizeOperations
+import ir.mrahimy.conceal.util.lowlevel.Wave
+import java.io.File
+import java.io.IOException
+
+/**
+ * Frames read from a wave file at once, enough to keep the disk busy
+ */
+const val WAVE_BLOCK_FRAMES = 4096
+
+/**
+ * Reads the frames a block at a time into the same [FrameBlock], so however long the audio is
+ * only a block of it is in memory. The file is left open, closing it is up to whoever opened it:
+ * a sequence is not told when its reading stops, see [useFrameBlocks].
+ *
+ * @throws IOException or [Wave.WavFileException] from any block if the file cannot be read
+ */
+fun Wave.WavFile.frameBlocks(blockFrames: Int = WAVE_BLOCK_FRAMES): Sequence<FrameBlock> = sequence {
+    val block = FrameBlock(LongArray(blockFrames * numChannels), numChannels)
+    while (true) {
+        val frames = readFrames(block.samples, 0, blockFrames)
+        if (frames == 0) break
+        block.frames = frames
+        yield(block)
+        block.firstFrame += frames
+    }
+}
+
+/**
+ * Opens the wave file at this path, hands its [frameBlocks] to the block and closes the file once
+ * the block returns or throws, however far it has read, as [useLines] does for the lines of a file
+ *
+ * @throws IOException or [Wave.WavFileException] if the file cannot be opened or read
+ */
+@Throws(IOException::class, Wave.WavFileException::class)
+inline fun <T> File.useFrameBlocks(
+    blockFrames: Int = WAVE_BLOCK_FRAMES,
+    block: (Sequence<FrameBlock>) -> T
+): T {
+    val file = Wave.WavFile.openWavFile(this)
+    try {
+        return block(file.frameBlocks(blockFrames))
+    } finally {
+        file.close()
+    }
+}
+
+/**
+ * @return the format of the wave file at this path, without any of its samples
+ * @throws IOException or [Wave.WavFileException] if the file is not a wave file
+ */
+@Throws(IOException::class, Wave.WavFileException::class)
+fun File.readWaveFormat(): Waver {
+    val file = Wave.WavFile.openWavFile(this)
+    try {
+        return Waver(LongArray(0), file.sampleRate, file.numChannels, file.numFrames, file.validBits)
+    } finally {
+        file.close()
+    }
+}
+
+/**
+ * @return the largest magnitude of the samples of the wave file at this path, read a block at a
+ * time, see [ir.mrahimy.conceal.data.maxValue]
+ * @throws IOException or [Wave.WavFileException] if the file cannot be read
+ */
+@Throws(IOException::class, Wave.WavFileException::class)
+fun File.readWavePeak(): Long {
+    var max = 0L
+    var isEmpty = true
+    useFrameBlocks { blocks ->
+        blocks.forEach { block ->
+            val count = block.frames * block.channelCount
+            if (count == 0) return@forEach
+            max = maxOf(max, LowLevelQuantizeOperations.peak(block.samples, 0, count))
+            isEmpty = false
+        }
+    }
+    return if (isEmpty) 1 else max
+}
@@ -2,8 +2,19 @@ package ir.mrahimy.conceal.util
 
 import androidx.annotation.StringRes
 import ir.mrahimy.conceal.R
+import ir.mrahimy.conceal.util.lowlevel.Wave
 import ir.mrahimy.conceal.util.lowlevel.Wave.WavFile.*
 
+/**
+ * @return the message telling why the audio could not be read, the one of its error code for a
+ * wave file error
+ */
+@StringRes
+fun Exception.toReadErrorStringRes(): Int {
+    val stringRes = (this as? Wave.WavFileException)?.code?.mapToErrorStringRes() ?: R.string.empty
+    return if (stringRes == R.string.empty) R.string.error_in_reading_audio else stringRes
+}
+
 @StringRes
 fun Int.mapToErrorStringRes(): Int {
     return when (this) {
@@ -1,42 +1,71 @@
 package ir.mrahimy.conceal.util.ktx
 
 import android.graphics.Bitmap
+import ir.mrahimy.conceal.data.PixelBuffer
 import ir.mrahimy.conceal.data.Rgb
 import ir.mrahimy.conceal.data.Waver
+import ir.mrahimy.conceal.data.toWaver
 import ir.mrahimy.conceal.util.*
 
 fun Bitmap.getRgb(x: Int, y: Int): Rgb = this.getPixel(x, y).toRgb()
 
-fun Bitmap.getRgbArray(): List<Rgb> {
-    val rgb = mutableListOf<Rgb>()
-    (0 until height).forEach { y ->
-        (0 until width).forEach { x ->
-            rgb.add(getRgb(x, y))
-        }
+/**
+ * Reads all pixels with a single bulk copy instead of a getPixel call per pixel
+ */
+fun Bitmap.getPixelBuffer(): PixelBuffer {
+    val buffer = PixelBuffer(width, height)
+    getPixels(buffer.pixels, 0, width, 0, 0, width, height)
+    return buffer
+}
+
+/**
+ * Copies rows from until to into the same rows of the buffer
+ */
+fun Bitmap.readRows(buffer: PixelBuffer, from: Int, to: Int) {
+    if (to > from) getPixels(buffer.pixels, from * width, width, 0, from, width, to - from)
+}
+
+private fun Bitmap.rowsHolding(pixels: Int) = rowsHolding(pixels, width, height)
+
+/**
+ * Reads the header first and then only the rows holding the samples it tells about, the rest of
+ * the image is never decoded. A foreign image is rejected right after the first rows.
+ *
+ * @throws NumberFormatException if the image does not hold any audio
+ */
+suspend fun Bitmap.parseWaver(): Waver {
+    val pixels = PixelBuffer(width, height)
+    val headerRows = rowsHolding(MAX_HEADER_PIXELS)
+    readRows(pixels, 0, headerRows)
+    val header = pixels.getCarrierHeader()
+
+    val layout = header.layoutOf(pixels.size)
+    val count = header.payloadCount.coerceAtMost(layout.capacity.toLong()).toInt()
+    readRows(pixels, headerRows, rowsHolding(layout.pixelsHolding(count)))
+
+    return header.toWaver(pixels.getAllSignedIntegersInParallel(layout, count))
+}
+
+/**
+ * Reads the header rows and then, range by range, only the rows holding the chunks of each range
+ *
+ * @throws NumberFormatException if the image does not hold any audio
+ */
+fun Bitmap.payloadSeeker(): PayloadSeeker {
+    val pixels = PixelBuffer(width, height)
+    val headerRows = rowsHolding(MAX_HEADER_PIXELS)
+    readRows(pixels, 0, headerRows)
+
+    return PayloadSeeker(pixels, pixels.getCarrierHeader()) { from, to ->
+        readRows(pixels, maxOf(from / width, headerRows), rowsHolding(to))
     }
-    return rgb
 }
 
-fun Bitmap.parseWaver(): Waver {
-    val list = getRgbArray()
-    val parsedSampleRate = list.getSampleRate()
-    val parsedChannelCount = list.getChannelCount(parsedSampleRate.position)
-    val parsedFrameCount = list.getFrameCount(parsedChannelCount.position)
-    val parsedValidBits = list.getValidBits(parsedFrameCount.position)
-    val parsedMaxValue = list.getMaxValue(parsedValidBits.position)
-
-    val parsedWaveData =
-        list.getAllSignedIntegers(parsedMaxValue.position)
-            .map { n -> n.toDouble() / 255.0 }
-            .map { n -> n * parsedMaxValue.number }
-            .map { n -> n.toLong() }
-            .toLongArray()
-
-    return Waver(
-        parsedWaveData,
-        parsedSampleRate.number.toLong(),
-        parsedChannelCount.number,
-        parsedFrameCount.number.toLong(),
-        parsedValidBits.number
-    )
+/**
+ * Reveals the audio from fromMs until toMs alone, see [PayloadSeeker]
+ *
+ * @throws NumberFormatException if the image does not hold any audio
+ */
+fun Bitmap.parseWaverRange(fromMs: Long, toMs: Long): Waver = payloadSeeker().run {
+    reveal(header.frameAt(fromMs), header.frameAt(toMs))
 }
\ No newline at end of file
@@ -7,28 +7,24 @@ import ir.mrahimy.conceal.util.lowlevel.LowLevelRgbOperations
 fun Int.toRgb() = LowLevelRgbOperations.getRgb(this)
 fun Rgb.parse() = LowLevelRgbOperations.parseRgb(this)
 
-//TODO: decide by howMany here
-fun Int.removeLsBits(howMany: Int) = LowLevelIntOperations.removeLsBits(this)
+fun Int.removeLsBits(howMany: Int) = LowLevelIntOperations.removeLsBits(this, howMany)
 
 fun Int.getLsBits(howMany: Int) = when (howMany) {
     3 -> LowLevelIntOperations.get3LsBits(this)
     2 -> LowLevelIntOperations.get2LsBits(this)
-    else -> throw RuntimeException("Not implemented YET")
+    else -> LowLevelIntOperations.getLsBits(this, howMany)
 }
 
 /**
+ * Puts the 2 lsb of this and the others one after another, this being the most significant.
  * This method does not respect the sign of concealed number
  */
 fun Int.combineBits(vararg others: Int): Int {
-    val binA = this.toBinString()
-    val lsbA = binA.drop(6)
-    val builder = StringBuilder().apply { append(lsbA) }
+    var combined = LowLevelIntOperations.get2LsBits(this)
     others.forEach {
-        val binB = it.toBinString()
-        val lsbB = binB.drop(6)
-        builder.append(lsbB)
+        combined = (combined shl 2) or LowLevelIntOperations.get2LsBits(it)
     }
-    return builder.toString().toInt(2)
+    return combined
 }
 
 fun Int.bitwiseAnd(other: Int) = LowLevelIntOperations.and(this, other)
@@ -13,4 +13,25 @@ fun String.getNameFromPath() = File(this).name.split('.')[0]
 fun String.removeEmulatedPath() = replace("/storage/emulated/0/", "")
 fun String.removeNumbers() = replace("\\d+", "")
 
-fun String.loadBitmap(): Bitmap = BitmapFactory.decodeFile(this)
\ No newline at end of file
+fun String.loadBitmap(): Bitmap = BitmapFactory.decodeFile(this)
+
+/**
+ * Decodes only the bounds of the image, without allocating any pixel
+ * @return the number of pixels, 0 if the file cannot be decoded
+ */
+fun String.decodePixelCount(): Int {
+    val options = BitmapFactory.Options().apply { inJustDecodeBounds = true }
+    BitmapFactory.decodeFile(this, options)
+    return options.outWidth.coerceAtLeast(0) * options.outHeight.coerceAtLeast(0)
+}
+
+/**
+ * Decodes a smaller copy of the image, halving it until it has at most maxPixels pixels, for
+ * showing images too large to be decoded whole
+ */
+fun String.loadBitmap(maxPixels: Int): Bitmap {
+    val pixelCount = decodePixelCount().toLong()
+    var sampleSize = 1
+    while (pixelCount / (sampleSize.toLong() * sampleSize) > maxPixels) sampleSize *= 2
+    return BitmapFactory.decodeFile(this, BitmapFactory.Options().apply { inSampleSize = sampleSize })
+}
\ No newline at end of file
@@ -0,0 +1,246 @@
+package ir.mrahimy.conceal.util.lowlevel;
+
+/**
+ * Allocation free kernels of the payload codecs, compressing the samples of a wave file to codes
+ * before they are concealed and back after they are revealed. Samples of any valid bits go
+ * through 16-bit linear pcm, the input both codecs are defined on. The state IMA ADPCM carries
+ * from a sample to the next is kept by the caller, see {@link #imaAdpcmStateOf}.
+ * <p>
+ * Codes are kept in two's complement of their own width, 8 bits for mu-law and 4 bits for IMA
+ * ADPCM, the same way the packed payload keeps samples, so they are concealed as they are.
+ */
+public class LowLevelCodecOperations {
+
+    public static final int MU_LAW_BITS = 8;
+    public static final int IMA_ADPCM_BITS = 4;
+
+    /**
+     * Codes heading an IMA ADPCM chunk for every channel, the predictor in 16 bits and the step
+     * index in 8 bits, as standard IMA blocks start
+     */
+    public static final int IMA_ADPCM_STATE_CODES = 6;
+
+    private static final int MU_LAW_BIAS = 0x84;
+    private static final int MU_LAW_CLIP = 32635;
+
+    private static final int[] IMA_INDEX_TABLE = {-1, -1, -1, -1, 2, 4, 6, 8};
+
+    private static final int[] IMA_STEP_TABLE = {
+            7, 8, 9, 10, 11, 12, 13, 14, 16, 17, 19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+            50, 55, 60, 66, 73, 80, 88, 97, 107, 118, 130, 143, 157, 173, 190, 209, 230, 253, 279,
+            307, 337, 371, 408, 449, 494, 544, 598, 658, 724, 796, 876, 963, 1060, 1166, 1282,
+            1411, 1552, 1707, 1878, 2066, 2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871,
+            5358, 5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487, 12635, 13899, 15289, 16818,
+            18500, 20350, 22385, 24623, 27086, 29794, 32767
+    };
+
+    /**
+     * indexed by the 8 bits of a code
+     */
+    private static final short[] MU_LAW_DECODE_TABLE = new short[1 << MU_LAW_BITS];
+
+    static {
+        for (int code = 0; code < MU_LAW_DECODE_TABLE.length; code++) {
+            int bits = ~code & 0xff;
+            int exponent = (bits >> 4) & 7;
+            int magnitude = ((((bits & 0x0f) << 3) + MU_LAW_BIAS) << exponent) - MU_LAW_BIAS;
+            MU_LAW_DECODE_TABLE[code] = (short) ((bits & 0x80) != 0 ? -magnitude : magnitude);
+        }
+    }
+
+    /**
+     * @param sample    as read from a wave file, unsigned for up to 8 valid bits
+     * @param validBits of the wave file
+     */
+    public static int toPcm16(long sample, int validBits) {
+        if (validBits <= 8) return (int) (sample - 128) << 8;
+        if (validBits <= 16) return (int) sample << (16 - validBits);
+        return (int) (sample >> (validBits - 16));
+    }
+
+    /**
+     * @return the sample the way a wave file of validBits holds it, see {@link #toPcm16}
+     */
+    public static long fromPcm16(int pcm, int validBits) {
+        if (validBits <= 8) return (pcm >> 8) + 128;
+        if (validBits <= 16) return pcm >> (16 - validBits);
+        return (long) pcm << (validBits - 16);
+    }
+
+    /**
+     * Interleaved frames of 16-bit pcm, the way an audio track plays them
+     *
+     * @param outputChannels channelCount, or 1 to downmix every channel to their mean
+     * @param pcm            room for the frames of outputChannels channels
+     */
+    public static void toPcm16(long[] samples, int validBits, int channelCount, int outputChannels, short[] pcm) {
+        int frames = samples.length / channelCount;
+        for (int frame = 0; frame < frames; frame++) {
+            int first = frame * channelCount;
+            if (outputChannels == channelCount) {
+                for (int channel = 0; channel < channelCount; channel++) {
+                    pcm[first + channel] = clampToShort(toPcm16(samples[first + channel], validBits));
+                }
+                continue;
+            }
+
+            int sum = 0;
+            for (int channel = 0; channel < channelCount; channel++) {
+                sum += clampToShort(toPcm16(samples[first + channel], validBits));
+            }
+            pcm[frame] = (short) (sum / channelCount);
+        }
+    }
+
+    private static short clampToShort(int pcm) {
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, pcm));
+    }
+
+    public static void encodeMuLaw(long[] samples, int validBits, int[] codes) {
+        encodeMuLaw(samples, 0, samples.length, validBits, codes, 0);
+    }
+
+    /**
+     * Encodes the samples from until to into the codes from offset on
+     */
+    public static void encodeMuLaw(long[] samples, int from, int to, int validBits, int[] codes, int offset) {
+        for (int i = from; i < to; i++) {
+            codes[offset + i - from] = (byte) muLaw(toPcm16(samples[i], validBits));
+        }
+    }
+
+    public static void decodeMuLaw(int[] codes, int validBits, long[] samples) {
+        for (int i = 0; i < codes.length; i++) {
+            samples[i] = fromPcm16(MU_LAW_DECODE_TABLE[codes[i] & 0xff], validBits);
+        }
+    }
+
+    /**
+     * G.711 mu-law of a 16-bit pcm sample
+     */
+    private static int muLaw(int pcm) {
+        int sign = (pcm >> 8) & 0x80;
+        int magnitude = sign != 0 ? -pcm : pcm;
+        if (magnitude > MU_LAW_CLIP) magnitude = MU_LAW_CLIP;
+        magnitude += MU_LAW_BIAS;
+
+        int exponent = 7;
+        for (int mask = 0x4000; (magnitude & mask) == 0 && exponent > 0; mask >>= 1) exponent--;
+        int mantissa = (magnitude >> (exponent + 3)) & 0x0f;
+        return ~(sign | (exponent << 4) | mantissa) & 0xff;
+    }
+
+    /**
+     * @return the state of every channel, its predictor and then its step index, starting from
+     * silence with the smallest step
+     */
+    public static int[] imaAdpcmStateOf(int channelCount) {
+        return new int[2 * channelCount];
+    }
+
+    /**
+     * Encodes a chunk, every channel of the interleaved samples on its own: the state each channel
+     * starts from, {@link #IMA_ADPCM_STATE_CODES} codes of it, and then the code of every sample
+     * from until to. The state goes on to the next chunk, so chunks decode on their own with no
+     * jump where they meet.
+     *
+     * @param from the first sample of a frame
+     * @param state see {@link #imaAdpcmStateOf}, where the chunk starts and then where it ends
+     * @param offset where the codes of the chunk start
+     */
+    public static void encodeImaAdpcm(long[] samples, int from, int to, int validBits, int channelCount,
+                                      int[] state, int[] codes, int offset) {
+        for (int channel = 0; channel < channelCount; channel++) {
+            int at = offset + channel * IMA_ADPCM_STATE_CODES;
+            putNibbles(state[2 * channel], codes, at, 4);
+            putNibbles(state[2 * channel + 1], codes, at + 4, 2);
+        }
+        offset += channelCount * IMA_ADPCM_STATE_CODES - from;
+        for (int i = from; i < to; i++) {
+            int channel = (i - from) % channelCount;
+            int predictor = state[2 * channel];
+            int step = IMA_STEP_TABLE[state[2 * channel + 1]];
+
+            int difference = toPcm16(samples[i], validBits) - predictor;
+            int code = 0;
+            if (difference < 0) {
+                code = 8;
+                difference = -difference;
+            }
+            if (difference >= step) {
+                code |= 4;
+                difference -= step;
+            }
+            if (difference >= step >> 1) {
+                code |= 2;
+                difference -= step >> 1;
+            }
+            if (difference >= step >> 2) code |= 1;
+
+            state[2 * channel] = nextPredictor(predictor, step, code);
+            state[2 * channel + 1] = nextIndex(state[2 * channel + 1], code);
+            codes[offset + i] = (code << 28) >> 28;
+        }
+    }
+
+    /**
+     * Decodes the codes from until to of a chunk, see {@link #encodeImaAdpcm}, into samples from
+     * offset on, as many as there are codes after the state. A chunk cut short in its state
+     * decodes to nothing.
+     *
+     * @param state see {@link #imaAdpcmStateOf}, read from the chunk and then where it ends
+     */
+    public static void decodeImaAdpcm(int[] codes, int from, int to, int validBits, int channelCount,
+                                      int[] state, long[] samples, int offset) {
+        int first = from + channelCount * IMA_ADPCM_STATE_CODES;
+        if (first > to) return;
+        for (int channel = 0; channel < channelCount; channel++) {
+            int at = from + channel * IMA_ADPCM_STATE_CODES;
+            state[2 * channel] = (short) getNibbles(codes, at, 4);
+            state[2 * channel + 1] = Math.max(0, Math.min(IMA_STEP_TABLE.length - 1, getNibbles(codes, at + 4, 2)));
+        }
+        offset -= first;
+        for (int i = first; i < to; i++) {
+            int channel = (i - first) % channelCount;
+            int code = codes[i] & 0x0f;
+            int predictor = nextPredictor(state[2 * channel], IMA_STEP_TABLE[state[2 * channel + 1]], code);
+            state[2 * channel] = predictor;
+            state[2 * channel + 1] = nextIndex(state[2 * channel + 1], code);
+            samples[offset + i] = fromPcm16(predictor, validBits);
+        }
+    }
+
+    /**
+     * Puts the count lowest nibbles of value as codes, the highest first
+     */
+    private static void putNibbles(int value, int[] codes, int offset, int count) {
+        for (int i = 0; i < count; i++) {
+            int nibble = (value >> (4 * (count - 1 - i))) & 0x0f;
+            codes[offset + i] = (nibble << 28) >> 28;
+        }
+    }
+
+    private static int getNibbles(int[] codes, int offset, int count) {
+        int value = 0;
+        for (int i = 0; i < count; i++) value = (value << 4) | (codes[offset + i] & 0x0f);
+        return value;
+    }
+
+    /**
+     * The sample the decoder gets back from code, which the encoder tracks too so both never
+     * drift apart
+     */
+    private static int nextPredictor(int predictor, int step, int code) {
+        int difference = step >> 3;
+        if ((code & 4) != 0) difference += step;
+        if ((code & 2) != 0) difference += step >> 1;
+        if ((code & 1) != 0) difference += step >> 2;
+        predictor += (code & 8) != 0 ? -difference : difference;
+        return Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, predictor));
+    }
+
+    private static int nextIndex(int index, int code) {
+        index += IMA_INDEX_TABLE[code & 7];
+        return Math.max(0, Math.min(IMA_STEP_TABLE.length - 1, index));
+    }
+}
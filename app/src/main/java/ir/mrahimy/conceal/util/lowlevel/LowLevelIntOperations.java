@@ -5,6 +5,14 @@ public class LowLevelIntOperations {
         return in & 248;
     }
 
+    public static int removeLsBits(int in, int howMany) {
+        return in & (0xff << howMany) & 0xff;
+    }
+
+    public static int getLsBits(int in, int howMany) {
+        return in & ((1 << howMany) - 1);
+    }
+
     public static int get2LsBits(int in) {
         return in & 3;
     }
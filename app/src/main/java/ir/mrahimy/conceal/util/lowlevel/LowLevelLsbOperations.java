@@ -0,0 +1,166 @@
+package ir.mrahimy.conceal.util.lowlevel;
+
+/**
+ * Allocation free kernels to put concealed bits in, and get them back from, the lsb of packed
+ * 0xAARRGGBB pixels. The layer is given by its shift inside the packed pixel.
+ * <p>
+ * A signed integer takes 4 consecutive pixels of a layer: its sign goes in the 3rd lsb of the
+ * first pixel and the 8 bits of its magnitude go in the 2 lsb of the 4 pixels, most significant
+ * bits first. A header nibble takes 2 pixels the same way, without a sign, and a header word
+ * takes 16 pixels.
+ * <p>
+ * Every operation comes in two flavours producing the very same bits: plain mask and shift, and
+ * lookup tables which skip the sign branch and the 4 separate shifts.
+ */
+public class LowLevelLsbOperations {
+
+    public static final int MAX_MAGNITUDE = 255;
+    public static final int PIXELS_PER_INTEGER = 4;
+    public static final int PIXELS_PER_NIBBLE = 2;
+    public static final int PIXELS_PER_WORD = 16;
+
+    private static final int SIGN_BIT = 4;
+    private static final int OPAQUE = 0xff000000;
+
+    /**
+     * indexed by value + MAX_MAGNITUDE. Each byte holds the bits of one of the 4 pixels, the first
+     * pixel in the most significant byte.
+     */
+    private static final int[] PUT_TABLE = new int[2 * MAX_MAGNITUDE + 1];
+
+    /**
+     * indexed by the 3 lsb of the first pixel followed by the 2 lsb of each of the other 3 pixels.
+     */
+    private static final int[] GET_TABLE = new int[1 << 9];
+
+    static {
+        for (int value = -MAX_MAGNITUDE; value <= MAX_MAGNITUDE; value++) {
+            int magnitude = value < 0 ? -value : value;
+            int sign = value < 0 ? SIGN_BIT : 0;
+            PUT_TABLE[value + MAX_MAGNITUDE] = ((sign | chunk(magnitude, 0, 4)) << 24) |
+                    (chunk(magnitude, 1, 4) << 16) |
+                    (chunk(magnitude, 2, 4) << 8) |
+                    chunk(magnitude, 3, 4);
+        }
+
+        for (int index = 0; index < GET_TABLE.length; index++) {
+            int magnitude = index & MAX_MAGNITUDE;
+            GET_TABLE[index] = (index & (SIGN_BIT << 6)) != 0 ? -magnitude : magnitude;
+        }
+    }
+
+    /**
+     * @param value a number made of count 2-bit chunks
+     * @param index the index of the chunk, 0 being the most significant one
+     * @return the 2-bit chunk at index
+     */
+    public static int chunk(int value, int index, int count) {
+        return (value >>> (2 * (count - 1 - index))) & 3;
+    }
+
+    /**
+     * Clears howMany lsb of every layer of every pixel in place and makes them opaque
+     */
+    public static void removeLsBits(int[] pixels, int howMany) {
+        int channelMask = (0xff << howMany) & 0xff;
+        int mask = (channelMask << 16) | (channelMask << 8) | channelMask;
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = OPAQUE | (pixels[i] & mask);
+        }
+    }
+
+    public static void putNibble(int[] pixels, int position, int nibble, int shift) {
+        pixels[position] |= chunk(nibble, 0, 2) << shift;
+        pixels[position + 1] |= chunk(nibble, 1, 2) << shift;
+    }
+
+    public static int getNibble(int[] pixels, int position, int shift) {
+        return (((pixels[position] >>> shift) & 3) << 2) | ((pixels[position + 1] >>> shift) & 3);
+    }
+
+    public static void putWord(int[] pixels, int position, int word, int shift) {
+        for (int i = 0; i < PIXELS_PER_WORD; i++) {
+            pixels[position + i] |= chunk(word, i, PIXELS_PER_WORD) << shift;
+        }
+    }
+
+    public static int getWord(int[] pixels, int position, int shift) {
+        int word = 0;
+        for (int i = 0; i < PIXELS_PER_WORD; i++) {
+            word = (word << 2) | ((pixels[position + i] >>> shift) & 3);
+        }
+        return word;
+    }
+
+    /**
+     * @param value must be within [-MAX_MAGNITUDE, MAX_MAGNITUDE]
+     */
+    public static void putSignedInteger(int[] pixels, int position, int value, int shift) {
+        int magnitude = value < 0 ? -value : value;
+        int sign = value < 0 ? SIGN_BIT : 0;
+        pixels[position] |= (sign | chunk(magnitude, 0, 4)) << shift;
+        pixels[position + 1] |= chunk(magnitude, 1, 4) << shift;
+        pixels[position + 2] |= chunk(magnitude, 2, 4) << shift;
+        pixels[position + 3] |= chunk(magnitude, 3, 4) << shift;
+    }
+
+    /**
+     * Same as {@link #putSignedInteger(int[], int, int, int)} using the lookup table
+     */
+    public static void putSignedIntegerLut(int[] pixels, int position, int value, int shift) {
+        int bits = PUT_TABLE[value + MAX_MAGNITUDE];
+        pixels[position] |= (bits >>> 24) << shift;
+        pixels[position + 1] |= ((bits >>> 16) & 0xff) << shift;
+        pixels[position + 2] |= ((bits >>> 8) & 0xff) << shift;
+        pixels[position + 3] |= (bits & 0xff) << shift;
+    }
+
+    /**
+     * Ors the bits of count consecutive pixels of a layer into the signed integers they belong
+     * to, so the integers can be gathered in any order, a band of pixels at a time. Each integer
+     * keeps the 9 bits {@link #getSignedIntegerLut(int[], int, int)} looks up until
+     * {@link #toSignedIntegers(int[])} is called, so integers must start zeroed.
+     *
+     * @param firstChunk index of the pixel at position among all the pixels of the integers, the
+     *                   first pixel of integer i being at 4 * i
+     */
+    public static void depositSignedIntegers(int[] pixels, int position, int count, int shift,
+                                             int[] integers, long firstChunk) {
+        for (int i = 0; i < count; i++) {
+            long chunk = firstChunk + i;
+            int index = (int) (chunk / PIXELS_PER_INTEGER);
+            int order = (int) (chunk % PIXELS_PER_INTEGER);
+            int bits = (pixels[position + i] >>> shift) & (order == 0 ? 7 : 3);
+            integers[index] |= bits << (2 * (PIXELS_PER_INTEGER - 1 - order));
+        }
+    }
+
+    /**
+     * Turns the bits gathered by {@link #depositSignedIntegers} into signed integers in place
+     */
+    public static void toSignedIntegers(int[] integers) {
+        for (int i = 0; i < integers.length; i++) {
+            integers[i] = GET_TABLE[integers[i]];
+        }
+    }
+
+    public static int getSignedInteger(int[] pixels, int position, int shift) {
+        int first = pixels[position] >>> shift;
+        int magnitude = ((first & 3) << 6) |
+                (((pixels[position + 1] >>> shift) & 3) << 4) |
+                (((pixels[position + 2] >>> shift) & 3) << 2) |
+                ((pixels[position + 3] >>> shift) & 3);
+        return (first & SIGN_BIT) != 0 ? -magnitude : magnitude;
+    }
+
+    /**
+     * Same as {@link #getSignedInteger(int[], int, int)} using the lookup table
+     */
+    public static int getSignedIntegerLut(int[] pixels, int position, int shift) {
+        int index = (((pixels[position] >>> shift) & 7) << 6) |
+                (((pixels[position + 1] >>> shift) & 3) << 4) |
+                (((pixels[position + 2] >>> shift) & 3) << 2) |
+                ((pixels[position + 3] >>> shift) & 3);
+        return GET_TABLE[index];
+    }
+}
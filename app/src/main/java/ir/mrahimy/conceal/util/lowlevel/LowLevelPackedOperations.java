@@ -0,0 +1,207 @@
+package ir.mrahimy.conceal.util.lowlevel;
+
+/**
+ * Allocation free kernels for the packed payload: the samples, sampleBits wide each in two's
+ * complement, are laid one after another as a single stream of bits, most significant bits
+ * first. The stream is cut in slots of depth bits and every slot goes inside the depth lsb of
+ * one layer of one pixel.
+ * <p>
+ * Slots are numbered across the layers of the payload: the r layer from its starting position,
+ * then the g and b layers from their first pixel.
+ */
+public class LowLevelPackedOperations {
+
+    public static final int MIN_DEPTH = 1;
+    public static final int MAX_DEPTH = 4;
+
+    /**
+     * Puts count consecutive slots of the stream inside consecutive pixels of a single layer.
+     * Only these pixels are touched, so disjoint slot ranges can be put from different threads.
+     *
+     * @param position   the pixel of the first slot
+     * @param firstSlot  index of the first slot inside the whole stream
+     */
+    public static void putSlots(int[] pixels, int position, int count, int shift, int depth,
+                                int[] samples, int sampleBits, long firstSlot) {
+        long bit = firstSlot * depth;
+        int index = (int) (bit / sampleBits);
+        int accumulatedBits = sampleBits - (int) (bit % sampleBits);
+        long accumulator = sample(samples, index++, sampleBits);
+        int mask = (1 << depth) - 1;
+
+        for (int i = 0; i < count; i++) {
+            while (accumulatedBits < depth) {
+                accumulator = (accumulator << sampleBits) | sample(samples, index++, sampleBits);
+                accumulatedBits += sampleBits;
+            }
+            accumulatedBits -= depth;
+            pixels[position + i] |= (int) ((accumulator >>> accumulatedBits) & mask) << shift;
+        }
+    }
+
+    /**
+     * Gets the samples from until to out of the stream, crossing from a layer to the next when
+     * the end of the pixels is reached.
+     *
+     * @param starts the position of the first slot of each layer
+     * @param shifts the shift of each layer inside a packed pixel, in the same order
+     */
+    public static void getSamples(int[] pixels, int[] starts, int[] shifts, int depth,
+                                  int[] samples, int sampleBits, int from, int to) {
+        getSamples(pixels, starts, shifts, depth, samples, sampleBits, from, to, 0);
+    }
+
+    /**
+     * Same as {@link #getSamples(int[], int[], int[], int, int[], int, int, int)} into samples
+     * holding the stream from the sample at index first on, so a range of the stream needs no
+     * room for what comes before it
+     */
+    public static void getSamples(int[] pixels, int[] starts, int[] shifts, int depth,
+                                  int[] samples, int sampleBits, int from, int to, int first) {
+        if (from >= to) return;
+
+        long bit = (long) from * sampleBits;
+        long slot = bit / depth;
+        int layer = 0;
+        while (slot >= pixels.length - starts[layer]) {
+            slot -= pixels.length - starts[layer];
+            layer++;
+        }
+        int position = starts[layer] + (int) slot;
+        int shift = shifts[layer];
+
+        int mask = (1 << depth) - 1;
+        long sampleMask = (1L << sampleBits) - 1;
+        int signShift = 32 - sampleBits;
+        long accumulator = 0;
+        int accumulatedBits = -(int) (bit % depth);
+        int index = from - first;
+        int end = to - first;
+
+        while (index < end) {
+            accumulator = (accumulator << depth) | ((pixels[position++] >>> shift) & mask);
+            accumulatedBits += depth;
+            if (position == pixels.length && ++layer < starts.length) {
+                position = starts[layer];
+                shift = shifts[layer];
+            }
+            if (accumulatedBits >= sampleBits) {
+                accumulatedBits -= sampleBits;
+                int value = (int) ((accumulator >>> accumulatedBits) & sampleMask);
+                samples[index++] = (value << signShift) >> signShift;
+            }
+        }
+    }
+
+    /**
+     * The other way around of {@link #putSlots}: ors count consecutive slots of a single layer
+     * into the samples they belong to, so the stream can be gathered in any order, a band of
+     * pixels at a time. The samples must start zeroed and hold sampleBits wide raw bits until
+     * {@link #signExtend} is called. Slots past the end of samples are skipped.
+     *
+     * @param position   the pixel of the first slot
+     * @param firstSlot  index of the first slot inside the whole stream
+     */
+    public static void depositSlots(int[] pixels, int position, int count, int shift, int depth,
+                                    int[] samples, int sampleBits, long firstSlot) {
+        long bit = firstSlot * depth;
+        int index = (int) (bit / sampleBits);
+        int free = sampleBits - (int) (bit % sampleBits);
+        int mask = (1 << depth) - 1;
+
+        for (int i = 0; i < count && index < samples.length; i++) {
+            int slot = (pixels[position + i] >>> shift) & mask;
+            if (depth < free) {
+                free -= depth;
+                samples[index] |= slot << free;
+            } else {
+                int spill = depth - free;
+                samples[index++] |= slot >>> spill;
+                free = sampleBits - spill;
+                if (spill > 0 && index < samples.length) {
+                    samples[index] |= (slot & ((1 << spill) - 1)) << free;
+                }
+            }
+        }
+    }
+
+    /**
+     * Turns the raw bits gathered by {@link #depositSlots} into signed samples
+     */
+    public static void signExtend(int[] samples, int sampleBits) {
+        int signShift = 32 - sampleBits;
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (samples[i] << signShift) >> signShift;
+        }
+    }
+
+    /**
+     * @return the capacity in samples of the given count of slots
+     */
+    public static long capacity(long slots, int depth, int sampleBits) {
+        return slots * depth / sampleBits;
+    }
+
+    /**
+     * @return how many slots hold count samples
+     */
+    public static long slotsHolding(long count, int depth, int sampleBits) {
+        return (count * sampleBits + depth - 1) / depth;
+    }
+
+    /**
+     * @return how many samples hold the bits of count 32-bit words
+     */
+    public static int samplesHoldingWords(int count, int sampleBits) {
+        return (int) (((long) count * Integer.SIZE + sampleBits - 1) / sampleBits);
+    }
+
+    /**
+     * Cuts the words in samples of sampleBits, most significant bits first, the last one padded
+     * with zeros, so words can be laid in the stream as samples are
+     *
+     * @param from the index of the first sample to write
+     */
+    public static void wordsToSamples(int[] words, int[] samples, int from, int sampleBits) {
+        int signShift = 32 - sampleBits;
+        long accumulator = 0;
+        int accumulatedBits = 0;
+        int index = from;
+        for (int word : words) {
+            accumulator = (accumulator << Integer.SIZE) | (word & 0xffffffffL);
+            accumulatedBits += Integer.SIZE;
+            while (accumulatedBits >= sampleBits) {
+                accumulatedBits -= sampleBits;
+                int value = (int) (accumulator >>> accumulatedBits);
+                samples[index++] = (value << signShift) >> signShift;
+            }
+        }
+        if (accumulatedBits > 0) {
+            int value = (int) (accumulator << (sampleBits - accumulatedBits));
+            samples[index] = (value << signShift) >> signShift;
+        }
+    }
+
+    /**
+     * The other way around of {@link #wordsToSamples}
+     *
+     * @param from the index of the first sample to read
+     */
+    public static void samplesToWords(int[] samples, int from, int sampleBits, int[] words) {
+        long accumulator = 0;
+        int accumulatedBits = 0;
+        int index = from;
+        for (int i = 0; i < words.length; i++) {
+            while (accumulatedBits < Integer.SIZE) {
+                accumulator = (accumulator << sampleBits) | sample(samples, index++, sampleBits);
+                accumulatedBits += sampleBits;
+            }
+            accumulatedBits -= Integer.SIZE;
+            words[i] = (int) (accumulator >>> accumulatedBits);
+        }
+    }
+
+    private static long sample(int[] samples, int index, int sampleBits) {
+        return index < samples.length ? samples[index] & ((1L << sampleBits) - 1) : 0;
+    }
+}
@@ -0,0 +1,116 @@
+package ir.mrahimy.conceal.util.lowlevel;
+
+/**
+ * Allocation free kernels of the pcm payload: the peak of the samples, and the samples scaled to
+ * codes of a sample depth and back, each a single loop straight over the array the samples are
+ * kept in, of shorts, ints or longs, so no sample is ever widened into a copy.
+ * <p>
+ * A code is sample / peak * levels and a sample code / levels * peak, both worked out in double
+ * and truncated, the same arithmetic the payload has always used: a fixed point scale would
+ * round a few samples the other way and break payloads made before. A lossless payload keeps the
+ * samples as they are.
+ */
+public class LowLevelQuantizeOperations {
+
+    /**
+     * @return the largest magnitude of the samples from until to, 1 if there are none
+     */
+    public static long peak(short[] samples, int from, int to) {
+        if (from >= to) return 1;
+        int max = 0;
+        for (int i = from; i < to; i++) {
+            int sample = samples[i];
+            if (sample > max) max = sample;
+            else if (-sample > max) max = -sample;
+        }
+        return max;
+    }
+
+    public static long peak(int[] samples, int from, int to) {
+        if (from >= to) return 1;
+        long max = 0;
+        for (int i = from; i < to; i++) {
+            long sample = samples[i];
+            if (sample > max) max = sample;
+            else if (-sample > max) max = -sample;
+        }
+        return max;
+    }
+
+    public static long peak(long[] samples, int from, int to) {
+        if (from >= to) return 1;
+        long max = 0;
+        for (int i = from; i < to; i++) {
+            long sample = samples[i];
+            if (sample > max) max = sample;
+            else if (-sample > max) max = -sample;
+        }
+        return max;
+    }
+
+    /**
+     * Codes the samples from until to into codes from offset on
+     */
+    public static void quantize(short[] samples, int from, int to, long peak, long levels, boolean lossless,
+                                int[] codes, int offset) {
+        if (lossless) {
+            for (int i = from; i < to; i++) codes[offset + i - from] = samples[i];
+            return;
+        }
+        double max = peak;
+        for (int i = from; i < to; i++) codes[offset + i - from] = (int) (samples[i] / max * levels);
+    }
+
+    public static void quantize(int[] samples, int from, int to, long peak, long levels, boolean lossless,
+                                int[] codes, int offset) {
+        if (lossless) {
+            System.arraycopy(samples, from, codes, offset, to - from);
+            return;
+        }
+        double max = peak;
+        for (int i = from; i < to; i++) codes[offset + i - from] = (int) (samples[i] / max * levels);
+    }
+
+    public static void quantize(long[] samples, int from, int to, long peak, long levels, boolean lossless,
+                                int[] codes, int offset) {
+        if (lossless) {
+            for (int i = from; i < to; i++) codes[offset + i - from] = (int) samples[i];
+            return;
+        }
+        double max = peak;
+        for (int i = from; i < to; i++) codes[offset + i - from] = (int) (samples[i] / max * levels);
+    }
+
+    /**
+     * Gets the samples of the codes from until to back into samples from offset on
+     */
+    public static void dequantize(int[] codes, int from, int to, long levels, long peak, boolean lossless,
+                                  short[] samples, int offset) {
+        if (lossless) {
+            for (int i = from; i < to; i++) samples[offset + i - from] = (short) codes[i];
+            return;
+        }
+        double scale = levels;
+        for (int i = from; i < to; i++) samples[offset + i - from] = (short) (long) (codes[i] / scale * peak);
+    }
+
+    public static void dequantize(int[] codes, int from, int to, long levels, long peak, boolean lossless,
+                                  int[] samples, int offset) {
+        if (lossless) {
+            System.arraycopy(codes, from, samples, offset, to - from);
+            return;
+        }
+        double scale = levels;
+        for (int i = from; i < to; i++) samples[offset + i - from] = (int) (long) (codes[i] / scale * peak);
+    }
+
+    public static void dequantize(int[] codes, int from, int to, long levels, long peak, boolean lossless,
+                                  long[] samples, int offset) {
+        if (lossless) {
+            for (int i = from; i < to; i++) samples[offset + i - from] = codes[i];
+            return;
+        }
+        double scale = levels;
+        for (int i = from; i < to; i++) samples[offset + i - from] = (long) (codes[i] / scale * peak);
+    }
+}
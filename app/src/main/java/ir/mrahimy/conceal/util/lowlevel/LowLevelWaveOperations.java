@@ -0,0 +1,176 @@
+package ir.mrahimy.conceal.util.lowlevel;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Allocation free kernels decoding the little endian samples of a wave file data chunk a block at
+ * a time, straight from the buffer the chunk is read into, and encoding them back into the buffer
+ * it is written from. Each sample width has a kernel of its own so the inner loops are free of
+ * the per byte shifts and checks of a generic coder.
+ * <p>
+ * Samples come out the way {@link Wave.WavFile} has always read them: unsigned for a byte per
+ * sample, sign extended for any wider sample. Encoding keeps the low bytes of each sample. IEEE
+ * float samples, nominally within -1 and 1, come out as integers of the valid bits asked for.
+ */
+public class LowLevelWaveOperations {
+
+    /**
+     * Decodes count samples of bytesPerSample from the position of source, a buffer in little
+     * endian order, into samples from offset on, moving the position of source past them
+     */
+    public static void decodeLittleEndian(ByteBuffer source, int bytesPerSample, long[] samples,
+                                          int offset, int count) {
+        switch (bytesPerSample) {
+            case 1:
+                decode8(source, samples, offset, count);
+                break;
+            case 2:
+                decode16(source, samples, offset, count);
+                break;
+            case 3:
+                decode24(source, samples, offset, count);
+                break;
+            case 4:
+                decode32(source, samples, offset, count);
+                break;
+            default:
+                decodeAnyWidth(source, bytesPerSample, samples, offset, count);
+        }
+    }
+
+    private static void decode8(ByteBuffer source, long[] samples, int offset, int count) {
+        int position = source.position();
+        for (int i = 0; i < count; i++) samples[offset + i] = source.get(position + i) & 0xff;
+        source.position(position + count);
+    }
+
+    private static void decode16(ByteBuffer source, long[] samples, int offset, int count) {
+        ShortBuffer shorts = source.asShortBuffer();
+        for (int i = 0; i < count; i++) samples[offset + i] = shorts.get(i);
+        source.position(source.position() + count * 2);
+    }
+
+    private static void decode24(ByteBuffer source, long[] samples, int offset, int count) {
+        int position = source.position();
+        for (int i = 0; i < count; i++, position += 3) {
+            samples[offset + i] = (source.get(position) & 0xff) |
+                    (source.get(position + 1) & 0xff) << 8 |
+                    source.get(position + 2) << 16;
+        }
+        source.position(position);
+    }
+
+    private static void decode32(ByteBuffer source, long[] samples, int offset, int count) {
+        IntBuffer ints = source.asIntBuffer();
+        for (int i = 0; i < count; i++) samples[offset + i] = ints.get(i);
+        source.position(source.position() + count * 4);
+    }
+
+    /**
+     * Up to 8 bytes per sample, the last byte holding the sign
+     */
+    private static void decodeAnyWidth(ByteBuffer source, int bytesPerSample, long[] samples,
+                                       int offset, int count) {
+        for (int i = 0; i < count; i++) {
+            long sample = 0;
+            for (int b = 0; b < bytesPerSample; b++) {
+                long v = source.get();
+                if (b < bytesPerSample - 1) v &= 0xff;
+                sample |= v << (b * 8);
+            }
+            samples[offset + i] = sample;
+        }
+    }
+
+    /**
+     * Decodes count IEEE float samples of bytesPerSample, 4 or 8, the way {@link
+     * #decodeLittleEndian} does, each one scaled to an integer of validBits
+     */
+    public static void decodeFloat(ByteBuffer source, int bytesPerSample, int validBits, long[] samples,
+                                   int offset, int count) {
+        if (bytesPerSample == 8) {
+            DoubleBuffer doubles = source.asDoubleBuffer();
+            for (int i = 0; i < count; i++) samples[offset + i] = fromFloat(doubles.get(i), validBits);
+        } else {
+            FloatBuffer floats = source.asFloatBuffer();
+            for (int i = 0; i < count; i++) samples[offset + i] = fromFloat(floats.get(i), validBits);
+        }
+        source.position(source.position() + count * bytesPerSample);
+    }
+
+    /**
+     * @return value, clipped to -1 and 1, as an integer of validBits
+     */
+    public static long fromFloat(double value, int validBits) {
+        long max = (1L << (validBits - 1)) - 1;
+        return Math.max(-max, Math.min(max, Math.round(value * max)));
+    }
+
+    /**
+     * Encodes count samples from offset on into bytesPerSample each from the position of target,
+     * a buffer in little endian order with room for them, moving the position of target past them
+     */
+    public static void encodeLittleEndian(long[] samples, int offset, int count, int bytesPerSample,
+                                          ByteBuffer target) {
+        switch (bytesPerSample) {
+            case 1:
+                encode8(samples, offset, count, target);
+                break;
+            case 2:
+                encode16(samples, offset, count, target);
+                break;
+            case 3:
+                encode24(samples, offset, count, target);
+                break;
+            case 4:
+                encode32(samples, offset, count, target);
+                break;
+            default:
+                encodeAnyWidth(samples, offset, count, bytesPerSample, target);
+        }
+    }
+
+    private static void encode8(long[] samples, int offset, int count, ByteBuffer target) {
+        int position = target.position();
+        for (int i = 0; i < count; i++) target.put(position + i, (byte) samples[offset + i]);
+        target.position(position + count);
+    }
+
+    private static void encode16(long[] samples, int offset, int count, ByteBuffer target) {
+        ShortBuffer shorts = target.asShortBuffer();
+        for (int i = 0; i < count; i++) shorts.put(i, (short) samples[offset + i]);
+        target.position(target.position() + count * 2);
+    }
+
+    private static void encode24(long[] samples, int offset, int count, ByteBuffer target) {
+        int position = target.position();
+        for (int i = 0; i < count; i++, position += 3) {
+            long sample = samples[offset + i];
+            target.put(position, (byte) sample);
+            target.put(position + 1, (byte) (sample >> 8));
+            target.put(position + 2, (byte) (sample >> 16));
+        }
+        target.position(position);
+    }
+
+    private static void encode32(long[] samples, int offset, int count, ByteBuffer target) {
+        IntBuffer ints = target.asIntBuffer();
+        for (int i = 0; i < count; i++) ints.put(i, (int) samples[offset + i]);
+        target.position(target.position() + count * 4);
+    }
+
+    private static void encodeAnyWidth(long[] samples, int offset, int count, int bytesPerSample,
+                                       ByteBuffer target) {
+        for (int i = 0; i < count; i++) {
+            long sample = samples[offset + i];
+            for (int b = 0; b < bytesPerSample; b++) {
+                target.put((byte) sample);
+                sample >>= 8;
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package ir.mrahimy.conceal.util.lowlevel;
+
+/**
+ * Puts samples into the packed stream block after block as they come, the same bits
+ * {@link LowLevelPackedOperations#putSlots} puts for the whole of them, crossing from a layer to
+ * the next when the end of the pixels is reached. The pixels must have their lsb cleared, and
+ * samples past the last layer are dropped.
+ */
+public class PackedSampleWriter {
+
+    private final int[] pixels;
+    private final int[] starts;
+    private final int[] shifts;
+    private final int depth;
+    private final int sampleBits;
+    private final int mask;
+    private final long sampleMask;
+
+    private int layer = 0;
+    private int position;
+    private long accumulator = 0;
+    private int accumulatedBits = 0;
+    private long samplesPut = 0;
+
+    /**
+     * @param starts the position of the first slot of each layer
+     * @param shifts the shift of each layer inside a packed pixel, in the same order
+     */
+    public PackedSampleWriter(int[] pixels, int[] starts, int[] shifts, int depth, int sampleBits) {
+        this.pixels = pixels;
+        this.starts = starts;
+        this.shifts = shifts;
+        this.depth = depth;
+        this.sampleBits = sampleBits;
+        this.mask = (1 << depth) - 1;
+        this.sampleMask = (1L << sampleBits) - 1;
+        this.position = starts[0];
+    }
+
+    public int getLayer() {
+        return layer;
+    }
+
+    /**
+     * @return the pixel the next slot goes in, inside {@link #getLayer}
+     */
+    public int getPosition() {
+        return position;
+    }
+
+    public long getSamplesPut() {
+        return samplesPut;
+    }
+
+    public void put(int[] samples, int from, int to) {
+        int shift = shifts[Math.min(layer, shifts.length - 1)];
+        for (int index = from; index < to && layer < starts.length; index++) {
+            accumulator = (accumulator << sampleBits) | (samples[index] & sampleMask);
+            accumulatedBits += sampleBits;
+            while (accumulatedBits >= depth && layer < starts.length) {
+                accumulatedBits -= depth;
+                pixels[position++] |= (int) ((accumulator >>> accumulatedBits) & mask) << shift;
+                if (position == pixels.length && ++layer < starts.length) {
+                    position = starts[layer];
+                    shift = shifts[layer];
+                }
+            }
+            samplesPut++;
+        }
+    }
+
+    /**
+     * Moves past samples already put in the pixels, as if they were put again
+     *
+     * @throws IllegalArgumentException if the samples before the next one do not end on a slot
+     */
+    public void skip(long count) {
+        long bits = (samplesPut + count) * sampleBits;
+        if (accumulatedBits != 0 || bits % depth != 0)
+            throw new IllegalArgumentException("cannot skip to the middle of a slot");
+        long slots = count * sampleBits / depth;
+        while (slots > 0 && layer < starts.length) {
+            long left = pixels.length - position;
+            if (slots < left) {
+                position += (int) slots;
+                break;
+            }
+            slots -= left;
+            position = pixels.length;
+            if (++layer < starts.length) position = starts[layer];
+        }
+        samplesPut += count;
+    }
+
+    /**
+     * Puts the bits of the last samples that do not fill a slot, padded with zeros
+     */
+    public void finish() {
+        if (accumulatedBits == 0 || layer >= starts.length) return;
+        int shift = shifts[layer];
+        pixels[position++] |= (int) ((accumulator << (depth - accumulatedBits)) & mask) << shift;
+        accumulatedBits = 0;
+        if (position == pixels.length && ++layer < starts.length) position = starts[layer];
+    }
+}
@@ -0,0 +1,220 @@
+package ir.mrahimy.conceal.util.lowlevel;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes an opaque 8-bit RGB png a few rows at a time, so an image never has to be held whole in
+ * memory. Rows are compressed as they come in with the sub filter and go out in IDAT chunks of
+ * at most {@link #CHUNK_SIZE} bytes. The lsb of every pixel are kept as they are, which a lossy
+ * or palette encoder would not guarantee.
+ * <p>
+ * A png being written can be left at a {@link #checkpoint} and carried on later by another
+ * writer, from the bytes written until then.
+ */
+public class PngWriter implements Closeable {
+
+    public static final int CHUNK_SIZE = 1 << 16;
+
+    private static final byte[] SIGNATURE = {(byte) 137, 'P', 'N', 'G', '\r', '\n', 26, '\n'};
+    private static final int BYTES_PER_PIXEL = 3;
+    private static final int FILTER_SUB = 1;
+    private static final int ADLER_BASE = 65521;
+
+    /**
+     * zlib header of a deflate stream of 32KB windows at {@link Deflater#BEST_SPEED}
+     */
+    private static final byte[] ZLIB_HEADER = {0x78, 0x01};
+
+    /**
+     * How far a png has been written
+     *
+     * @param length      bytes of the png written so far, a png carried on from here starts there
+     * @param rowsWritten rows of the image inside these bytes
+     * @param adler       the adler32 of the rows inside these bytes, as the zlib stream has them
+     */
+    public static class State {
+        public final long length;
+        public final int rowsWritten;
+        public final int adler;
+
+        public State(long length, int rowsWritten, int adler) {
+            this.length = length;
+            this.rowsWritten = rowsWritten;
+            this.adler = adler;
+        }
+    }
+
+    private final DataOutputStream out;
+    private final int width;
+    private final int height;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    private final byte[] row;
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+    private int chunkLength = 0;
+    private int rowsWritten = 0;
+    private long length = 0;
+
+    /**
+     * the adler32 of the rows before this writer, and of the ones since
+     */
+    private final int previousAdler;
+    private final Adler32 adler = new Adler32();
+    private long adlerLength = 0;
+
+    public PngWriter(OutputStream out, int width, int height) throws IOException {
+        this(out, width, height, null);
+    }
+
+    /**
+     * @param from where a png left at a {@link #checkpoint} is carried on, out then taking the
+     *             bytes following the first {@link State#length} bytes of it
+     */
+    public PngWriter(OutputStream out, int width, int height, State from) throws IOException {
+        this.out = new DataOutputStream(out);
+        this.width = width;
+        this.height = height;
+        this.row = new byte[1 + width * BYTES_PER_PIXEL];
+
+        if (from != null) {
+            length = from.length;
+            rowsWritten = from.rowsWritten;
+            previousAdler = from.adler;
+            return;
+        }
+
+        previousAdler = 1;
+        this.out.write(SIGNATURE);
+        length += SIGNATURE.length;
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8;
+        header[9] = 2;
+        writeChunk("IHDR", header, header.length);
+        System.arraycopy(ZLIB_HEADER, 0, chunk, 0, ZLIB_HEADER.length);
+        chunkLength = ZLIB_HEADER.length;
+    }
+
+    /**
+     * @param pixels packed 0xAARRGGBB pixels, the alpha is dropped
+     * @param rows   how many rows of width pixels to take from the start of pixels
+     */
+    public void writeRows(int[] pixels, int rows) throws IOException {
+        if (rowsWritten + rows > height) throw new IOException("more rows than the image has");
+
+        for (int y = 0; y < rows; y++) {
+            row[0] = FILTER_SUB;
+            int previous = 0;
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                int pixel = pixels[offset + x];
+                int index = 1 + x * BYTES_PER_PIXEL;
+                row[index] = (byte) ((pixel >>> 16) - (previous >>> 16));
+                row[index + 1] = (byte) ((pixel >>> 8) - (previous >>> 8));
+                row[index + 2] = (byte) (pixel - previous);
+                previous = pixel;
+            }
+            deflater.setInput(row);
+            adler.update(row);
+            adlerLength += row.length;
+            while (!deflater.needsInput()) deflate(Deflater.NO_FLUSH);
+        }
+        rowsWritten += rows;
+    }
+
+    /**
+     * Writes out every row so far, so a png carried on from the returned state is the same image
+     *
+     * @return where to carry the png on from
+     */
+    public State checkpoint() throws IOException {
+        while (deflate(Deflater.FULL_FLUSH)) ;
+        if (chunkLength > 0) writeChunk("IDAT", chunk, chunkLength);
+        chunkLength = 0;
+        out.flush();
+        return new State(length, rowsWritten, adlerOfRows());
+    }
+
+    /**
+     * Finishes the image, every row must have been written
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (rowsWritten != height) throw new IOException("image has missing rows");
+            deflater.finish();
+            while (!deflater.finished()) deflate(Deflater.NO_FLUSH);
+            if (chunkLength + Integer.BYTES > chunk.length) {
+                writeChunk("IDAT", chunk, chunkLength);
+                chunkLength = 0;
+            }
+            putInt(chunk, chunkLength, adlerOfRows());
+            chunkLength += Integer.BYTES;
+            writeChunk("IDAT", chunk, chunkLength);
+            writeChunk("IEND", chunk, 0);
+        } finally {
+            deflater.end();
+            out.close();
+        }
+    }
+
+    /**
+     * @return whether the chunk got full, so there may be more to deflate
+     */
+    private boolean deflate(int flush) throws IOException {
+        chunkLength += deflater.deflate(chunk, chunkLength, chunk.length - chunkLength, flush);
+        if (chunkLength < chunk.length) return false;
+        writeChunk("IDAT", chunk, chunkLength);
+        chunkLength = 0;
+        return true;
+    }
+
+    /**
+     * @return the adler32 of every row of the png so far, the ones before this writer included
+     */
+    private int adlerOfRows() {
+        return combineAdler(previousAdler, (int) adler.getValue(), adlerLength);
+    }
+
+    /**
+     * @return the adler32 of two blocks of bytes one after another, out of the adler32 of each and
+     * the length of the second, the way zlib combines them
+     */
+    static int combineAdler(int first, int second, long secondLength) {
+        long remainder = secondLength % ADLER_BASE;
+        long sum1 = first & 0xffff;
+        long sum2 = remainder * sum1 % ADLER_BASE;
+        sum1 += (second & 0xffff) + ADLER_BASE - 1;
+        sum2 += ((first >>> 16) & 0xffff) + ((second >>> 16) & 0xffff) + ADLER_BASE - remainder;
+        if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+        if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+        if (sum2 >= ((long) ADLER_BASE << 1)) sum2 -= (long) ADLER_BASE << 1;
+        if (sum2 >= ADLER_BASE) sum2 -= ADLER_BASE;
+        return (int) (sum1 | (sum2 << 16));
+    }
+
+    private void writeChunk(String type, byte[] data, int size) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        crc.update(typeBytes);
+        crc.update(data, 0, size);
+        out.writeInt(size);
+        out.write(typeBytes);
+        out.write(data, 0, size);
+        out.writeInt((int) crc.getValue());
+        length += 12 + size;
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+}
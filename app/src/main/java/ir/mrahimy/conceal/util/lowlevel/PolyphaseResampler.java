@@ -0,0 +1,164 @@
+package ir.mrahimy.conceal.util.lowlevel;
+
+/**
+ * Changes the sample rate of interleaved samples by a ratio of up / down, the rates divided by
+ * their gcd, and optionally downmixes them to mono on the way. Every output frame is worked out
+ * straight from the input frames around it through one phase of a windowed sinc low pass, so
+ * neither an upsampled nor a downmixed copy of the input is ever made.
+ */
+public class PolyphaseResampler {
+
+    /**
+     * Input frames each output frame is worked out from when the rate goes up, see {@link #taps}
+     */
+    public static final int TAPS = 32;
+
+    /**
+     * The pass band ends this close to the lower nyquist frequency of the two rates
+     */
+    private static final double ROLL_OFF = 0.9;
+
+    private final int up;
+    private final int down;
+
+    /**
+     * Input frames each output frame is worked out from: {@link #TAPS} times how many times the
+     * rate goes down, so the transition band keeps the same width next to the lower nyquist
+     * frequency whatever the ratio
+     */
+    private final int taps;
+    private final long delay;
+
+    /**
+     * indexed by phase * taps + tap, the tap 0 weighing the latest input frame
+     */
+    private final float[] filter;
+
+    public PolyphaseResampler(int inputRate, int outputRate) {
+        int gcd = gcd(inputRate, outputRate);
+        up = outputRate / gcd;
+        down = inputRate / gcd;
+        taps = TAPS * ((Math.max(up, down) + up - 1) / up);
+        delay = (long) up * taps / 2;
+        filter = new float[up * taps];
+
+        double cutoff = 0.5 * ROLL_OFF / Math.max(up, down);
+        double length = (double) up * taps;
+        double center = (length - 1) / 2.0;
+        for (int phase = 0; phase < up; phase++) {
+            double sum = 0;
+            for (int tap = 0; tap < taps; tap++) {
+                int k = phase + tap * up;
+                double x = k - center;
+                double sinc = x == 0 ? 1 : Math.sin(2 * Math.PI * cutoff * x) / (2 * Math.PI * cutoff * x);
+                double window = 0.42 - 0.5 * Math.cos(2 * Math.PI * (k + 0.5) / length) +
+                        0.08 * Math.cos(4 * Math.PI * (k + 0.5) / length);
+                filter[phase * taps + tap] = (float) (sinc * window);
+                sum += sinc * window;
+            }
+            /* every phase passes dc as it is */
+            for (int tap = 0; tap < taps; tap++) filter[phase * taps + tap] /= sum;
+        }
+    }
+
+    /**
+     * @return how many frames inputFrames become
+     */
+    public long outputFramesOf(long inputFrames) {
+        return inputFrames * up / down;
+    }
+
+    /**
+     * @return the first input frame outputFrame is worked out from
+     */
+    public long firstInputFrameOf(long outputFrame) {
+        if (up == down) return outputFrame;
+        return Math.max(0, (outputFrame * down + delay) / up - taps + 1);
+    }
+
+    /**
+     * @return the input frame past the last one outputFrame is worked out from, which may be past
+     * the end of the input
+     */
+    public long inputFramesUntil(long outputFrame) {
+        if (up == down) return outputFrame + 1;
+        return (outputFrame * down + delay) / up + 1;
+    }
+
+    /**
+     * @param input          interleaved samples of inputChannels channels
+     * @param output         room for {@link #outputFramesOf} frames of outputChannels channels
+     * @param outputChannels inputChannels, or 1 to downmix every channel to their mean
+     * @param min            the lowest sample the output may hold, and max the highest
+     */
+    public void resample(long[] input, int inputChannels, int inputFrames,
+                         long[] output, int outputChannels, long min, long max) {
+        resample(input, 0, inputChannels, inputFrames, output, 0, outputFramesOf(inputFrames),
+                outputChannels, min, max);
+    }
+
+    /**
+     * Works out the output frames from until to alone, out of a window of the input, so the
+     * input never has to be held whole
+     *
+     * @param window          interleaved input frames from firstInputFrame on, until the {@link
+     *                        #inputFramesUntil} of the last output frame or the end of the input
+     * @param firstInputFrame at most the {@link #firstInputFrameOf} output frame from
+     * @param inputFrames     of the whole input
+     * @param output          room for to - from frames
+     */
+    public void resample(long[] window, long firstInputFrame, int inputChannels, long inputFrames,
+                         long[] output, long from, long to, int outputChannels, long min, long max) {
+        if (up == down) {
+            for (long frame = from; frame < to; frame++) {
+                int index = (int) (frame - from) * outputChannels;
+                int inputFrame = (int) (frame - firstInputFrame);
+                for (int channel = 0; channel < outputChannels; channel++) {
+                    long sample = Math.round(sampleOf(window, inputChannels, inputFrame, channel, outputChannels));
+                    output[index + channel] = Math.max(min, Math.min(max, sample));
+                }
+            }
+            return;
+        }
+
+        for (long frame = from; frame < to; frame++) {
+            long position = frame * down + delay;
+            int phase = (int) (position % up);
+            long latest = position / up;
+            int offset = phase * taps;
+            int index = (int) (frame - from) * outputChannels;
+
+            for (int channel = 0; channel < outputChannels; channel++) {
+                double sum = 0;
+                for (int tap = 0; tap < taps; tap++) {
+                    long inputFrame = latest - tap;
+                    if (inputFrame < 0) break;
+                    if (inputFrame >= inputFrames) continue;
+                    sum += filter[offset + tap] * sampleOf(window, inputChannels,
+                            (int) (inputFrame - firstInputFrame), channel, outputChannels);
+                }
+                long sample = Math.round(sum);
+                output[index + channel] = Math.max(min, Math.min(max, sample));
+            }
+        }
+    }
+
+    private static double sampleOf(long[] input, int inputChannels, int frame, int channel,
+                                   int outputChannels) {
+        int first = frame * inputChannels;
+        if (outputChannels == inputChannels) return input[first + channel];
+
+        long sum = 0;
+        for (int c = 0; c < inputChannels; c++) sum += input[first + c];
+        return (double) sum / inputChannels;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
@@ -0,0 +1,79 @@
+package ir.mrahimy.conceal.util.lowlevel;
+
+import static ir.mrahimy.conceal.util.lowlevel.RiceEncoder.CODE_BITS;
+import static ir.mrahimy.conceal.util.lowlevel.RiceEncoder.ESCAPE_QUOTIENT;
+import static ir.mrahimy.conceal.util.lowlevel.RiceEncoder.MAX_ORDER;
+import static ir.mrahimy.conceal.util.lowlevel.RiceEncoder.ORDER_BITS;
+import static ir.mrahimy.conceal.util.lowlevel.RiceEncoder.PARAMETER_BITS;
+
+/**
+ * Decodes what {@link RiceEncoder} codes, block by block with the same frame counts. Codes
+ * missing at the end of a cut short payload read as zeros rather than failing.
+ */
+public class RiceDecoder {
+
+    private final int[] codes;
+    private final int channelCount;
+    private final long[][] history;
+
+    private int position = 0;
+    private long bits = 0;
+    private int bitCount = 0;
+
+    public RiceDecoder(int[] codes, int channelCount) {
+        this(codes, 0, channelCount);
+    }
+
+    /**
+     * @param from index of the first code, where the encoder started from silence
+     */
+    public RiceDecoder(int[] codes, int from, int channelCount) {
+        this.codes = codes;
+        this.channelCount = channelCount;
+        this.history = new long[channelCount][MAX_ORDER];
+        this.position = from;
+    }
+
+    public void decodeBlock(long[] samples, int offset, int frames) {
+        for (int channel = 0; channel < channelCount; channel++) {
+            long[] h = history[channel];
+            int order = (int) readBits(ORDER_BITS);
+            int k = (int) readBits(PARAMETER_BITS);
+
+            long h1 = h[0], h2 = h[1], h3 = h[2];
+            int to = offset + frames * channelCount;
+            for (int i = offset + channel; i < to; i += channelCount) {
+                long u = readResidual(k);
+                long sample = RiceEncoder.predict(order, h1, h2, h3) + ((u >>> 1) ^ -(u & 1));
+                samples[i] = sample;
+                h3 = h2;
+                h2 = h1;
+                h1 = sample;
+            }
+            h[0] = h1;
+            h[1] = h2;
+            h[2] = h3;
+        }
+    }
+
+    private long readResidual(int k) {
+        int quotient = 0;
+        while (quotient < ESCAPE_QUOTIENT && readBits(1) == 1) quotient++;
+        if (quotient == ESCAPE_QUOTIENT) return (readBits(32) << 32) | readBits(32);
+        return ((long) quotient << k) | readBits(k);
+    }
+
+    /**
+     * @param count up to 32
+     */
+    private long readBits(int count) {
+        if (count == 0) return 0;
+        while (bitCount < count) {
+            int code = position < codes.length ? codes[position++] : 0;
+            bits = (bits << CODE_BITS) | (code & ((1 << CODE_BITS) - 1));
+            bitCount += CODE_BITS;
+        }
+        bitCount -= count;
+        return (bits >>> bitCount) & ((1L << count) - 1);
+    }
+}
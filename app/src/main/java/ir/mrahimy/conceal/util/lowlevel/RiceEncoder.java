@@ -0,0 +1,184 @@
+package ir.mrahimy.conceal.util.lowlevel;
+
+import java.util.Arrays;
+
+/**
+ * Lossless coder of interleaved samples, a block of frames at a time: every channel of a block is
+ * predicted by a fixed polynomial of order 0 to 3, the one with the smallest residuals, and the
+ * residuals are rice coded with a parameter fitted to the block. Predictors go on from a block to
+ * the next, starting from silence, so the memory taken is a block and the codes alone.
+ * <p>
+ * A block holds, for each channel in turn, the order in {@link #ORDER_BITS} bits, the rice
+ * parameter k in {@link #PARAMETER_BITS} bits and then every residual, zigzag mapped to an unsigned
+ * u: u >> k ones, a zero and the k lsb of u. A quotient of {@link #ESCAPE_QUOTIENT} or more is
+ * written as that many ones followed by the 64 bits of u instead.
+ * <p>
+ * The stream is cut in codes of {@link #CODE_BITS} bits in two's complement, the same way the
+ * packed payload keeps samples, the last one padded with zeros.
+ * <p>
+ * A payload is coded a chunk at a time, see {@link #takeChunk}: every chunk decodes on its own and
+ * only the codes of the chunk being coded are held, in room kept from a chunk to the next.
+ */
+public class RiceEncoder {
+
+    public static final int CODE_BITS = 16;
+    public static final int BLOCK_FRAMES = 4096;
+
+    static final int MAX_ORDER = 3;
+    static final int ORDER_BITS = 2;
+    static final int PARAMETER_BITS = 5;
+    static final int MAX_PARAMETER = (1 << PARAMETER_BITS) - 1;
+    static final int ESCAPE_QUOTIENT = 32;
+
+    private final int channelCount;
+
+    /**
+     * the last 3 samples of each channel, the latest first
+     */
+    private final long[][] history;
+    private final long[] sums = new long[MAX_ORDER + 1];
+
+    private int[] codes;
+    private int codeCount;
+    private long bits = 0;
+    private int bitCount = 0;
+
+    public RiceEncoder(int channelCount) {
+        this(channelCount, BLOCK_FRAMES);
+    }
+
+    /**
+     * @param expectedCodes how many codes of a chunk to make room for, the room grows past it if
+     * need be
+     */
+    public RiceEncoder(int channelCount, int expectedCodes) {
+        this.channelCount = channelCount;
+        this.history = new long[channelCount][MAX_ORDER];
+        this.codes = new int[Math.max(expectedCodes, 1)];
+    }
+
+    /**
+     * Ends a chunk which decodes on its own: its codes are padded to a whole code and the
+     * predictors start from silence again for the next one
+     *
+     * @return the codes of the chunk, exactly as many as there are
+     */
+    public int[] takeChunk() {
+        if (bitCount > 0) writeBits(0, CODE_BITS - bitCount);
+        for (long[] h : history) Arrays.fill(h, 0);
+        int[] chunk = Arrays.copyOf(codes, codeCount);
+        codeCount = 0;
+        return chunk;
+    }
+
+    /**
+     * Codes frames of interleaved samples starting at offset, any number of frames though blocks
+     * of {@link #BLOCK_FRAMES} compress best
+     */
+    public void encodeBlock(long[] samples, int offset, int frames) {
+        for (int channel = 0; channel < channelCount; channel++) {
+            long[] h = history[channel];
+            int from = offset + channel;
+            int to = offset + frames * channelCount;
+
+            Arrays.fill(sums, 0);
+            long h1 = h[0], h2 = h[1], h3 = h[2];
+            for (int i = from; i < to; i += channelCount) {
+                long sample = samples[i];
+                for (int order = 0; order <= MAX_ORDER; order++) {
+                    sums[order] += zigzag(sample - predict(order, h1, h2, h3));
+                }
+                h3 = h2;
+                h2 = h1;
+                h1 = sample;
+            }
+
+            int order = 0;
+            for (int candidate = 1; candidate <= MAX_ORDER; candidate++) {
+                /** compared unsigned, sums of huge residuals may take the sign bit */
+                if (sums[candidate] + Long.MIN_VALUE < sums[order] + Long.MIN_VALUE) order = candidate;
+            }
+            int k = parameterOf(sums[order], frames);
+            writeBits(order, ORDER_BITS);
+            writeBits(k, PARAMETER_BITS);
+
+            h1 = h[0];
+            h2 = h[1];
+            h3 = h[2];
+            for (int i = from; i < to; i += channelCount) {
+                long sample = samples[i];
+                writeResidual(zigzag(sample - predict(order, h1, h2, h3)), k);
+                h3 = h2;
+                h2 = h1;
+                h1 = sample;
+            }
+            h[0] = h1;
+            h[1] = h2;
+            h[2] = h3;
+        }
+    }
+
+    static long predict(int order, long h1, long h2, long h3) {
+        switch (order) {
+            case 0:
+                return 0;
+            case 1:
+                return h1;
+            case 2:
+                return 2 * h1 - h2;
+            default:
+                return 3 * h1 - 3 * h2 + h3;
+        }
+    }
+
+    static long zigzag(long residual) {
+        return (residual << 1) ^ (residual >> 63);
+    }
+
+    /**
+     * The largest k keeping 2^k under the mean of the mapped residuals, close to the best one for
+     * a geometric distribution
+     */
+    private static int parameterOf(long sum, int count) {
+        if (sum < 0) return MAX_PARAMETER;
+        int k = 0;
+        while (k < MAX_PARAMETER && ((long) count << (k + 1)) <= sum) k++;
+        return k;
+    }
+
+    private void writeResidual(long u, int k) {
+        long quotient = u >>> k;
+        if (quotient >= ESCAPE_QUOTIENT) {
+            writeOnes(ESCAPE_QUOTIENT);
+            writeBits(u >>> 32, 32);
+            writeBits(u, 32);
+            return;
+        }
+        writeOnes((int) quotient);
+        writeBits(0, 1);
+        writeBits(u, k);
+    }
+
+    private void writeOnes(int count) {
+        while (count > 0) {
+            int chunk = Math.min(count, 32);
+            writeBits(-1L, chunk);
+            count -= chunk;
+        }
+    }
+
+    /**
+     * @param count up to 32
+     */
+    private void writeBits(long value, int count) {
+        if (count == 0) return;
+        bits = (bits << count) | (value & ((1L << count) - 1));
+        bitCount += count;
+        while (bitCount >= CODE_BITS) {
+            bitCount -= CODE_BITS;
+            int code = (int) (bits >>> bitCount) & ((1 << CODE_BITS) - 1);
+            if (codeCount == codes.length) codes = Arrays.copyOf(codes, codes.length + codes.length / 2 + 1);
+            codes[codeCount++] = (code << (32 - CODE_BITS)) >> (32 - CODE_BITS);
+        }
+    }
+}
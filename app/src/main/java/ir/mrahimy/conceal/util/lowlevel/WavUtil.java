@@ -2,24 +2,28 @@ package ir.mrahimy.conceal.util.lowlevel;
 
 import java.io.IOException;
 
+import ir.mrahimy.conceal.data.SampleStore;
 import ir.mrahimy.conceal.data.Waver;
 
 public class WavUtil {
     public static Waver fromWaveData(Wave.WavFile file) {
 
-        final int BUFFER_SIZE = (int) file.getNumFrames();
+        final int BUFFER_SIZE = 4096;
         final int CHANNEL_COUNT = file.getNumChannels();
         long[] buffer = new long[BUFFER_SIZE * CHANNEL_COUNT];
+        SampleStore samples = SampleStore.ofSize((int) file.getNumFrames() * CHANNEL_COUNT, file.getValidBits());
 
         int framesRead = 0;
         int offset = 0;
 
         do {
             try {
-                framesRead = file.readFrames(buffer, offset, BUFFER_SIZE);
-                offset += framesRead;
+                framesRead = file.readFrames(buffer, BUFFER_SIZE);
+                samples.copyFrom(buffer, offset, 0, framesRead * CHANNEL_COUNT);
+                offset += framesRead * CHANNEL_COUNT;
             } catch (Wave.WavFileException | IOException e) {
                 e.printStackTrace();
+                framesRead = 0;
             }
         } while (framesRead != 0);
 
@@ -29,7 +33,7 @@ public class WavUtil {
             e.printStackTrace();
         }
 
-        return new Waver(buffer,
+        return new Waver(samples,
                 file.getSampleRate(),
                 file.getNumChannels(),
                 file.getNumFrames(),
@@ -39,16 +43,22 @@ public class WavUtil {
     public static void writeAllFrames(Wave.WavFile file, Waver waver) {
 
         final int BUFFER_SIZE = 1024;
+        final int CHANNEL_COUNT = waver.getChannelCount();
+        long[] buffer = new long[BUFFER_SIZE * CHANNEL_COUNT];
+        SampleStore samples = waver.getSamples();
 
         int framesWritten = 0;
         int offset = 0;
 
         do {
             try {
-                framesWritten = file.writeFrames(waver.getData(), offset, BUFFER_SIZE);
-                offset += framesWritten;
+                int count = Math.min(buffer.length, samples.getSize() - offset);
+                samples.copyInto(buffer, 0, offset, offset + count);
+                framesWritten = file.writeFrames(buffer, count / CHANNEL_COUNT);
+                offset += framesWritten * CHANNEL_COUNT;
             } catch (Wave.WavFileException | IOException e) {
                 e.printStackTrace();
+                framesWritten = 0;
             }
         } while (framesWritten != 0);
 
@@ -57,7 +67,5 @@ public class WavUtil {
         } catch (IOException e) {
             e.printStackTrace();
         }
-
-
     }
 }
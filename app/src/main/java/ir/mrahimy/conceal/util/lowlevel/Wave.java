@@ -1,10 +1,14 @@
 package ir.mrahimy.conceal.util.lowlevel;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 
 public class Wave {
 
@@ -12,21 +16,35 @@ public class Wave {
         private enum IOState {READING, WRITING, CLOSED}
 
         private final static int BUFFER_SIZE = 4096;
+        private final static int READ_BUFFER_SIZE = 64 * 1024;
 
         private final static int FMT_CHUNK_ID = 0x20746D66;
         private final static int DATA_CHUNK_ID = 0x61746164;
         private final static int RIFF_CHUNK_ID = 0x46464952;
         private final static int RIFF_TYPE_ID = 0x45564157;
 
+        private final static int FORMAT_PCM = 1;
+        private final static int FORMAT_IEEE_FLOAT = 3;
+        private final static int FORMAT_EXTENSIBLE = 0xFFFE;
+        private final static int EXTENSIBLE_FORMAT_SIZE = 40;
+
+        /**
+         * Float samples are read as integers of this many valid bits, as many as the mantissa of
+         * a float holds
+         */
+        public final static int FLOAT_VALID_BITS = 24;
+
         private File file;                      // File that will be read from or written to
         private IOState ioState;                // Specifies the IO State of the Wav File (used for snaity checking)
         private int bytesPerSample;         // Number of bytes required to store a single sample
         private long numFrames;                 // Number of frames within the data section
         private FileOutputStream oStream;   // Output stream used for writting data
         private FileInputStream iStream;        // Input stream used for reading data
+        private FileChannel iChannel;           // Channel of the input stream, data is read through it
         private double floatScale;              // Scaling factor used for int <-> float conversion
         private double floatOffset;         // Offset factor used for int <-> float conversion
         private boolean wordAlignAdjust;        // Specify if an extra byte at the end of the data chunk is required for word alignment
+        private boolean floatingPoint;          // Samples are IEEE floats of bytesPerSample, read as FLOAT_VALID_BITS integers
 
         // Wav Header
         private int numChannels;                // 2 bytes unsigned, 0x0001 (1) to 0xFFFF (65,535)
@@ -38,7 +56,7 @@ public class Wave {
         // Buffering
         private byte[] buffer;                  // Local buffer used for IO
         private int bufferPointer;              // Points to the current position in local buffer
-        private int bytesRead;                  // Bytes read after last read into local buffer
+        private ByteBuffer readBuffer;          // Direct little endian buffer the data chunk is read into
         private long frameCounter;              // Current number of frames read or written
 
         ////exceptions
@@ -158,7 +176,6 @@ public class Wave {
             }
 
             wavFile.bufferPointer = 0;
-            wavFile.bytesRead = 0;
             wavFile.frameCounter = 0;
             wavFile.ioState = IOState.WRITING;
 
@@ -210,10 +227,18 @@ public class Wave {
                     foundFormat = true;
 
                     bytesRead = wavFile.iStream.read(wavFile.buffer, 0, 16);
+                    numChunkBytes -= 16;
 
                     int compressionCode = (int) getLE(wavFile.buffer, 0, 2);
-                    if (compressionCode != 1)
+                    if (compressionCode == FORMAT_EXTENSIBLE && numChunkBytes >= EXTENSIBLE_FORMAT_SIZE - 16) {
+                        // The actual format is in the first 2 bytes of the sub format guid
+                        bytesRead = wavFile.iStream.read(wavFile.buffer, 16, EXTENSIBLE_FORMAT_SIZE - 16);
+                        numChunkBytes -= EXTENSIBLE_FORMAT_SIZE - 16;
+                        compressionCode = (int) getLE(wavFile.buffer, 24, 2);
+                    }
+                    if (compressionCode != FORMAT_PCM && compressionCode != FORMAT_IEEE_FLOAT)
                         throw new WavFileException("Compression Code " + compressionCode + " not supported", COMPRESSION_CODE_NOT_SUPPORTED);
+                    wavFile.floatingPoint = compressionCode == FORMAT_IEEE_FLOAT;
 
                     wavFile.numChannels = (int) getLE(wavFile.buffer, 2, 2);
                     wavFile.sampleRate = getLE(wavFile.buffer, 4, 4);
@@ -234,7 +259,12 @@ public class Wave {
                     if (wavFile.bytesPerSample * wavFile.numChannels != wavFile.blockAlign)
                         throw new WavFileException("Block Align does not agree with bytes required for validBits and number of channels", BLOCK_ALIGN_DOES_NOT_AGREE_WITH_BYTES_REQUIRED_FOR_VALIDBITS_AND_NUMBER_OF_CHANNELS);
 
-                    numChunkBytes -= 16;
+                    if (wavFile.floatingPoint) {
+                        if (wavFile.validBits != 32 && wavFile.validBits != 64)
+                            throw new WavFileException("Float samples of " + wavFile.validBits + " bits not supported", COMPRESSION_CODE_NOT_SUPPORTED);
+                        wavFile.validBits = FLOAT_VALID_BITS;
+                    }
+
                     if (numChunkBytes > 0) wavFile.iStream.skip(numChunkBytes);
                 } else if (chunkID == DATA_CHUNK_ID) {
                     if (foundFormat == false)
@@ -263,8 +293,9 @@ public class Wave {
                 wavFile.floatScale = 0.5 * ((1 << wavFile.validBits) - 1);
             }
 
-            wavFile.bufferPointer = 0;
-            wavFile.bytesRead = 0;
+            wavFile.iChannel = wavFile.iStream.getChannel();
+            wavFile.readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            wavFile.readBuffer.limit(0);
             wavFile.frameCounter = 0;
             wavFile.ioState = IOState.READING;
 
@@ -307,27 +338,41 @@ public class Wave {
         }
 
         private long readSample() throws IOException, WavFileException {
+            fillReadBuffer();
+
+            if (floatingPoint) {
+                double value = bytesPerSample == 8 ? readBuffer.getDouble() : readBuffer.getFloat();
+                return LowLevelWaveOperations.fromFloat(value, FLOAT_VALID_BITS);
+            }
+
             long val = 0;
 
             for (int b = 0; b < bytesPerSample; b++) {
-                if (bufferPointer == bytesRead) {
-                    int read = iStream.read(buffer, 0, BUFFER_SIZE);
-                    if (read == -1)
-                        throw new WavFileException("Not enough data available", NOT_ENOUGH_DATA_AVAILABLE);
-                    bytesRead = read;
-                    bufferPointer = 0;
-                }
-
-                int v = buffer[bufferPointer];
+                int v = readBuffer.get();
                 if (b < bytesPerSample - 1 || bytesPerSample == 1) v &= 0xFF;
                 val += v << (b * 8);
-
-                bufferPointer++;
             }
 
             return val;
         }
 
+        /**
+         * Makes sure the read buffer holds at least a whole sample, keeping the bytes left in it
+         * and reading as many more from the channel as fit
+         */
+        private void fillReadBuffer() throws IOException, WavFileException {
+            if (readBuffer.remaining() >= bytesPerSample) return;
+
+            readBuffer.compact();
+            while (readBuffer.position() < bytesPerSample) {
+                if (iChannel.read(readBuffer) == -1) {
+                    readBuffer.flip();
+                    throw new WavFileException("Not enough data available", NOT_ENOUGH_DATA_AVAILABLE);
+                }
+            }
+            readBuffer.flip();
+        }
+
 
         // Short
 
@@ -538,18 +583,22 @@ public class Wave {
             if (ioState != IOState.READING)
                 throw new IOException("Cannot read from WavFile instance");
 
-            for (int f = 0; f < numFramesToRead; f++) {
-                if (frameCounter == numFrames) return f;
-
-                for (int c = 0; c < numChannels; c++) {
-                    sampleBuffer[offset] = readSample();
-                    offset++;
-                }
-
-                frameCounter++;
+            // Decoded as many samples at a time as the read buffer holds
+            int frames = (int) Math.min(numFramesToRead, numFrames - frameCounter);
+            int samples = frames * numChannels;
+            while (samples > 0) {
+                fillReadBuffer();
+                int count = Math.min(samples, readBuffer.remaining() / bytesPerSample);
+                if (floatingPoint)
+                    LowLevelWaveOperations.decodeFloat(readBuffer, bytesPerSample, FLOAT_VALID_BITS, sampleBuffer, offset, count);
+                else
+                    LowLevelWaveOperations.decodeLittleEndian(readBuffer, bytesPerSample, sampleBuffer, offset, count);
+                offset += count;
+                samples -= count;
             }
 
-            return numFramesToRead;
+            frameCounter += frames;
+            return frames;
         }
 
         public int readFrames(long[][] sampleBuffer, int numFramesToRead) throws IOException, WavFileException {
@@ -708,6 +757,7 @@ public class Wave {
             if (iStream != null) {
                 iStream.close();
                 iStream = null;
+                iChannel = null;
             }
 
             if (oStream != null) {
@@ -735,7 +785,7 @@ public class Wave {
             out.printf("Channels: %d, Frames: %d\n", numChannels, numFrames);
             out.printf("IO State: %s\n", ioState);
             out.printf("Sample Rate: %d, Block Align: %d\n", sampleRate, blockAlign);
-            out.printf("Valid Bits: %d, Bytes per sample: %d\n", validBits, bytesPerSample);
+            out.printf("Valid Bits: %d, Bytes per sample: %d, Float: %b\n", validBits, bytesPerSample, floatingPoint);
         }
 
         public static void main(String[] args) {
@@ -787,6 +837,111 @@ public class Wave {
         }
     }
 
+    /**
+     * Writes a wave file a block of frames at a time. Samples are encoded in a single pass into a
+     * large direct buffer, which goes out through a FileChannel whenever it is full, so the number
+     * of frames need not be known up front: the RIFF and data chunk sizes are patched in at close.
+     */
+    public static class WavWriter implements Closeable {
+
+        private final static int WRITE_BUFFER_SIZE = 256 * 1024;
+        private final static int HEADER_SIZE = 44;
+        private final static int RIFF_SIZE_POSITION = 4;
+        private final static int DATA_SIZE_POSITION = 40;
+        private final static long MAX_CHUNK_SIZE = 0xFFFFFFFFL;
+
+        private final FileOutputStream oStream;
+        private final FileChannel oChannel;
+        private final int numChannels;
+        private final int bytesPerSample;
+        private final ByteBuffer writeBuffer;
+        private long dataChunkSize = 0;
+
+        public WavWriter(File file, int numChannels, int validBits, long sampleRate) throws IOException, WavFileException {
+            if (numChannels < 1 || numChannels > 65535)
+                throw new WavFileException("Illegal number of channels, valid range 1 to 65536", WavFile.ILLEGAL_NUMBER_OF_CHANNELS);
+            if (validBits < 2 || validBits > 64)
+                throw new WavFileException("Illegal number of valid bits, valid range 2 to 64", WavFile.ILLEGAL_NUMBER_OF_VALID_BITS);
+            if (sampleRate < 0)
+                throw new WavFileException("Sample rate must be positive", WavFile.SAMPLE_RATE_MUST_BE_POSITIVE);
+
+            this.numChannels = numChannels;
+            this.bytesPerSample = (validBits + 7) / 8;
+            int blockAlign = bytesPerSample * numChannels;
+
+            writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            writeBuffer.putInt(WavFile.RIFF_CHUNK_ID)
+                    .putInt(0)                                      // Riff size, patched at close
+                    .putInt(WavFile.RIFF_TYPE_ID)
+                    .putInt(WavFile.FMT_CHUNK_ID)
+                    .putInt(16)                                     // Chunk Data Size
+                    .putShort((short) 1)                            // Compression Code (Uncompressed)
+                    .putShort((short) numChannels)
+                    .putInt((int) sampleRate)
+                    .putInt((int) (sampleRate * blockAlign))        // Average Bytes Per Second
+                    .putShort((short) blockAlign)
+                    .putShort((short) validBits)
+                    .putInt(WavFile.DATA_CHUNK_ID)
+                    .putInt(0);                                     // Data size, patched at close
+
+            oStream = new FileOutputStream(file);
+            oChannel = oStream.getChannel();
+        }
+
+        public void writeFrames(long[] sampleBuffer, int numFramesToWrite) throws IOException {
+            writeFrames(sampleBuffer, 0, numFramesToWrite);
+        }
+
+        /**
+         * @param offset of the first sample of the interleaved frames to write
+         */
+        public void writeFrames(long[] sampleBuffer, int offset, int numFramesToWrite) throws IOException {
+            int samples = numFramesToWrite * numChannels;
+            while (samples > 0) {
+                int count = Math.min(samples, writeBuffer.remaining() / bytesPerSample);
+                if (count == 0) {
+                    flush();
+                    continue;
+                }
+                LowLevelWaveOperations.encodeLittleEndian(sampleBuffer, offset, count, bytesPerSample, writeBuffer);
+                offset += count;
+                samples -= count;
+                dataChunkSize += (long) count * bytesPerSample;
+            }
+            if (HEADER_SIZE - 8 + dataChunkSize + 1 > MAX_CHUNK_SIZE)
+                throw new IOException("Wav data does not fit in 4 GiB");
+        }
+
+        private void flush() throws IOException {
+            writeBuffer.flip();
+            while (writeBuffer.hasRemaining()) oChannel.write(writeBuffer);
+            writeBuffer.clear();
+        }
+
+        private void patch(long value, long position) throws IOException {
+            ByteBuffer patch = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            patch.putInt(0, (int) value);
+            while (patch.hasRemaining()) position += oChannel.write(patch, position);
+        }
+
+        /**
+         * Writes the frames left in the buffer, the pad byte of an odd sized data chunk and the
+         * sizes of the chunks, then closes the file
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                if (!writeBuffer.hasRemaining()) flush();
+                if (dataChunkSize % 2 == 1) writeBuffer.put((byte) 0);
+                flush();
+                patch(HEADER_SIZE - 8 + dataChunkSize + dataChunkSize % 2, RIFF_SIZE_POSITION);
+                patch(dataChunkSize, DATA_SIZE_POSITION);
+            } finally {
+                oStream.close();
+            }
+        }
+    }
+
     public static class WavFileException extends Exception {
         /**
          *
@@ -0,0 +1,253 @@
+package ir.mrahimy.conceal
+
+import ir.mrahimy.conceal.data.CarrierHeader
+import ir.mrahimy.conceal.data.PixelBuffer
+import ir.mrahimy.conceal.data.Waver
+import ir.mrahimy.conceal.data.dequantize
+import ir.mrahimy.conceal.data.enums.PayloadCodec
+import ir.mrahimy.conceal.data.quantize
+import ir.mrahimy.conceal.data.toCarrierHeader
+import ir.mrahimy.conceal.data.withPayloadOf
+import ir.mrahimy.conceal.util.BINARY_HEADER_PIXELS
+import ir.mrahimy.conceal.util.DEFAULT_LSB_DEPTH
+import ir.mrahimy.conceal.util.ForeignImageException
+import ir.mrahimy.conceal.util.PackedLayout
+import ir.mrahimy.conceal.util.SampleLayout
+import ir.mrahimy.conceal.util.getAllSignedIntegersInParallel
+import ir.mrahimy.conceal.util.getCarrierHeader
+import ir.mrahimy.conceal.util.layoutOf
+import ir.mrahimy.conceal.util.putAllSignedIntegersInParallel
+import ir.mrahimy.conceal.util.putCarrierHeader
+import ir.mrahimy.conceal.util.putLegacyHeaderInfo
+import ir.mrahimy.conceal.util.putWaverHeaderInfo
+import ir.mrahimy.conceal.util.remove3Lsb
+import ir.mrahimy.conceal.util.removeLsb
+import ir.mrahimy.conceal.util.revealRange
+import kotlinx.coroutines.runBlocking
+import org.junit.Test
+import kotlin.math.PI
+import kotlin.math.abs
+import kotlin.math.sin
+import kotlin.math.sqrt
+import kotlin.random.Random
+
+class CarrierHeaderUnitTest {
+
+    private val random = Random(1397)
+
+    private val waver = Waver(LongArray(0), 44100, 2, 1234567, 16).apply { maxValue = 32767 }
+
+    private fun assertSameAsWaver(header: CarrierHeader) {
+        assert(header.sampleRate == 44100)
+        assert(header.channelCount == 2)
+        assert(header.frameCount == 1234567)
+        assert(header.validBits == 16)
+        assert(header.maxValue == 32767)
+    }
+
+    @Test
+    fun `test binary header round trip`() {
+        val pixels = random.nextPixels().remove3Lsb()
+        val position = pixels.putWaverHeaderInfo(waver, DEFAULT_LSB_DEPTH)
+        val header = pixels.getCarrierHeader()
+
+        assert(position == BINARY_HEADER_PIXELS)
+        assert(header.version == CarrierHeader.BINARY_VERSION)
+        assert(header.lsbDepth == DEFAULT_LSB_DEPTH)
+        assert(header.position == position)
+        assert(header.layoutOf(pixels.size) is PackedLayout)
+        assertSameAsWaver(header)
+    }
+
+    @Test
+    fun `test sample depth round trip`() {
+        CarrierHeader.SAMPLE_DEPTHS.forEach { sampleDepth ->
+            val pixels = random.nextPixels().remove3Lsb()
+            pixels.putWaverHeaderInfo(waver, 1, sampleDepth)
+            val header = pixels.getCarrierHeader()
+
+            assert(header.sampleDepth == sampleDepth)
+            assert(header.lossless == (sampleDepth == 16))
+            assertSameAsWaver(header)
+        }
+    }
+
+    @Test
+    fun `test legacy header still parsed`() {
+        val pixels = random.nextPixels().remove3Lsb()
+        val position = pixels.putLegacyHeaderInfo(waver)
+        val header = pixels.getCarrierHeader()
+
+        assert(header.version == CarrierHeader.LEGACY_VERSION)
+        assert(header.sampleDepth == CarrierHeader.DEFAULT_SAMPLE_DEPTH)
+        assert(!header.lossless)
+        assert(header.position == position)
+        assert(header.layoutOf(pixels.size) is SampleLayout)
+        assertSameAsWaver(header)
+    }
+
+    @Test
+    fun `test foreign image rejected`() {
+        var rejected = 0
+        repeat(1000) {
+            val pixels = random.nextPixels()
+            /** makes the first nibble 0 so it is not taken for a legacy header */
+            pixels.pixels[0] = pixels.pixels[0] and 0x30000.inv()
+            pixels.pixels[1] = pixels.pixels[1] and 0x30000.inv()
+            try {
+                pixels.getCarrierHeader()
+            } catch (e: ForeignImageException) {
+                rejected++
+            }
+        }
+        assert(rejected == 1000)
+    }
+
+    @Test
+    fun `test broken header rejected`() {
+        val pixels = random.nextPixels().remove3Lsb()
+        pixels.putWaverHeaderInfo(waver, DEFAULT_LSB_DEPTH)
+        /** flips a bit of the frame count */
+        pixels.pixels[4 * 16 + 3] = pixels.pixels[4 * 16 + 3] xor 0x10000
+        val rejected = try {
+            pixels.getCarrierHeader()
+            false
+        } catch (e: ForeignImageException) {
+            true
+        }
+        assert(rejected)
+    }
+
+    @Test
+    fun `test codec round trip`() {
+        PayloadCodec.values().forEach { codec ->
+            val pixels = random.nextPixels().remove3Lsb()
+            pixels.putCarrierHeader(waver.toCarrierHeader(DEFAULT_LSB_DEPTH, 16, codec))
+            val header = pixels.getCarrierHeader()
+
+            assert(header.codec == codec)
+            assert(header.lossless == (codec == PayloadCodec.PCM || codec == PayloadCodec.RICE))
+            assert(header.sampleBits == if (codec == PayloadCodec.PCM) 17 else codec.codeBits)
+            if (!codec.variableLength) assertSameAsWaver(header)
+        }
+    }
+
+    /**
+     * A stereo tone of each valid bits, concealed with each codec and revealed back
+     */
+    @Test
+    fun `test coded samples come back close`() = runBlocking {
+        listOf(8, 16, 24).forEach { validBits ->
+            val frames = 800
+            val amplitude = (1L shl (validBits - 2)).toDouble()
+            val offset = if (validBits == 8) 128L else 0L
+            val data = LongArray(frames * 2) {
+                val channel = it % 2
+                offset + (amplitude * sin(2 * PI * (440 + 220 * channel) * (it / 2) / 8000)).toLong()
+            }
+            val tone = Waver(data, 8000, 2, frames.toLong(), validBits).apply { maxValue = amplitude.toLong() }
+
+            listOf(PayloadCodec.MU_LAW, PayloadCodec.IMA_ADPCM).forEach { codec ->
+                val header = tone.toCarrierHeader(2, 16, codec)
+                val pixels = random.nextPixels().removeLsb(header.lsbDepth)
+                val position = pixels.putCarrierHeader(header)
+                val layout = PackedLayout(pixels.size, position, header.lsbDepth, header.sampleBits)
+                val codes = tone.quantize(header)
+                pixels.putAllSignedIntegersInParallel(layout, codes)
+
+                val revealedHeader = pixels.getCarrierHeader()
+                val revealed = pixels.getAllSignedIntegersInParallel(layout, codes.size).dequantize(revealedHeader)
+                val noise = sqrt(data.indices.map { (revealed[it] - data[it]).toDouble().let { e -> e * e } }.average())
+
+                assert(revealed.size == data.size)
+                assert(noise < amplitude / 10)
+                assert(layout.capacity >= 16 / codec.codeBits * PackedLayout(pixels.size, position, header.lsbDepth, 17).capacity)
+            }
+        }
+    }
+
+    @Test
+    fun `test ima adpcm chunks start where the last one left off`() {
+        val frames = 8000 * 3 + 500
+        val amplitude = (1L shl 14).toDouble()
+        /** far from silence at every chunk start, a chunk starting over from silence jumps there */
+        val data = LongArray(frames) { amplitude.toLong() + (amplitude / 2 * sin(2 * PI * 50 * it / 8000)).toLong() }
+        val tone = Waver(data, 8000, 1, frames.toLong(), 16).apply { maxValue = 2 * amplitude.toLong() }
+        val header = tone.toCarrierHeader(2, 16, PayloadCodec.IMA_ADPCM)
+
+        val codes = tone.quantize(header)
+        val revealed = codes.dequantize(header)
+
+        assert(codes.size.toLong() == header.payloadCount)
+        assert(revealed.size == data.size)
+        listOf(8000, 16000, 24000).forEach { start ->
+            (start until start + 8).forEach { assert(abs(revealed[it] - data[it]) < amplitude / 20) }
+        }
+    }
+
+    /**
+     * Noisy stereo tones of each valid bits, the last block cut short
+     */
+    @Test
+    fun `test rice codes come back bit exact`() = runBlocking {
+        listOf(8, 16, 24, 32).forEach { validBits ->
+            val frames = 10_000
+            val amplitude = (1L shl (validBits - 2)).toDouble()
+            val offset = if (validBits == 8) 128L else 0L
+            val data = LongArray(frames * 2) {
+                val tone = amplitude * sin(2 * PI * (110 + 55 * (it % 2)) * (it / 2) / 44100)
+                offset + tone.toLong() + random.nextLong(-amplitude.toLong() / 256, amplitude.toLong() / 256 + 1)
+            }
+            val audio = Waver(data, 44100, 2, frames.toLong(), validBits).apply { maxValue = amplitude.toLong() }
+
+            val plainHeader = audio.toCarrierHeader(4, 16, PayloadCodec.RICE)
+            val codes = audio.quantize(plainHeader)
+            val header = plainHeader.withPayloadOf(codes)
+            val pixels = PixelBuffer(300, 300).removeLsb(header.lsbDepth)
+            val position = pixels.putCarrierHeader(header)
+            val layout = PackedLayout(pixels.size, position, header.lsbDepth, header.sampleBits)
+            pixels.putAllSignedIntegersInParallel(layout, codes)
+
+            val revealedHeader = pixels.getCarrierHeader()
+            val revealed = pixels.getAllSignedIntegersInParallel(layout, revealedHeader.payloadCount.toInt())
+
+            assert(revealedHeader.payloadCount == codes.size.toLong())
+            assert(revealed.dequantize(revealedHeader).contentEquals(data))
+            /** 8 bits of noise are left out of validBits + 1 */
+            assert(codes.size * 16.0 < data.size * (validBits - 5))
+        }
+    }
+
+    /**
+     * 3.5 seconds of stereo tone, revealed whole and a range at a time
+     */
+    @Test
+    fun `test any range revealed alone`() = runBlocking {
+        val data = LongArray(2 * 28000) { (8000 * sin(2 * PI * (220 + 110 * (it % 2)) * (it / 2) / 8000)).toLong() }
+        val audio = Waver(data, 8000, 2, 28000, 16).apply { maxValue = 8000 }
+        listOf(PayloadCodec.PCM, PayloadCodec.IMA_ADPCM, PayloadCodec.RICE).forEach { codec ->
+            val plainHeader = audio.toCarrierHeader(4, 16, codec)
+            val codes = audio.quantize(plainHeader)
+            val header = plainHeader.withPayloadOf(codes)
+            /** the r layer holds it all, so any range is a run of pixels */
+            val pixels = PixelBuffer(600, 400).removeLsb(header.lsbDepth)
+            val position = pixels.putCarrierHeader(header)
+            val layout = PackedLayout(pixels.size, position, header.lsbDepth, header.sampleBits)
+            pixels.putAllSignedIntegersInParallel(layout, codes)
+
+            val revealedHeader = pixels.getCarrierHeader()
+            val whole = pixels.getAllSignedIntegersInParallel(layout, revealedHeader.payloadCount.toInt())
+                .dequantize(revealedHeader)
+            listOf(0L to 28000L, 9000L to 21000L, 16000L to 16001L, 27000L to 40000L).forEach { (from, to) ->
+                val loads = mutableListOf<Int>()
+                val range = pixels.revealRange(revealedHeader, from, to) { first, _ -> loads += first }
+
+                assert(range.frameCount == minOf(to, 28000L) - from)
+                assert(range.samples.toLongArray().contentEquals(whole.copyOfRange(2 * from.toInt(), 2 * minOf(to, 28000L).toInt())))
+                /** the chunks before the range are never read */
+                assert(from < 8000 || loads.last() > layout.pixelsHolding(header.tableCount))
+            }
+            if (codec == PayloadCodec.PCM) assert(whole.contentEquals(data))
+        }
+    }
+}
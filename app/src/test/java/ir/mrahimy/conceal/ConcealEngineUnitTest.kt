@@ -0,0 +1,585 @@
+package ir.mrahimy.conceal
+
+import ir.mrahimy.conceal.data.CarrierHeader
+import ir.mrahimy.conceal.data.ConcealCheckpoint
+import ir.mrahimy.conceal.data.PixelBuffer
+import ir.mrahimy.conceal.data.SampleStore
+import ir.mrahimy.conceal.data.TiledCheckpoint
+import ir.mrahimy.conceal.data.Waver
+import ir.mrahimy.conceal.data.dequantize
+import ir.mrahimy.conceal.data.emptyChunkIndex
+import ir.mrahimy.conceal.data.frameBlocks
+import ir.mrahimy.conceal.data.mapToRgbValue
+import ir.mrahimy.conceal.data.maxValue
+import ir.mrahimy.conceal.data.quantize
+import ir.mrahimy.conceal.data.tableCodesOf
+import ir.mrahimy.conceal.data.toCarrierHeader
+import ir.mrahimy.conceal.data.toWaver
+import ir.mrahimy.conceal.data.enums.PayloadCodec
+import ir.mrahimy.conceal.util.BINARY_HEADER_PIXELS
+import ir.mrahimy.conceal.util.CHECKPOINT_FILE_NAME
+import ir.mrahimy.conceal.util.Checkpointer
+import ir.mrahimy.conceal.util.DirtyRows
+import ir.mrahimy.conceal.util.HugeFileException
+import ir.mrahimy.conceal.util.Layer
+import ir.mrahimy.conceal.util.PackedLayout
+import ir.mrahimy.conceal.util.Progress
+import ir.mrahimy.conceal.util.SampleLayout
+import ir.mrahimy.conceal.util.appendCheckpoint
+import ir.mrahimy.conceal.util.checkpointKeyOf
+import ir.mrahimy.conceal.util.forgetStaleCheckpoint
+import ir.mrahimy.conceal.util.getAllSignedIntegers
+import ir.mrahimy.conceal.util.getAllSignedIntegersInParallel
+import ir.mrahimy.conceal.util.getSignedInteger
+import ir.mrahimy.conceal.util.isCheckpointKeyCurrent
+import ir.mrahimy.conceal.util.planCapacity
+import ir.mrahimy.conceal.util.planConceal
+import ir.mrahimy.conceal.util.putCarrierHeader
+import ir.mrahimy.conceal.util.putAllSignedIntegersInParallel
+import ir.mrahimy.conceal.util.putOver
+import ir.mrahimy.conceal.util.putSignedInteger
+import ir.mrahimy.conceal.util.readCheckpoint
+import ir.mrahimy.conceal.util.remove3Lsb
+import ir.mrahimy.conceal.util.removeLsb
+import ir.mrahimy.conceal.util.writeCheckpoint
+import ir.mrahimy.conceal.util.lowlevel.PackedSampleWriter
+import ir.mrahimy.conceal.util.lowlevel.PngWriter
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import org.junit.Test
+import java.io.File
+import kotlin.math.abs
+import kotlin.random.Random
+
+class ConcealEngineUnitTest {
+
+    private val random = Random(1398)
+
+    private val header_size = 30
+
+    private fun randomPixels() = random.nextPixels().remove3Lsb()
+
+    /**
+     * The peak the kernels replaced, kept here so a broken kernel is not checked against itself
+     */
+    private fun peakBeforeOf(data: LongArray): Long {
+        if (data.isEmpty()) return 1
+        var max = 0L
+        data.forEach { if (it > max) max = it else if (-it > max) max = -it }
+        return max
+    }
+
+    /**
+     * The scaling the kernels replaced, see [peakBeforeOf]
+     */
+    private fun uniformBeforeOf(data: LongArray): DoubleArray {
+        val max = peakBeforeOf(data).toDouble()
+        return DoubleArray(data.size) { data[it].toDouble() / max }
+    }
+
+    /**
+     * Puts the samples one by one, r layer after the header and then g and b layers
+     */
+    private fun PixelBuffer.putSequentially(array: IntArray) {
+        var index = 0
+        Layer.values().forEach { layer ->
+            var position = if (layer == Layer.R) header_size else 0
+            while (index < array.size && position + 3 < size) {
+                position = putSignedInteger(position, array[index++], layer)
+            }
+        }
+    }
+
+    @Test
+    fun `test parallel conceal same as sequential`() {
+        val layout = SampleLayout(carrier_width * carrier_height, header_size)
+        listOf(1, 100, layout.capacityOf(Layer.R) + 7, layout.capacity).forEach { count ->
+            val array = IntArray(count) { random.nextInt(-255, 256) }
+            val sequential = randomPixels()
+            val parallel = sequential.copy()
+            val progress = Progress()
+            sequential.putSequentially(array)
+            runBlocking { parallel.putAllSignedIntegersInParallel(layout, array, 3, progress) }
+
+            assert(sequential.pixels.contentEquals(parallel.pixels))
+            assert(progress.done == count.toLong())
+        }
+    }
+
+    @Test
+    fun `test getting samples back from the layout`() {
+        val pixels = randomPixels()
+        val layout = SampleLayout(pixels.size, header_size)
+        val array = IntArray(layout.capacity) { random.nextInt(-255, 256) }
+        runBlocking { pixels.putAllSignedIntegersInParallel(layout, array, 4) }
+
+        array.forEachIndexed { index, value ->
+            assert(pixels.getSignedInteger(layout.positionOf(index), layout.layerOf(index)) == value)
+        }
+    }
+
+    @Test
+    fun `test parallel reveal same as sequential`() {
+        val pixels = random.nextPixels()
+        val layout = SampleLayout(pixels.size, header_size)
+        val sequential = pixels.getAllSignedIntegers(header_size)
+        listOf(1, 3, 7).forEach { workers ->
+            val parallel = runBlocking { pixels.getAllSignedIntegersInParallel(layout, workers = workers) }
+            assert(sequential == parallel.toList())
+        }
+    }
+
+    @Test
+    fun `test pixels holding the samples`() {
+        val layout = SampleLayout(carrier_width * carrier_height, header_size)
+        val rCapacity = layout.capacityOf(Layer.R)
+        assert(layout.pixelsHolding(0) == header_size)
+        (1..rCapacity).forEach { count ->
+            assert(layout.pixelsHolding(count) == layout.positionOf(count - 1) + 4)
+        }
+        assert(layout.pixelsHolding(rCapacity + 1) == layout.size)
+        assert(layout.pixelsHolding(layout.capacity) == layout.size)
+    }
+
+    @Test
+    fun `test packed samples come back for every depth`() {
+        (1..4).forEach { depth ->
+            val layout = PackedLayout(carrier_width * carrier_height, header_size, depth)
+            listOf(1, 101, layout.capacity).forEach { count ->
+                val array = IntArray(count) { random.nextInt(-255, 256) }
+                val single = randomPixels().removeLsb(depth)
+                val parallel = single.copy()
+                runBlocking {
+                    single.putAllSignedIntegersInParallel(layout, array, 1)
+                    parallel.putAllSignedIntegersInParallel(layout, array, 5)
+                }
+                assert(single.pixels.contentEquals(parallel.pixels))
+
+                val samples = runBlocking { parallel.getAllSignedIntegersInParallel(layout, count, 3) }
+                assert(samples.contentEquals(array))
+            }
+        }
+    }
+
+    @Test
+    fun `test packed samples stay inside their lsb`() {
+        val pixels = randomPixels()
+        val untouched = pixels.copy()
+        val layout = PackedLayout(pixels.size, header_size, 2)
+        val array = IntArray(layout.capacity) { random.nextInt(-255, 256) }
+        runBlocking { pixels.putAllSignedIntegersInParallel(layout, array) }
+
+        repeat(pixels.size) {
+            val changed = pixels.pixels[it] xor untouched.pixels[it]
+            val allowed = if (it < header_size) 0x0303 else 0x030303
+            assert(changed and allowed.inv() == 0)
+        }
+    }
+
+    @Test
+    fun `test capacity plan is exact`() {
+        planCapacity(carrier_width * carrier_height).forEach { plan ->
+            val pixels = randomPixels()
+            val layout = PackedLayout(pixels.size, BINARY_HEADER_PIXELS, plan.lsbDepth, plan.sampleDepth + 1)
+            assert(layout.capacity == plan.samples)
+            assert(layout.slotsHolding(plan.samples) <= layout.slots)
+            assert(layout.slotsHolding(plan.samples + 1) > layout.slots)
+        }
+    }
+
+    @Test
+    fun `test conceal plan is exact`() {
+        val pixelCount = carrier_width * carrier_height
+        (1..4).forEach { lsbDepth ->
+            CarrierHeader.SAMPLE_DEPTHS.forEach { sampleDepth ->
+                val capacity = planConceal(pixelCount, 0, 1, 8000, lsbDepth, sampleDepth).capacity
+                val fitting = planConceal(pixelCount, capacity.toLong(), 1, 8000, lsbDepth, sampleDepth)
+                val exceeding = planConceal(pixelCount, capacity + 1L, 1, 8000, lsbDepth, sampleDepth)
+
+                assert(fitting.fits && !exceeding.fits)
+                assert(fitting.pixelBudget <= pixelCount && exceeding.pixelBudget > pixelCount)
+                assert(fitting.maxDurationMs == capacity * 1000L / 8000)
+
+                val budget = fitting.pixelBudget.toInt()
+                assert(PackedLayout(budget, BINARY_HEADER_PIXELS, lsbDepth, sampleDepth + 1).capacity >= capacity)
+                assert(PackedLayout(budget - 1, BINARY_HEADER_PIXELS, lsbDepth, sampleDepth + 1).capacity < capacity)
+            }
+        }
+    }
+
+    @Test
+    fun `test fitted audio is planned in its smallest format`() {
+        val pixelCount = carrier_width * carrier_height
+        val capacity = planConceal(pixelCount, 0, 2, 44100, 3, 8).capacity
+        /** stereo at 44.1kHz takes 11 times the samples of mono at 8kHz */
+        val frames = capacity * 5L
+        val plain = planConceal(pixelCount, frames, 2, 44100, 3, 8)
+        val fitted = planConceal(pixelCount, frames, 2, 44100, 3, 8, fitAudio = true)
+        val tooLong = planConceal(pixelCount, frames * 3, 2, 44100, 3, 8, fitAudio = true)
+
+        assert(!plain.fits)
+        assert(fitted.fits && !fitted.fitsAsIs)
+        assert(fitted.smallestSamples <= capacity)
+        assert(!tooLong.fits)
+    }
+
+    @Test
+    fun `test compressed payload is only refused once coded`() {
+        val pixelCount = carrier_width * carrier_height
+        val capacity = planConceal(pixelCount, 0, 1, 8000, 2, 16, PayloadCodec.RICE).capacity
+        val exceeding = planConceal(pixelCount, capacity * 4L, 1, 8000, 2, 16, PayloadCodec.RICE)
+
+        assert(exceeding.samples > exceeding.capacity)
+        assert(exceeding.fits)
+    }
+
+    @Test
+    fun `test audio losing its silence is only refused once trimmed`() {
+        val pixelCount = carrier_width * carrier_height
+        val capacity = planConceal(pixelCount, 0, 1, 8000, 2, 8).capacity
+        val exceeding = planConceal(pixelCount, capacity * 4L, 1, 8000, 2, 8, trimsSilence = true)
+
+        assert(!exceeding.fitsAsIs)
+        assert(exceeding.fits)
+    }
+
+    @Test
+    fun `test 16 bit samples come back bit exact`() {
+        val data = LongArray(1000) { random.nextLong(-32768, 32768) }
+        val waver = Waver(data, 44100, 1, 1000, 16).apply { maxValue = data.maxValue() }
+        val header = waver.toCarrierHeader(2, 16)
+        val pixels = randomPixels()
+        val layout = PackedLayout(pixels.size, header_size, header.lsbDepth, header.sampleBits)
+        runBlocking { pixels.putAllSignedIntegersInParallel(layout, waver.quantize(header)) }
+        val samples = runBlocking { pixels.getAllSignedIntegersInParallel(layout, header.payloadCount.toInt()) }
+
+        assert(header.lossless)
+        assert(samples.dequantize(header).contentEquals(data))
+    }
+
+    @Test
+    fun `test 8 bit samples scaled same as before`() {
+        val data = LongArray(1000) { random.nextLong(-8388608, 8388608) }
+        val waver = Waver(data, 44100, 1, 1000, 24).apply { maxValue = peakBeforeOf(data) }
+        val header = waver.toCarrierHeader(3, 8)
+
+        assert(!header.lossless)
+        val payload = waver.quantize(header)
+
+        assert(payload.copyOfRange(header.tableCount, payload.size).contentEquals(uniformBeforeOf(data).mapToRgbValue()))
+    }
+
+    @Test
+    fun `test fused kernels code and get back samples same as before`() {
+        listOf(16 to 32768L, 24 to 8388608L, 40 to 549755813888L).forEach { (validBits, range) ->
+            val data = LongArray(3001) { random.nextLong(-range, range) }
+            val store = SampleStore.of(data, validBits)
+            val peak = peakBeforeOf(data)
+            assert(peak == data.map { abs(it) }.max()!!)
+            assert(store.maxValue() == peak)
+            assert(data.maxValue() == peak)
+
+            listOf(8, 12, 16).forEach { sampleDepth ->
+                val levels = CarrierHeader.levelsOf(sampleDepth)
+                val uniform = uniformBeforeOf(data)
+                val before = IntArray(data.size) { (uniform[it] * levels).toInt() }
+                if (sampleDepth == 8) assert(before.contentEquals(uniform.mapToRgbValue()))
+                val codes = IntArray(data.size)
+                store.quantizeInto(0, data.size, peak, levels, false, codes, 0)
+                assert(codes.contentEquals(before))
+
+                val samples = SampleStore.ofSize(data.size, validBits)
+                samples.dequantizeFrom(codes, 0, codes.size, levels, peak, false, 0)
+                val back = LongArray(codes.size) { (codes[it].toDouble() / levels * peak).toLong() }
+                assert(samples.toLongArray().contentEquals(back))
+            }
+        }
+    }
+
+    @Test
+    fun `test pcm payload coded and revealed same as before`() {
+        val data = LongArray(2 * 20_000) { random.nextLong(-8388608, 8388608) }
+        val waver = Waver(data, 8000, 2, 20_000, 24).apply { maxValue = data.maxValue() }
+        assert(waver.maxValue == peakBeforeOf(data))
+        listOf(8, 12, 16).forEach { sampleDepth ->
+            val header = waver.toCarrierHeader(4, sampleDepth)
+            val payload = waver.quantize(header)
+            val uniform = uniformBeforeOf(data)
+            val codes = payload.copyOfRange(header.tableCount, payload.size)
+            assert(codes.contentEquals(IntArray(data.size) { (uniform[it] * header.levels).toInt() }))
+
+            val back = LongArray(codes.size) { (codes[it].toDouble() / header.levels * header.maxValue).toLong() }
+            assert(payload.dequantize(header).contentEquals(back))
+            assert(header.toWaver(payload).samples.toLongArray().contentEquals(back))
+        }
+    }
+
+    @Test
+    fun `test huge file leaves pixels untouched`() {
+        val pixels = randomPixels()
+        val untouched = pixels.copy()
+        val layout = SampleLayout(pixels.size, header_size)
+        val array = IntArray(layout.capacity + 1)
+        val thrown = try {
+            runBlocking { pixels.putAllSignedIntegersInParallel(layout, array) }
+            false
+        } catch (e: HugeFileException) {
+            true
+        }
+
+        assert(thrown)
+        assert(pixels.pixels.contentEquals(untouched.pixels))
+    }
+
+    @Test
+    fun `test dirty rows keep a copy same as pixels`() = runBlocking {
+        val pixels = randomPixels()
+        val copy = pixels.copy()
+        val layout = PackedLayout(pixels.size, header_size, 2)
+        /** the first few rows of the r layer */
+        val array = IntArray(100) { random.nextInt(-255, 256) }
+        val dirtyRows = DirtyRows(carrier_width, carrier_height)
+        val copyRows = { from: Int, to: Int ->
+            System.arraycopy(pixels.pixels, from * carrier_width, copy.pixels, from * carrier_width, (to - from) * carrier_width)
+        }
+
+        pixels.putAllSignedIntegersInParallel(layout, array, 3, dirtyRows = dirtyRows)
+        assert(!copy.pixels.contentEquals(pixels.pixels))
+
+        var copiedRows = 0
+        dirtyRows.flush { from, to ->
+            copyRows(from, to)
+            copiedRows += to - from
+        }
+        assert(copy.pixels.contentEquals(pixels.pixels))
+        assert(copiedRows < carrier_height)
+
+        dirtyRows.flush { _, _ -> assert(false) }
+    }
+
+    @Test
+    fun `test progress is throttled and ends with the last count`() = runBlocking {
+        val progress = Progress(10)
+        val reports = mutableListOf<Long>()
+        val start = System.currentTimeMillis()
+        launch(Dispatchers.Default) {
+            try {
+                coroutineScope {
+                    repeat(4) { launch { repeat(200_000) { progress.add(1) } } }
+                }
+            } finally {
+                progress.close()
+            }
+        }
+
+        progress.collect { reports.add(it) }
+        val elapsed = System.currentTimeMillis() - start
+
+        assert(progress.done == 800_000L)
+        assert(reports == reports.sorted())
+        assert(reports.size <= elapsed / 10 + 1)
+    }
+
+    @Test
+    fun `test conceal resumed from a checkpoint same as uninterrupted`() = runBlocking {
+        val file = File.createTempFile("conceal", ".checkpoint").apply { deleteOnExit() }
+        (1..4).forEach { depth ->
+            val layout = PackedLayout(carrier_width * carrier_height, header_size, depth)
+            val array = IntArray(layout.capacity) { random.nextInt(-255, 256) }
+            val whole = randomPixels().removeLsb(depth)
+            val untouched = whole.copy()
+            var saved = false
+
+            whole.putAllSignedIntegersInParallel(layout, array, 3, slotsPerSegment = 1000) { slotsDone ->
+                if (!saved && slotsDone > layout.slotsHolding(array.size) / 2) {
+                    file.writeCheckpoint(ConcealCheckpoint("key", whole, header_size, slotsDone))
+                    saved = true
+                }
+            }
+            val checkpoint = file.readCheckpoint("key")!!
+            assert(checkpoint.startingPosition == header_size)
+            checkpoint.pixels.putAllSignedIntegersInParallel(layout, array, 3, fromSlot = checkpoint.slotsDone)
+
+            assert(!untouched.pixels.contentEquals(whole.pixels))
+            assert(checkpoint.pixels.pixels.contentEquals(whole.pixels))
+        }
+    }
+
+    @Test
+    fun `test checkpoint of other inputs is not read`() {
+        val file = File.createTempFile("conceal", ".checkpoint").apply { deleteOnExit() }
+        val pixels = randomPixels()
+        file.writeCheckpoint(ConcealCheckpoint("key", pixels, header_size, 42))
+
+        assert(file.readCheckpoint("other key") == null)
+        assert(file.readCheckpoint("key")?.pixels?.pixels?.contentEquals(pixels.pixels) == true)
+
+        file.writeBytes(file.readBytes().copyOf(file.length().toInt() - 1))
+        assert(file.readCheckpoint("key") == null)
+
+        file.delete()
+        assert(file.readCheckpoint("key") == null)
+    }
+
+    @Test
+    fun `test checkpoint saved a run at a time same as whole`() = runBlocking {
+        val file = File.createTempFile("conceal", ".checkpoint").apply { deleteOnExit() }
+        (1..4).forEach { depth ->
+            val layout = PackedLayout(carrier_width * carrier_height, header_size, depth)
+            val array = IntArray(layout.capacity) { random.nextInt(-255, 256) }
+            val whole = randomPixels().removeLsb(depth)
+            val checkpointer = Checkpointer(file, "key", 0)
+            val saves = mutableListOf<Long>()
+
+            whole.putAllSignedIntegersInParallel(layout, array, 3, slotsPerSegment = 1000) { slotsDone ->
+                checkpointer.save(whole, layout, slotsDone)
+                saves += slotsDone
+            }
+            val checkpoint = file.readCheckpoint("key")!!
+
+            assert(saves.size > 2)
+            assert(checkpoint.slotsDone == saves.last())
+            assert(checkpoint.pixels.pixels.contentEquals(whole.pixels))
+            assert(file.length() <= 3L * whole.size * Int.SIZE_BYTES + 1024)
+            checkpointer.clear()
+        }
+    }
+
+    @Test
+    fun `test checkpoint run cut short leaves the runs before it`() {
+        val file = File.createTempFile("conceal", ".checkpoint").apply { deleteOnExit() }
+        val layout = PackedLayout(carrier_width * carrier_height, header_size, 2)
+        val base = randomPixels()
+        file.writeCheckpoint(ConcealCheckpoint("key", base, header_size, 0))
+        val first = base.copy().apply { pixels[header_size] = pixels[header_size] xor 1 }
+        file.appendCheckpoint(first, 10, layout.positionsOf(0, 10))
+        val length = file.length()
+        val second = first.copy().apply { pixels[header_size + 10] = pixels[header_size + 10] xor 1 }
+        file.appendCheckpoint(second, 20, layout.positionsOf(10, 20))
+
+        assert(file.readCheckpoint("key")?.slotsDone == 20L)
+        file.writeBytes(file.readBytes().copyOf(length.toInt() + 12))
+        val checkpoint = file.readCheckpoint("key")!!
+        assert(checkpoint.slotsDone == 10L)
+        assert(checkpoint.pixels.pixels.contentEquals(first.pixels))
+    }
+
+    @Test
+    fun `test positions of slots across layers`() {
+        val layout = PackedLayout(carrier_width * carrier_height, header_size, 2)
+        val size = layout.size
+
+        assert(layout.positionsOf(0, 10) == listOf(header_size until header_size + 10))
+        assert(layout.positionsOf(size - header_size - 5L, size - header_size + 5L) == listOf(0 until 5, size - 5 until size))
+        assert(layout.positionsOf(0, layout.slots) == listOf(0 until size))
+        assert(layout.positionsOf(7, 7).isEmpty())
+    }
+
+    @Test
+    fun `test stale checkpoint forgotten`() {
+        val file = File.createTempFile("conceal", ".checkpoint").apply { deleteOnExit() }
+        val image = File.createTempFile("conceal", ".png").apply { deleteOnExit() }
+        val wave = File.createTempFile("conceal", ".wav").apply { deleteOnExit() }
+        val header = Waver(LongArray(0), 8000, 1, 0, 16).toCarrierHeader(2, 16)
+        val key = checkpointKeyOf(image.path, wave.path, header)
+        file.writeCheckpoint(ConcealCheckpoint(key, randomPixels(), header_size, 42))
+
+        file.forgetStaleCheckpoint()
+        assert(file.exists())
+        assert(isCheckpointKeyCurrent(key))
+
+        wave.writeBytes(ByteArray(10))
+        file.forgetStaleCheckpoint()
+        assert(!isCheckpointKeyCurrent(key))
+        assert(!file.exists())
+    }
+
+    @Test
+    fun `test payload made a block at a time same as whole`() = runBlocking {
+        val frames = 20_000
+        val data = LongArray(frames * 2) { random.nextLong(-30000, 30000) }
+        val audio = Waver(data, 8000, 2, frames.toLong(), 16).apply { maxValue = data.maxValue() }
+        PayloadCodec.values().forEach { codec ->
+            listOf(8, 16).forEach { sampleDepth ->
+                val header = audio.toCarrierHeader(4, sampleDepth, codec)
+                val whole = audio.quantize(header)
+                val chunks = header.emptyChunkIndex()
+                val blocks = audio.frameBlocks(chunks.chunkFrames).quantize(header, audio.maxValue, chunks)
+
+                val pixels = PixelBuffer(500, 300).removeLsb(header.lsbDepth)
+                val position = pixels.putCarrierHeader(header)
+                val layout = PackedLayout(pixels.size, position, header.lsbDepth, header.sampleBits)
+                val streamed = pixels.copy()
+                pixels.putAllSignedIntegersInParallel(layout, whole)
+                val writer = PackedSampleWriter(
+                    streamed.pixels,
+                    Layer.values().map { layout.firstPositionOf(it) }.toIntArray(),
+                    Layer.values().map { it.shift }.toIntArray(),
+                    layout.depth,
+                    layout.sampleBits
+                )
+                blocks.forEach { writer.put(it, 0, it.size) }
+                writer.finish()
+                /** rice tables are only known once every chunk is coded */
+                if (codec.variableLength) streamed.putOver(layout, header.tableCodesOf(chunks))
+
+                assert(writer.samplesPut == whole.size.toLong())
+                assert(streamed.pixels.contentEquals(pixels.pixels))
+            }
+        }
+    }
+
+    @Test
+    fun `test streamed payload resumed from a slot same as whole`() {
+        (1..4).forEach { depth ->
+            val layout = PackedLayout(carrier_width * carrier_height, header_size, depth, 9)
+            val samples = IntArray(layout.capacity) { random.nextInt(-255, 256) }
+            val starts = Layer.values().map { layout.firstPositionOf(it) }.toIntArray()
+            val shifts = Layer.values().map { it.shift }.toIntArray()
+            val whole = randomPixels().removeLsb(depth)
+            PackedSampleWriter(whole.pixels, starts, shifts, depth, 9).apply {
+                put(samples, 0, samples.size)
+                finish()
+            }
+
+            /** samples ending on a slot, past the first layer */
+            val skipped = samples.size / 2 / depth * depth
+            val resumed = whole.copy().removeLsb(depth)
+            PackedSampleWriter(resumed.pixels, starts, shifts, depth, 9).put(samples, 0, skipped)
+            PackedSampleWriter(resumed.pixels, starts, shifts, depth, 9).apply {
+                skip(skipped.toLong())
+                put(samples, skipped, samples.size)
+                finish()
+                assert(samplesPut == samples.size.toLong())
+            }
+
+            assert(resumed.pixels.contentEquals(whole.pixels))
+        }
+    }
+
+    @Test
+    fun `test checkpointer forgets a conceal of other inputs along with its output`() {
+        val file = File.createTempFile("conceal", ".checkpoint").apply { deleteOnExit() }
+        val output = File.createTempFile("conceal", ".png").apply { deleteOnExit() }
+        file.writeCheckpoint(TiledCheckpoint("key", output, PngWriter.State(100, 3, 1)))
+
+        assert(Checkpointer(file, "key").loadTiled()?.png?.rowsWritten == 3)
+        assert(output.exists())
+        assert(Checkpointer(file, "other key").load() == null)
+        assert(!file.exists())
+        assert(!output.exists())
+    }
+
+    @Test
+    fun `test checkpoint which cannot be written is skipped`() = runBlocking {
+        val file = File(File.createTempFile("conceal", ".dir").path, CHECKPOINT_FILE_NAME)
+        val checkpointer = Checkpointer(file, "key", 0)
+
+        checkpointer.save(randomPixels(), PackedLayout(carrier_width * carrier_height, header_size, 2), 42)
+
+        assert(!checkpointer.isSaved)
+        assert(checkpointer.load() == null)
+    }
+}
@@ -0,0 +1,143 @@
+package ir.mrahimy.conceal
+
+import ir.mrahimy.conceal.data.PixelBuffer
+import ir.mrahimy.conceal.data.toSeparatedDigits
+import ir.mrahimy.conceal.util.Layer
+import ir.mrahimy.conceal.util.getSampleRate
+import ir.mrahimy.conceal.util.getSignedInteger
+import ir.mrahimy.conceal.util.ktx.bitwiseOr
+import ir.mrahimy.conceal.util.ktx.combineBits
+import ir.mrahimy.conceal.util.ktx.toBinString
+import ir.mrahimy.conceal.util.lowlevel.LowLevelLsbOperations
+import ir.mrahimy.conceal.util.putSampleRate
+import ir.mrahimy.conceal.util.putSignedInteger
+import ir.mrahimy.conceal.util.remove3Lsb
+import org.junit.Test
+import kotlin.math.absoluteValue
+import kotlin.random.Random
+
+/**
+ * Compares the allocation free kernels with the string based implementation they replaced
+ */
+class LowLevelLsbOperationsUnitTest {
+
+    private val random = Random(1399)
+
+    private fun randomSample() = random.nextInt(-255, 256)
+
+    @Test
+    fun `test removing 3 lsb same as before`() {
+        val old = random.nextPixels()
+        val new = old.copy()
+        repeat(old.size) {
+            old.pixels[it] = (0xff shl 24) or
+                    ((old.r(it) and 248) shl 16) or
+                    ((old.g(it) and 248) shl 8) or
+                    (old.b(it) and 248)
+        }
+        new.remove3Lsb()
+        assert(old.pixels.contentEquals(new.pixels))
+    }
+
+    @Test
+    fun `test putting signed integers same as before`() {
+        val old = random.nextPixels().remove3Lsb()
+        val mask = old.copy()
+        val lut = old.copy()
+        var position = 0
+        while (position + 3 < old.size) {
+            val value = randomSample()
+            val layer = Layer.values().random(random)
+            old.putSignedIntegerWithStrings(position, value, layer)
+            LowLevelLsbOperations.putSignedInteger(mask.pixels, position, value, layer.shift)
+            position = lut.putSignedInteger(position, value, layer)
+        }
+
+        assert(old.pixels.contentEquals(mask.pixels))
+        assert(old.pixels.contentEquals(lut.pixels))
+    }
+
+    @Test
+    fun `test getting signed integers same as before`() {
+        val pixels = random.nextPixels()
+        Layer.values().forEach { layer ->
+            repeat(pixels.size - 3) {
+                val old = pixels.getSignedIntegerWithStrings(it, layer)
+                assert(old == LowLevelLsbOperations.getSignedInteger(pixels.pixels, it, layer.shift))
+                assert(old == pixels.getSignedInteger(it, layer))
+            }
+        }
+    }
+
+    @Test
+    fun `test putting signed integers and getting them back`() {
+        val pixels = random.nextPixels().remove3Lsb()
+        val values = IntArray(pixels.size / 4) { randomSample() }
+        values.forEachIndexed { index, value -> pixels.putSignedInteger(index * 4, value, Layer.G) }
+        values.forEachIndexed { index, value ->
+            assert(pixels.getSignedInteger(index * 4, Layer.G) == value)
+        }
+    }
+
+    @Test
+    fun `test putting header numbers same as before`() {
+        repeat(200) {
+            val number = random.nextInt(0, Int.MAX_VALUE)
+            val old = random.nextPixels().remove3Lsb()
+            val new = old.copy()
+            val oldPosition = old.putNumberWithStrings(0, number)
+            val newPosition = new.putSampleRate(number)
+
+            assert(oldPosition == newPosition)
+            assert(old.pixels.contentEquals(new.pixels))
+
+            val parsed = new.getSampleRate()
+            assert(parsed.number == number)
+            assert(parsed.position == newPosition)
+        }
+    }
+
+    @Test
+    fun `test combining bits same as before`() {
+        repeat(1000) {
+            val chunks = IntArray(4) { random.nextInt(0, 4) }
+            val old = chunks.joinToString("") { it.toBinString().drop(6) }.toInt(2)
+            assert(old == chunks[0].combineBits(chunks[1], chunks[2], chunks[3]))
+        }
+    }
+
+    private fun PixelBuffer.putSignedIntegerWithStrings(startingPosition: Int, value: Int, layer: Layer) {
+        var position = startingPosition
+        if (value < 0) setChannel(position, layer, channel(position, layer).bitwiseOr(4))
+        val element = value.absoluteValue.toBinString()
+        repeat(4) {
+            val binaryString2BitsChunk = element.substring(it * 2, it * 2 + 2).toInt(2)
+            setChannel(position, layer, channel(position, layer).bitwiseOr(binaryString2BitsChunk))
+            position += 1
+        }
+    }
+
+    private fun PixelBuffer.getSignedIntegerWithStrings(startingPosition: Int, layer: Layer): Int {
+        var position = startingPosition
+        val sign = if (channel(position, layer).toBinString().takeLast(3).toInt(2) >= 4) -1 else 1
+        val builder = StringBuilder()
+        repeat(4) {
+            builder.append(channel(position++, layer).toBinString().drop(6))
+        }
+        return builder.toString().toInt(2) * sign
+    }
+
+    private fun PixelBuffer.putNumberWithStrings(startingPosition: Int, number: Int): Int {
+        var position = startingPosition
+        val separatedDigits = number.toString().toSeparatedDigits()
+        val nibbles = listOf(separatedDigits.elementCount) + separatedDigits.digits.toList()
+        nibbles.forEach {
+            val element = it.toBinString(format = "%4s")
+            setR(position, r(position).bitwiseOr(element.substring(0, 2).toInt(2)))
+            position += 1
+            setR(position, r(position).bitwiseOr(element.substring(2, 4).toInt(2)))
+            position += 1
+        }
+        return position
+    }
+}
@@ -1,6 +1,8 @@
 package ir.mrahimy.conceal
 
+import ir.mrahimy.conceal.data.PixelBuffer
 import ir.mrahimy.conceal.data.Rgb
+import ir.mrahimy.conceal.data.toPixelBuffer
 import ir.mrahimy.conceal.data.toSeparatedDigits
 import ir.mrahimy.conceal.util.*
 import ir.mrahimy.conceal.util.ktx.bitwiseOr
@@ -12,7 +14,7 @@ class LowLevelOperationsManipulationUnitTest {
 
     private val sampleRate = 44100
     private val rgbList = mutableListOf<Rgb>()
-    private val removedLsb = mutableListOf<Rgb>()
+    private lateinit var removedLsb: PixelBuffer
 
     private val image_width = 8
     private val image_height = 5
@@ -63,19 +65,18 @@ class LowLevelOperationsManipulationUnitTest {
             add(Rgb(100, 90, 101))
         }//40
 
-        removedLsb.clear()
-        removedLsb.addAll(rgbList.remove3Lsb())
+        removedLsb = rgbList.toPixelBuffer(image_width).remove3Lsb()
     }
 
     private fun `test removing 3 lsb of index`(index: Int, vararg intArray: Int) {
-        assert(removedLsb[index].r == intArray[0]) //0
-        assert(removedLsb[index].g == intArray[1])
-        assert(removedLsb[index].b == intArray[2])
+        assert(removedLsb.r(index) == intArray[0]) //0
+        assert(removedLsb.g(index) == intArray[1])
+        assert(removedLsb.b(index) == intArray[2])
     }
 
     @Test
     fun `test injected sample rate position`() {
-        val returnedPosition = removedLsb.map { it }.putSampleRate(sampleRate)
+        val returnedPosition = removedLsb.copy().putSampleRate(sampleRate)
         val audioSampleRate = sampleRate.toString().toSeparatedDigits()
         assert(returnedPosition == (audioSampleRate.elementCount + 1) * 2)
     }
@@ -105,9 +106,9 @@ class LowLevelOperationsManipulationUnitTest {
         var binaryString2BitsChunk = binaryString2BitsChunkStr.toInt(2)
         assert(binaryString2BitsChunk == 1)
 
-        var data = removedLsb[position].r.bitwiseOr(binaryString2BitsChunk)
+        var data = removedLsb.r(position).bitwiseOr(binaryString2BitsChunk)
         assert(data == 193)
-        removedLsb[position].r = data
+        removedLsb.setR(position, data)
         position += 1
 
         binaryString2BitsChunkStr = sampleRateElementCount.substring(2, 4)
@@ -115,59 +116,59 @@ class LowLevelOperationsManipulationUnitTest {
         binaryString2BitsChunk = binaryString2BitsChunkStr.toInt(2)
         assert(binaryString2BitsChunk == 1)
 
-        data = removedLsb[position].r.bitwiseOr(binaryString2BitsChunk)
+        data = removedLsb.r(position).bitwiseOr(binaryString2BitsChunk)
         assert(data == 177)
-        removedLsb[position].r = data
+        removedLsb.setR(position, data)
         position += 1
 
         audioSampleRate.digits.forEach {
             val element = it.toBinString(format = "%4s")
             binaryString2BitsChunk = element.substring(0, 2).toInt(2)
-            removedLsb[position].r = removedLsb[position].r.bitwiseOr(binaryString2BitsChunk)
+            removedLsb.setR(position, removedLsb.r(position).bitwiseOr(binaryString2BitsChunk))
             position += 1
 
             binaryString2BitsChunk = element.substring(2, 4).toInt(2)
-            removedLsb[position].r = removedLsb[position].r.bitwiseOr(binaryString2BitsChunk)
+            removedLsb.setR(position, removedLsb.r(position).bitwiseOr(binaryString2BitsChunk))
             position += 1
         }
     }
 
     @Test
     fun `test injected sample rate`() {
-        val injected = mutableListOf<Rgb>().apply { addAll(removedLsb.map { it }) }
+        val injected = removedLsb.copy()
         val pos = injected.putSampleRate(sampleRate)
 
         var i = 0
         // 5 = 0101
-        assert(injected[i++].r == 193) //01 + 192
-        assert(injected[i++].r == 177) // 01 + 176
+        assert(injected.r(i++) == 193) //01 + 192
+        assert(injected.r(i++) == 177) // 01 + 176
 
         //4 = 0100
-        assert(injected[i++].r == 177) // 01 + 176
-        assert(injected[i++].r == 80) // 00 + 80
+        assert(injected.r(i++) == 177) // 01 + 176
+        assert(injected.r(i++) == 80) // 00 + 80
 
         //4 = 0100
-        assert(injected[i++].r == 49) // 01 + 48
-        assert(injected[i++].r == 144) // 00 + 144
+        assert(injected.r(i++) == 49) // 01 + 48
+        assert(injected.r(i++) == 144) // 00 + 144
 
         //1 = 0001
-        assert(injected[i++].r == 88) // 00 + 88
-        assert(injected[i++].r == 185) // 01 + 184
+        assert(injected.r(i++) == 88) // 00 + 88
+        assert(injected.r(i++) == 185) // 01 + 184
 
         //0 = 0000
-        assert(injected[i++].r == 168) // 00 + 168
-        assert(injected[i++].r == 240) // 00 + 240
+        assert(injected.r(i++) == 168) // 00 + 168
+        assert(injected.r(i++) == 240) // 00 + 240
 
         //0 = 0000
-        assert(injected[i++].r == 16) // 00 + 16
-        assert(injected[i++].r == 96) // 00 + 96
+        assert(injected.r(i++) == 16) // 00 + 16
+        assert(injected.r(i++) == 96) // 00 + 96
 
         assert(i == 12)
     }
 
     @Test
     fun `test retrieving sample rate`() {
-        val injected = mutableListOf<Rgb>().apply { addAll(removedLsb.map { it }) }
+        val injected = removedLsb.copy()
         val pos = injected.putSampleRate(sampleRate)
 
         val res = injected.getSampleRate()
@@ -177,7 +178,7 @@ class LowLevelOperationsManipulationUnitTest {
 
     @Test
     fun `test putting signed integer`() {
-        val position = rgbList.putSignedInteger(0, 251, Layer.R)
+        val position = rgbList.toPixelBuffer().putSignedInteger(0, 251, Layer.R)
         assert(position == 4)
     }
 //
@@ -213,7 +214,7 @@ class LowLevelOperationsManipulationUnitTest {
             Rgb(240, 151, 117),
             Rgb(17, 90, 51)
         )
-        val parsed = rgbList.getSignedInteger(0, Layer.R)
+        val parsed = rgbList.toPixelBuffer().getSignedInteger(0, Layer.R)
         assert(parsed.toInt() == 5)
     }
 
@@ -232,7 +233,7 @@ class LowLevelOperationsManipulationUnitTest {
             Rgb(240, 151, 117),
             Rgb(17, 90, 51)
         )
-        val parsed = rgbList.getSignedInteger(0, Layer.R)
+        val parsed = rgbList.toPixelBuffer().getSignedInteger(0, Layer.R)
         assert(parsed.toInt() == -5)
     }
 
@@ -251,7 +252,7 @@ class LowLevelOperationsManipulationUnitTest {
             Rgb(240, 151, 117),
             Rgb(17, 90, 51)
         )
-        val parsed = rgbList.getSignedInteger(0, Layer.G)
+        val parsed = rgbList.toPixelBuffer().getSignedInteger(0, Layer.G)
         assert(parsed.toInt() == -118)
     }
 
@@ -270,7 +271,7 @@ class LowLevelOperationsManipulationUnitTest {
             Rgb(240, 151, 117),
             Rgb(17, 90, 51)
         )
-        val int = rgbList.getSignedInteger(6, Layer.G)
+        val int = rgbList.toPixelBuffer().getSignedInteger(6, Layer.G)
         assert(int == 251)
     }
 
@@ -290,7 +291,7 @@ class LowLevelOperationsManipulationUnitTest {
             Rgb(17, 90, 51)
         )
 
-        val list = rgbList.getAllSignedIntegers(6)
+        val list = rgbList.toPixelBuffer().getAllSignedIntegers(6)
         assert(list.containsAll(listOf(168, -118, 15, 200, 229)))
     }
 
@@ -300,7 +301,7 @@ class LowLevelOperationsManipulationUnitTest {
         removedLsb.putSignedInteger(0, input, Layer.R)
         removedLsb.putSignedInteger(4, input / 2, Layer.R)
         removedLsb.putSignedInteger(8, -input / 2, Layer.R)
-        assert(removedLsb.subList(0, 4).map { it.r }.containsAll(listOf(199, 179, 178, 83)))
+        assert((0 until 4).map { removedLsb.r(it) }.containsAll(listOf(199, 179, 178, 83)))
 
         var parsed = removedLsb.getSignedInteger(0, Layer.R)
         assert(parsed == input)
@@ -328,7 +329,7 @@ class LowLevelOperationsManipulationUnitTest {
             Rgb(17, 90, 51)
         )
 
-        val list = rgbList.getAllSignedIntegers(1)
+        val list = rgbList.toPixelBuffer().getAllSignedIntegers(1)
         assert(list.containsAll(listOf(-22, -170, 15, 200, 229)))
     }
 //
@@ -0,0 +1,16 @@
+package ir.mrahimy.conceal
+
+import ir.mrahimy.conceal.data.PixelBuffer
+import kotlin.random.Random
+
+/**
+ * The size of the carrier the conceal and reveal tests work on
+ */
+const val carrier_width = 64
+const val carrier_height = 48
+
+/**
+ * @return a carrier of pixels of random colors, every bit of them set at random
+ */
+fun Random.nextPixels(width: Int = carrier_width, height: Int = carrier_height) =
+    PixelBuffer(width, height, IntArray(width * height) { nextInt() })
@@ -0,0 +1,178 @@
+package ir.mrahimy.conceal
+
+import ir.mrahimy.conceal.data.CarrierHeader
+import ir.mrahimy.conceal.data.PixelBuffer
+import ir.mrahimy.conceal.data.Waver
+import ir.mrahimy.conceal.data.toCarrierHeader
+import ir.mrahimy.conceal.util.BINARY_HEADER_PIXELS
+import ir.mrahimy.conceal.util.PackedLayout
+import ir.mrahimy.conceal.util.SampleLayout
+import ir.mrahimy.conceal.util.concealBands
+import ir.mrahimy.conceal.util.getAllSignedIntegersInParallel
+import ir.mrahimy.conceal.util.lowlevel.PngWriter
+import ir.mrahimy.conceal.util.putAllSignedIntegersInParallel
+import ir.mrahimy.conceal.util.putCarrierHeader
+import ir.mrahimy.conceal.util.putLegacyHeaderInfo
+import ir.mrahimy.conceal.util.remove3Lsb
+import ir.mrahimy.conceal.util.removeLsb
+import ir.mrahimy.conceal.util.revealBands
+import kotlinx.coroutines.runBlocking
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import javax.imageio.ImageIO
+import kotlin.random.Random
+
+class TiledEngineUnitTest {
+
+    private val random = Random(1399)
+
+    /**
+     * Rows of a band, the smallest holding the longest header and one that does not divide the
+     * height
+     */
+    private val band_rows = listOf(3, 5)
+
+    private fun PixelBuffer.rowReader(): (IntArray, Int, Int) -> Unit = { band, from, to ->
+        System.arraycopy(pixels, from * width, band, 0, (to - from) * width)
+    }
+
+    /**
+     * Random samples filling all the capacity but a few samples, so every layer is used
+     */
+    private fun samplesOf(sampleDepth: Int): Pair<CarrierHeader, IntArray> {
+        val lsbDepth = random.nextInt(1, 5)
+        val capacity = PackedLayout(carrier_width * carrier_height, BINARY_HEADER_PIXELS, lsbDepth, sampleDepth + 1).capacity
+        val count = capacity - random.nextInt(0, 50)
+        val max = CarrierHeader.levelsOf(sampleDepth).toInt()
+        val samples = IntArray(count) { random.nextInt(-max, max + 1) }
+        /** 24 valid bits, lossless codes of the deepest sample depth taking more than 16 */
+        val waver = Waver(LongArray(0), 44100, 1, count.toLong(), 24).apply { maxValue = 32767 }
+        /** raw samples, without the tables a quantized payload starts with */
+        return waver.toCarrierHeader(lsbDepth, sampleDepth).copy(tableWords = 0) to samples
+    }
+
+    @Test
+    fun `test tiled conceal same as whole image`() = runBlocking {
+        band_rows.forEach { bandRows ->
+            CarrierHeader.SAMPLE_DEPTHS.forEach { sampleDepth ->
+                val input = random.nextPixels()
+                val (header, samples) = samplesOf(sampleDepth)
+
+                val whole = input.copy().removeLsb(header.lsbDepth)
+                val position = whole.putCarrierHeader(header)
+                whole.putAllSignedIntegersInParallel(
+                    PackedLayout(whole.size, position, header.lsbDepth, header.sampleBits),
+                    samples
+                )
+
+                val tiled = PixelBuffer(carrier_width, carrier_height)
+                concealBands(carrier_width, carrier_height, header, samples, input.rowReader(), bandRows) { band, from, to ->
+                    System.arraycopy(band, 0, tiled.pixels, from * carrier_width, (to - from) * carrier_width)
+                }
+
+                assert(tiled.pixels.contentEquals(whole.pixels))
+            }
+        }
+    }
+
+    @Test
+    fun `test tiled reveal same as whole image`() = runBlocking {
+        band_rows.forEach { bandRows ->
+            CarrierHeader.SAMPLE_DEPTHS.forEach { sampleDepth ->
+                val pixels = random.nextPixels()
+                val (header, samples) = samplesOf(sampleDepth)
+                concealBands(carrier_width, carrier_height, header, samples, pixels.rowReader(), bandRows) { band, from, to ->
+                    System.arraycopy(band, 0, pixels.pixels, from * carrier_width, (to - from) * carrier_width)
+                }
+
+                val waver = revealBands(carrier_width, carrier_height, pixels.rowReader(), bandRows)
+                val layout = PackedLayout(pixels.size, BINARY_HEADER_PIXELS, header.lsbDepth, header.sampleBits)
+
+                assert(waver.frameCount == samples.size.toLong())
+                assert(pixels.getAllSignedIntegersInParallel(layout, samples.size).contentEquals(samples))
+                if (header.lossless) assert(waver.samples.toLongArray().map { it.toInt() } == samples.toList())
+            }
+        }
+    }
+
+    @Test
+    fun `test tiled reveal of legacy image`() = runBlocking {
+        band_rows.forEach { bandRows ->
+            val pixels = random.nextPixels().remove3Lsb()
+            val waver = Waver(LongArray(0), 8000, 1, 1500, 8).apply { maxValue = 255 }
+            val position = pixels.putLegacyHeaderInfo(waver)
+            val layout = SampleLayout(pixels.size, position)
+            val samples = IntArray(1500) { random.nextInt(-255, 256) }
+            pixels.putAllSignedIntegersInParallel(layout, samples)
+
+            val revealed = revealBands(carrier_width, carrier_height, pixels.rowReader(), bandRows)
+
+            assert(revealed.samples.size == samples.size)
+            assert(revealed.samples.toLongArray().map { it.toInt() } == samples.map { (it / 255.0 * 255).toInt() })
+        }
+    }
+
+    @Test
+    fun `test png writer keeps every bit`() {
+        val pixels = random.nextPixels().removeLsb(0)
+        val bytes = ByteArrayOutputStream()
+        PngWriter(bytes, carrier_width, carrier_height).use { png ->
+            (0 until carrier_height step 5).forEach { from ->
+                val rows = minOf(5, carrier_height - from)
+                png.writeRows(pixels.pixels.copyOfRange(from * carrier_width, (from + rows) * carrier_width), rows)
+            }
+        }
+
+        val decoded = ImageIO.read(ByteArrayInputStream(bytes.toByteArray()))
+        val decodedPixels = decoded.getRGB(0, 0, carrier_width, carrier_height, null, 0, carrier_width)
+
+        assert(decodedPixels.contentEquals(pixels.pixels))
+    }
+
+    @Test
+    fun `test png carried on from a checkpoint same as uninterrupted`() = runBlocking {
+        band_rows.forEach { bandRows ->
+            val input = random.nextPixels()
+            val (header, samples) = samplesOf(CarrierHeader.DEFAULT_SAMPLE_DEPTH)
+            val whole = ByteArrayOutputStream()
+            PngWriter(whole, carrier_width, carrier_height).use { png ->
+                concealBands(carrier_width, carrier_height, header, samples, input.rowReader(), bandRows) { band, from, to ->
+                    png.writeRows(band, to - from)
+                }
+            }
+
+            val stopped = ByteArrayOutputStream()
+            val stoppedPng = PngWriter(stopped, carrier_width, carrier_height)
+            concealBands(carrier_width, carrier_height, header, samples, input.rowReader(), bandRows) { band, from, to ->
+                if (from < 2 * bandRows) stoppedPng.writeRows(band, to - from)
+            }
+            val state = stoppedPng.checkpoint()
+            /** rows written after the checkpoint are dropped along with anything else after it */
+            stoppedPng.writeRows(IntArray(carrier_width), 1)
+            stopped.write(ByteArray(100) { it.toByte() })
+
+            val carried = ByteArrayOutputStream()
+            carried.write(stopped.toByteArray(), 0, state.length.toInt())
+            PngWriter(carried, carrier_width, carrier_height, state).use { png ->
+                concealBands(
+                    carrier_width,
+                    carrier_height,
+                    header,
+                    samples,
+                    input.rowReader(),
+                    bandRows,
+                    state.rowsWritten
+                ) { band, from, to ->
+                    png.writeRows(band, to - from)
+                }
+            }
+
+            assert(state.rowsWritten == 2 * bandRows)
+            assert(decode(carried.toByteArray()).contentEquals(decode(whole.toByteArray())))
+        }
+    }
+
+    private fun decode(png: ByteArray): IntArray =
+        ImageIO.read(ByteArrayInputStream(png)).getRGB(0, 0, carrier_width, carrier_height, null, 0, carrier_width)
+}
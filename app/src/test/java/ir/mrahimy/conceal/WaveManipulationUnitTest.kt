@@ -1,8 +1,40 @@
 package ir.mrahimy.conceal
 
+import ir.mrahimy.conceal.data.PixelBuffer
+import ir.mrahimy.conceal.data.SampleStore
+import ir.mrahimy.conceal.data.Waver
 import ir.mrahimy.conceal.data.absolute
 import ir.mrahimy.conceal.data.mapToUniformDouble
+import ir.mrahimy.conceal.data.maxValue
+import ir.mrahimy.conceal.data.quantize
+import ir.mrahimy.conceal.data.tableWords
+import ir.mrahimy.conceal.data.toCarrierHeader
+import ir.mrahimy.conceal.data.toWaver
+import ir.mrahimy.conceal.util.PackedLayout
+import ir.mrahimy.conceal.util.PcmRingBuffer
+import ir.mrahimy.conceal.util.fitInto
+import ir.mrahimy.conceal.util.getAllSignedIntegersInParallel
+import ir.mrahimy.conceal.util.getCarrierHeader
+import ir.mrahimy.conceal.util.putAllSignedIntegersInParallel
+import ir.mrahimy.conceal.util.putCarrierHeader
+import ir.mrahimy.conceal.util.resample
+import ir.mrahimy.conceal.util.revealRange
+import ir.mrahimy.conceal.util.useFrameBlocks
+import ir.mrahimy.conceal.util.readWavePeak
+import ir.mrahimy.conceal.util.trimSilence
+import ir.mrahimy.conceal.util.writeWave
+import ir.mrahimy.conceal.util.lowlevel.LowLevelWaveOperations
+import ir.mrahimy.conceal.util.lowlevel.PolyphaseResampler
+import ir.mrahimy.conceal.util.lowlevel.Wave
+import java.io.File
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import kotlinx.coroutines.runBlocking
 import org.junit.Test
+import kotlin.math.PI
+import kotlin.math.abs
+import kotlin.math.sin
+import kotlin.random.Random
 
 class WaveManipulationUnitTest {
 
@@ -34,4 +66,340 @@ class WaveManipulationUnitTest {
         assert(double[1] == -0.1)
         assert(double.max() ?: 0.0 <= 1.0)
     }
+
+    private fun stereoTone(frequency: Double, sampleRate: Long = 44100, frames: Int = 44100): Waver {
+        val data = LongArray(frames * 2) {
+            (10000 * sin(2 * PI * frequency * (it / 2) / sampleRate)).toLong() + if (it % 2 == 0) 100 else -100
+        }
+        return Waver(data, sampleRate, 2, frames.toLong(), 16).apply { maxValue = 10100 }
+    }
+
+    @Test
+    fun `test resampled tone keeps its frequency and level`() {
+        val mono = stereoTone(1000.0).resample(16000, 1)
+
+        assert(mono.sampleRate == 16000L && mono.channelCount == 1)
+        assert(mono.frameCount == 16000L && mono.samples.size == 16000)
+        /** leaves out the frames the filter sees the edges from */
+        val error = (100 until 15900).map { abs(mono.samples[it] - 10000 * sin(2 * PI * 1000 * it / 16000)) }.max()!!
+        assert(error < 100)
+    }
+
+    @Test
+    fun `test tone above the new nyquist frequency is filtered out`() {
+        val mono = stereoTone(10000.0).resample(16000, 1)
+
+        assert((100 until 15900).map { abs(mono.samples[it]) }.max()!! < 200)
+    }
+
+    @Test
+    fun `test tone above the nyquist frequency of a large decimation is filtered out`() {
+        val passed = stereoTone(1000.0).resample(8000, 1)
+        val aliased = stereoTone(5000.0).resample(8000, 1)
+
+        val error = (100 until 7900).map { abs(passed.samples[it] - 10000 * sin(2 * PI * 1000 * it / 8000)) }.max()!!
+        assert(error < 200)
+        /** 5kHz would come back as a 3kHz tone */
+        assert((100 until 7900).map { abs(aliased.samples[it]) }.max()!! < 100)
+    }
+
+    @Test
+    fun `test fit picks the best format that fits`() {
+        val tone = stereoTone(1000.0)
+
+        assert(tone.fitInto(88200) === tone)
+        assert(tone.fitInto(88199).run { sampleRate == 44100L && channelCount == 1 })
+        assert(tone.fitInto(44099).run { sampleRate == 22050L && channelCount == 1 })
+        assert(tone.fitInto(16000).run { sampleRate == 16000L && data.size <= 16000 })
+        assert(tone.fitInto(100).run { sampleRate == 8000L && channelCount == 1 })
+    }
+
+    /**
+     * Three seconds of silence with two bursts of a tone, from 0.5s to 1s and from 2s to 2.2s
+     *
+     * @param hum the level of a 3kHz tone going on all along, the silence is not silent then
+     */
+    private fun bursts(amplitude: Long = 8000, hum: Long = 0) = Waver(
+        LongArray(24000) {
+            (hum * sin(2 * PI * 3000 * it / 8000)).toLong() +
+                    if (it in 4000 until 8000 || it in 16000 until 17600) (amplitude * sin(2 * PI * 440 * it / 8000)).toLong()
+                    else 0L
+        },
+        8000,
+        1,
+        24000,
+        16
+    ).apply { maxValue = amplitude + hum }
+
+    @Test
+    fun `test silence dropped for good`() {
+        val trimmed = bursts().trimSilence(false)
+
+        assert(trimmed.segments == null)
+        assert(trimmed.frameCount in 5600L..9000L)
+        assert(trimmed.samples.size.toLong() == trimmed.frameCount)
+        assert(trimmed.tableWords < bursts().trimSilence(true).tableWords)
+    }
+
+    @Test
+    fun `test silence is told apart from full scale`() {
+        /** -33dBFS of speech over a hum at -64dBFS, 31dB apart only */
+        val quiet = bursts(amplitude = 1000, hum = 30).trimSilence(false)
+        /** a hum at -35dBFS is no silence however loud the speech */
+        val humming = bursts(amplitude = 30000, hum = 800)
+
+        assert(quiet.frameCount in 5600L..9000L)
+        assert(humming.trimSilence(false) === humming)
+    }
+
+    @Test
+    fun `test trimmed silence comes back as long as it was`() = runBlocking {
+        val audio = bursts()
+        val trimmed = audio.trimSilence(true)
+        val header = trimmed.toCarrierHeader(2, 16)
+        val payload = trimmed.quantize(header)
+        val pixels = PixelBuffer(400, 300)
+        val position = pixels.putCarrierHeader(header)
+        val layout = PackedLayout(pixels.size, position, header.lsbDepth, header.sampleBits)
+        pixels.putAllSignedIntegersInParallel(layout, payload)
+
+        val revealedHeader = pixels.getCarrierHeader()
+        val revealed = revealedHeader.toWaver(
+            pixels.getAllSignedIntegersInParallel(layout, revealedHeader.payloadCount.toInt())
+        )
+
+        assert(trimmed.segments?.segmentCount == 2)
+        assert(payload.size < audio.samples.size / 2)
+        assert(revealed.frameCount == audio.frameCount)
+        assert(revealed.samples.toLongArray().contentEquals(audio.samples.toLongArray()))
+        assert(pixels.revealRange(revealedHeader, 3000, 20000).samples.toLongArray().contentEquals(audio.samples.toLongArray().copyOfRange(3000, 20000)))
+    }
+
+    @Test
+    fun `test audio without silence left as it is`() {
+        val tone = stereoTone(1000.0)
+
+        assert(tone.trimSilence(true) === tone)
+    }
+
+    @Test
+    fun `test ring buffer hands samples over in order`() {
+        val samples = ShortArray(100_000) { (it * 7).toShort() }
+        val ring = PcmRingBuffer(1000)
+        val writer = Thread {
+            for (from in samples.indices step 777) ring.write(samples, from, minOf(from + 777, samples.size))
+            ring.close()
+        }.apply { start() }
+
+        val read = ShortArray(samples.size)
+        var position = 0
+        val buffer = ShortArray(300)
+        while (true) {
+            val count = ring.read(buffer)
+            if (count < 0) break
+            buffer.copyInto(read, position, 0, count)
+            position += count
+        }
+        writer.join()
+
+        assert(position == samples.size)
+        assert(read.contentEquals(samples))
+    }
+
+    @Test
+    fun `test cancelled ring buffer lets its writer go`() {
+        val ring = PcmRingBuffer(10)
+        var written = true
+        val writer = Thread { written = ring.write(ShortArray(100)) }.apply { start() }
+        Thread.sleep(50)
+        ring.cancel()
+        writer.join(1000)
+
+        assert(!writer.isAlive)
+        assert(!written)
+        assert(ring.read(ShortArray(10)) == -1)
+    }
+
+    @Test
+    fun `test wave file read a block at a time same as whole`() {
+        val tone = stereoTone(1000.0)
+        val file = File.createTempFile("tone", ".wav")
+        try {
+            Wave.WavFile.newWavFile(file, tone.channelCount, tone.frameCount, tone.validBits, tone.sampleRate).apply {
+                writeFrames(tone.samples.toLongArray(), tone.frameCount.toInt())
+                close()
+            }
+
+            val read = LongArray(tone.samples.size)
+            var frames = 0L
+            file.useFrameBlocks(1000) { blocks ->
+                blocks.forEach { block ->
+                    assert(block.firstFrame == frames)
+                    block.samples.copyInto(read, (frames * 2).toInt(), 0, block.frames * 2)
+                    frames += block.frames
+                }
+            }
+
+            assert(frames == tone.frameCount)
+            assert(read.contentEquals(tone.samples.toLongArray()))
+            assert(file.readWavePeak() == tone.samples.toLongArray().maxValue())
+        } finally {
+            file.delete()
+        }
+    }
+
+    @Test
+    fun `test wave file of any sample width read back as written`() {
+        val random = Random(21)
+        listOf(8, 12, 16, 24, 32).forEach { validBits ->
+            val frames = 30_000
+            val min = if (validBits <= 8) 0L else -(1L shl (validBits - 1))
+            val max = if (validBits <= 8) (1L shl validBits) - 1 else (1L shl (validBits - 1)) - 1
+            val data = LongArray(frames * 2) { random.nextLong(min, max + 1) }
+            data[0] = min
+            data[1] = max
+            val file = File.createTempFile("noise", ".wav")
+            try {
+                Wave.WavFile.newWavFile(file, 2, frames.toLong(), validBits, 8000).apply {
+                    writeFrames(data, frames)
+                    close()
+                }
+
+                val read = LongArray(data.size)
+                val wave = Wave.WavFile.openWavFile(file)
+                var offset = 0
+                while (true) {
+                    val count = wave.readFrames(read, offset, 777)
+                    if (count == 0) break
+                    offset += count * 2
+                }
+                wave.close()
+
+                assert(offset == data.size)
+                assert(read.contentEquals(data))
+            } finally {
+                file.delete()
+            }
+        }
+    }
+
+    @Test
+    fun `test wave written in blocks same as written a sample at a time`() {
+        val random = Random(22)
+        listOf(8, 16, 24, 32).forEach { validBits ->
+            listOf(1, 2).forEach { channelCount ->
+                val frames = 50_001
+                val data = LongArray(frames * channelCount) { random.nextLong(-(1L shl (validBits - 1)), 1L shl (validBits - 1)) }
+                val blocks = File.createTempFile("blocks", ".wav")
+                val samples = File.createTempFile("samples", ".wav")
+                try {
+                    blocks.writeWave(Waver(data, 8000, channelCount, frames.toLong(), validBits))
+                    Wave.WavFile.newWavFile(samples, channelCount, frames.toLong(), validBits, 8000).apply {
+                        writeFrames(data, frames)
+                        close()
+                    }
+
+                    assert(blocks.readBytes().contentEquals(samples.readBytes()))
+                    assert(Wave.WavFile.openWavFile(blocks).run { close(); numFrames } == frames.toLong())
+                } finally {
+                    blocks.delete()
+                    samples.delete()
+                }
+            }
+        }
+    }
+
+    /**
+     * A wave file the way other tools write ones this app never writes, of 8000 frames a second
+     *
+     * @param extensible to wrap the format code in a WAVE_FORMAT_EXTENSIBLE format chunk
+     */
+    private fun waveOf(code: Int, bits: Int, channelCount: Int, extensible: Boolean, data: ByteArray): ByteArray {
+        val formatSize = if (extensible) 40 else 16
+        val blockAlign = channelCount * bits / 8
+        return ByteBuffer.allocate(20 + formatSize + 8 + data.size).order(ByteOrder.LITTLE_ENDIAN).apply {
+            put("RIFF".toByteArray()).putInt(12 + formatSize + 8 + data.size).put("WAVE".toByteArray())
+            put("fmt ".toByteArray()).putInt(formatSize)
+            putShort((if (extensible) 0xFFFE else code).toShort()).putShort(channelCount.toShort())
+            putInt(8000).putInt(8000 * blockAlign).putShort(blockAlign.toShort()).putShort(bits.toShort())
+            if (extensible) putShort(22).putShort(bits.toShort()).putInt(3).putShort(code.toShort()).put(ByteArray(14))
+            put("data".toByteArray()).putInt(data.size).put(data)
+        }.array()
+    }
+
+    @Test
+    fun `test float and extensible wave files read as integers`() {
+        val random = Random(23)
+        val frames = 20_000
+        listOf(Triple(3, 32, false), Triple(3, 64, true), Triple(1, 24, true)).forEach { (code, bits, extensible) ->
+            val data = ByteBuffer.allocate(frames * 2 * bits / 8).order(ByteOrder.LITTLE_ENDIAN)
+            val expected = LongArray(frames * 2) {
+                when (bits) {
+                    32 -> random.nextDouble(-1.2, 1.2).toFloat().also { data.putFloat(it) }
+                        .let { LowLevelWaveOperations.fromFloat(it.toDouble(), Wave.WavFile.FLOAT_VALID_BITS) }
+                    64 -> random.nextDouble(-1.2, 1.2).also { data.putDouble(it) }
+                        .let { LowLevelWaveOperations.fromFloat(it, Wave.WavFile.FLOAT_VALID_BITS) }
+                    else -> random.nextLong(-(1L shl 23), 1L shl 23).also {
+                        data.put(it.toByte()).put((it shr 8).toByte()).put((it shr 16).toByte())
+                    }
+                }
+            }
+            val file = File.createTempFile("foreign", ".wav")
+            try {
+                file.writeBytes(waveOf(code, bits, 2, extensible, data.array()))
+
+                val read = LongArray(expected.size)
+                val wave = Wave.WavFile.openWavFile(file)
+                assert(wave.validBits == 24)
+                var offset = 0
+                while (true) {
+                    val count = wave.readFrames(read, offset, 777)
+                    if (count == 0) break
+                    offset += count * 2
+                }
+                wave.close()
+
+                val sampled = IntArray(expected.size)
+                Wave.WavFile.openWavFile(file).apply {
+                    readFrames(sampled, frames)
+                    close()
+                }
+
+                assert(read.contentEquals(expected))
+                assert(sampled.map { it.toLong() }.toLongArray().contentEquals(expected))
+                assert(expected.max() == (1L shl 23) - 1 || code == 1)
+            } finally {
+                file.delete()
+            }
+        }
+    }
+
+    @Test
+    fun `test samples kept as narrow as their valid bits`() {
+        listOf(8 to SampleStore.Shorts::class, 16 to SampleStore.Shorts::class, 24 to SampleStore.Ints::class,
+            32 to SampleStore.Ints::class, 64 to SampleStore.Longs::class).forEach { (validBits, type) ->
+            val data = if (validBits <= 8) longArrayOf(0, 128, 255)
+            else longArrayOf(-(1L shl (validBits - 1)), -1, 0, 1, (1L shl (validBits - 1)) - 1)
+            val waver = Waver(data, 8000, 1, data.size.toLong(), validBits)
+
+            assert(type.isInstance(waver.samples))
+            assert(waver.samples.toLongArray().contentEquals(data))
+            assert(waver.samples.maxValue() == data.maxValue())
+        }
+    }
+
+    @Test
+    fun `test resampled a window at a time same as whole`() {
+        val tone = stereoTone(1000.0, frames = 44_101)
+        listOf(44100L to 1, 22050L to 2, 22050L to 1, 8000L to 1).forEach { (rate, channels) ->
+            val resampler = PolyphaseResampler(44100, rate.toInt())
+            val whole = LongArray((resampler.outputFramesOf(tone.frameCount) * channels).toInt())
+            resampler.resample(tone.samples.toLongArray(), 2, tone.frameCount.toInt(), whole, channels, -32768, 32767)
+
+            val resampled = tone.resample(rate, channels)
+
+            assert(resampled.samples.toLongArray().contentEquals(whole))
+            assert(resampled.maxValue == whole.maxValue())
+        }
+    }
 }